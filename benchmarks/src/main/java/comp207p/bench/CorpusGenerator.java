@@ -0,0 +1,212 @@
+package comp207p.bench;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+import java.util.Random;
+
+
+/**
+ * CORPUS GENERATOR
+ * Generates synthetic class files for the benchmarks. Every class has a single method
+ *
+ *     public static long run(long seed)
+ *
+ * which keeps a handful of int locals that are assigned constants at the start and mixes expressions over them into an
+ * accumulator that depends on the seed. The constant parts can be folded away, the accumulator cannot, so the
+ * optimised method still does real work and returns the same value as the original.
+ *
+ * The shape of the method depends on the Kind; the generator is deterministic, so the same kind and size always
+ * produce the same bytes.
+ */
+public final class CorpusGenerator {
+    public enum Kind {
+        /** Straight-line integer expressions over the constant locals. */
+        ARITHMETIC,
+        /** Conditional branches, most of which compare constants and can be decided. */
+        BRANCH,
+        /** Counted loops whose bodies contain loop-invariant constant expressions. */
+        LOOP,
+        /** One arithmetic method close to the 64 KB code size limit. */
+        HUGE
+    }
+
+    /** Steps that fit in one method of the HUGE kind; each arithmetic step is about 20 bytes of code. */
+    static final int HUGE_STEPS = 2800;
+
+    private static final int SEED = 0;
+    private static final int ACCUMULATOR = 2;
+    private static final int FIRST_CONSTANT = 4;
+    private static final int CONSTANTS = 8;
+    private static final int TEMP = FIRST_CONSTANT + CONSTANTS;
+    private static final int COUNTER = TEMP + 1;
+
+    private static final short[] INT_OPS = {
+            Const.IADD, Const.ISUB, Const.IMUL, Const.IAND, Const.IOR, Const.IXOR, Const.ISHL, Const.ISHR
+    };
+
+    private final ConstantPoolGen cpgen;
+    private final InstructionList instList = new InstructionList();
+    private final Random random = new Random(42);
+
+    private CorpusGenerator(ConstantPoolGen cpgen)
+    {
+        this.cpgen = cpgen;
+    }
+
+    /**
+     * Generates one class.
+     * @param kind shape of the generated method
+     * @param className fully qualified name of the class
+     * @param steps number of expression, branch or loop steps in the method (ignored for HUGE)
+     * @return contents of the class file
+     */
+    public static byte[] generate(Kind kind, String className, int steps)
+    {
+        ClassGen cgen = new ClassGen(className, "java.lang.Object", className + ".java",
+                Const.ACC_PUBLIC | Const.ACC_SUPER, null);
+        cgen.setMajor(50);
+        cgen.setMinor(0);
+        CorpusGenerator generator = new CorpusGenerator(cgen.getConstantPool());
+
+        InstructionList instList = generator.instList;
+        MethodGen methodGen = new MethodGen(Const.ACC_PUBLIC | Const.ACC_STATIC, Type.LONG, new Type[]{Type.LONG},
+                new String[]{"seed"}, "run", className, instList, cgen.getConstantPool());
+
+        generator.prologue();
+        int count = kind == Kind.HUGE ? HUGE_STEPS : steps;
+        for (int i = 0; i < count; i++) {
+            switch (kind) {
+                case BRANCH:
+                    generator.branchStep(i);
+                    break;
+                case LOOP:
+                    generator.loopStep();
+                    break;
+                default:
+                    generator.arithmeticStep();
+            }
+        }
+        instList.append(new LLOAD(ACCUMULATOR));
+        instList.append(new LRETURN());
+
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        cgen.addMethod(methodGen.getMethod());
+        instList.dispose();
+        return cgen.getJavaClass().getBytes();
+    }
+
+    /**
+     * acc = seed; c0 = ...; c7 = ...
+     */
+    private void prologue()
+    {
+        instList.append(new LLOAD(SEED));
+        instList.append(new LSTORE(ACCUMULATOR));
+        for (int i = 0; i < CONSTANTS; i++) {
+            instList.append(new PUSH(cpgen, random.nextInt(2000) - 1000));
+            instList.append(new ISTORE(FIRST_CONSTANT + i));
+        }
+    }
+
+    private InstructionHandle loadConstantLocal()
+    {
+        return instList.append(new ILOAD(FIRST_CONSTANT + random.nextInt(CONSTANTS)));
+    }
+
+    private void intOp()
+    {
+        instList.append(InstructionConst.getInstruction(INT_OPS[random.nextInt(INT_OPS.length)]));
+    }
+
+    /**
+     * temp = (ci op cj) op ck; acc = acc * 31 + temp
+     */
+    private void arithmeticStep()
+    {
+        loadConstantLocal();
+        loadConstantLocal();
+        intOp();
+        loadConstantLocal();
+        intOp();
+        instList.append(new ISTORE(TEMP));
+        mix(TEMP);
+    }
+
+    /**
+     * acc = acc * 31 + local
+     */
+    private void mix(int local)
+    {
+        instList.append(new LLOAD(ACCUMULATOR));
+        instList.append(new PUSH(cpgen, 31L));
+        instList.append(new LMUL());
+        instList.append(new ILOAD(local));
+        instList.append(new I2L());
+        instList.append(new LADD());
+        instList.append(new LSTORE(ACCUMULATOR));
+    }
+
+    /**
+     * if (ci < cj) { acc += k } else { acc ^= k }. Every fourth step compares the accumulator instead, which cannot be
+     * decided.
+     */
+    private void branchStep(int step)
+    {
+        BranchInstruction branch;
+        if (step % 4 == 3) {
+            instList.append(new LLOAD(ACCUMULATOR));
+            instList.append(new LCONST(0));
+            instList.append(new LCMP());
+            branch = new IFGE(null);
+        } else {
+            loadConstantLocal();
+            loadConstantLocal();
+            branch = new IF_ICMPGE(null);
+        }
+        instList.append(branch);
+
+        long k = random.nextInt(1 << 20);
+        instList.append(new LLOAD(ACCUMULATOR));
+        instList.append(new PUSH(cpgen, k));
+        instList.append(new LADD());
+        instList.append(new LSTORE(ACCUMULATOR));
+        GOTO skip = new GOTO(null);
+        instList.append(skip);
+
+        InstructionHandle otherwise = instList.append(new LLOAD(ACCUMULATOR));
+        instList.append(new PUSH(cpgen, k));
+        instList.append(new LXOR());
+        instList.append(new LSTORE(ACCUMULATOR));
+        branch.setTarget(otherwise);
+        skip.setTarget(instList.append(new NOP()));
+    }
+
+    /**
+     * for (i = 0; i < n; i++) { temp = (ci op cj) op ck; acc = acc * 31 + (temp ^ i) }
+     */
+    private void loopStep()
+    {
+        instList.append(new ICONST(0));
+        instList.append(new ISTORE(COUNTER));
+        InstructionHandle head = instList.append(new ILOAD(COUNTER));
+        instList.append(new PUSH(cpgen, 16 + random.nextInt(48)));
+        IF_ICMPGE exit = new IF_ICMPGE(null);
+        instList.append(exit);
+
+        loadConstantLocal();
+        loadConstantLocal();
+        intOp();
+        loadConstantLocal();
+        intOp();
+        instList.append(new ILOAD(COUNTER));
+        instList.append(new IXOR());
+        instList.append(new ISTORE(TEMP));
+        mix(TEMP);
+
+        instList.append(new IINC(COUNTER, 1));
+        instList.append(new GOTO(head));
+        exit.setTarget(instList.append(new NOP()));
+    }
+}
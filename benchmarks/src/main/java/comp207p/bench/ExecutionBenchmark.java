@@ -0,0 +1,80 @@
+package comp207p.bench;
+
+import comp207p.main.ConstantFolder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * EXECUTION BENCHMARK
+ * Run time of a generated method before and after optimisation. Both versions of the class are defined in their own
+ * class loader and called through a method handle, so the two variants only differ in their bytecode.
+ *
+ * The HUGE corpus is above the size limit of the JIT compilers (-XX:-DontCompileHugeMethods lifts it), so its numbers
+ * show the interpreter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutionBenchmark {
+    @Param({"ARITHMETIC", "BRANCH", "LOOP", "HUGE"})
+    CorpusGenerator.Kind kind;
+
+    @Param({"200"})
+    int steps;
+
+    @Param({"original", "optimized"})
+    String variant;
+
+    MethodHandle run;
+    long seed = 17;
+
+    private static class Loader extends ClassLoader {
+        Class<?> define(String name, byte[] classFile)
+        {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException, IOException
+    {
+        String name = "Generated" + kind;
+        byte[] classFile = CorpusGenerator.generate(kind, name, steps);
+        if (variant.equals("optimized")) {
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b)
+                {
+                }
+            }));
+            try {
+                ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(classFile), name + ".class");
+                folder.optimize();
+                classFile = folder.getOptimizedBytes();
+            } finally {
+                System.setOut(stdout);
+            }
+        }
+        Class<?> generated = new Loader().define(name, classFile);
+        run = MethodHandles.lookup().findStatic(generated, "run", MethodType.methodType(long.class, long.class));
+    }
+
+    @Benchmark
+    public long run() throws Throwable
+    {
+        return (long) run.invokeExact(seed);
+    }
+}
@@ -0,0 +1,68 @@
+package comp207p.bench;
+
+import comp207p.main.ConstantFolder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * OPTIMIZER BENCHMARK
+ * Throughput of ConstantFolder.optimize() on one generated class: parsing, the analysis and rewriting of every method
+ * and serialising the result. Run with the gc profiler (BenchmarkMain adds it) to get the allocation rate per
+ * operation alongside the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptimizerBenchmark {
+    @Param({"ARITHMETIC", "BRANCH", "LOOP", "HUGE"})
+    CorpusGenerator.Kind kind;
+
+    @Param({"200"})
+    int steps;
+
+    byte[] classFile;
+    PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        classFile = CorpusGenerator.generate(kind, "Generated" + kind, steps);
+        // the folder reports what it does on stdout; keep that out of the benchmark log
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void optimize(Blackhole blackhole) throws IOException
+    {
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(classFile), "Generated" + kind + ".class");
+        folder.optimize();
+        blackhole.consume(folder.getOptimizedBytes());
+    }
+}
@@ -0,0 +1,39 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.InstructionHandle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * BASIC BLOCK
+ * A straight-line run of instructions of a method: control only enters at start and only leaves after end. Blocks
+ * never straddle the boundary of an exception range, so a block is either covered by a handler or it is not.
+ */
+class BasicBlock {
+    final int index;
+    final InstructionHandle start;
+    InstructionHandle end;
+
+    /** Blocks control can flow to after end, by jumping or falling through. */
+    final List<BasicBlock> successors = new ArrayList<>();
+
+    /** Blocks whose successors include this one. */
+    final List<BasicBlock> predecessors = new ArrayList<>();
+
+    /** Entry blocks of the exception handlers covering this block. */
+    final List<BasicBlock> handlers = new ArrayList<>();
+
+    BasicBlock(int index, InstructionHandle start)
+    {
+        this.index = index;
+        this.start = start;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "B" + index + "[" + start.getPosition() + ".." + end.getPosition() + "]";
+    }
+}
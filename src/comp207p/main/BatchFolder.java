@@ -0,0 +1,369 @@
+package comp207p.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * BATCH FOLDER
+ * Runs the constant folder over every class file of a directory tree or a JAR file in a single JVM. The per-class
+ * work is spread over a work-stealing pool; every class gets its own ConstantFolder, so the evaluation state
+ * (the abstract Frame) is never shared between workers.
+ *
+ * When both the input and the output are JAR files the JarRewriter streams the input into the output archive instead.
+ *
+ * With --cache, results are looked up in and stored to a ClassCache directory, which may be shared between runs and
+ * between processes. With --metrics, the Metrics of every optimised class are written to a JSON file at the end.
+ * With --shared-fields, the FieldConstants of all input classes are indexed first, so that constant static fields are
+ * also folded into the other classes of the input.
+ *
+ * Usage: BatchFolder [--cache <directory>] [--cache-size <MB>] [--metrics <file.json>] [--shared-fields]
+ *                    <input directory | input.jar> <output directory | output.jar> [threads]
+ */
+public class BatchFolder {
+    /** Below this many classes a task is not split any further. */
+    private static final int SPLIT_THRESHOLD = 4;
+
+    private final ForkJoinPool pool;
+    private ClassCache cache = null;
+    private FieldConstants fields = null;
+
+    private final AtomicInteger optimizedCount = new AtomicInteger();
+    private final AtomicInteger unchangedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    public BatchFolder(int parallelism)
+    {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Makes the batch look up and store optimisation results in a cache.
+     * @param cache cache to use, or null to optimise every class
+     */
+    public void setCache(ClassCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Makes every class of the batch fold the static fields of a shared index.
+     * @param fields index built by indexFields, or null to index every class on its own
+     */
+    public void setFieldConstants(FieldConstants fields)
+    {
+        this.fields = fields;
+    }
+
+    public int getOptimizedCount()
+    {
+        return optimizedCount.get();
+    }
+
+    public int getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    /**
+     * A single class file to optimise, together with the path it should be written to relative to the output
+     * directory.
+     */
+    private interface ClassSource {
+        String relativePath();
+
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * BATCH TASK
+     * Splits the list of classes in half until it is small enough, then optimises the classes one after another.
+     * Idle workers steal the unsplit halves of busy ones.
+     */
+    private class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ClassSource> sources;
+        private final int from;
+        private final int to;
+        private final File outputDir;
+
+        BatchTask(List<ClassSource> sources, int from, int to, File outputDir)
+        {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+            this.outputDir = outputDir;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= SPLIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    optimizeOne(sources.get(i), outputDir);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new BatchTask(sources, from, middle, outputDir), new BatchTask(sources, middle, to, outputDir));
+        }
+    }
+
+    /**
+     * Optimises one class and writes it below the output directory. If the class cannot be optimised the original
+     * bytes are written instead so that the output tree stays complete. A class whose path would lead out of the
+     * output directory, such as a JAR entry named ../x.class, is not written at all and counts as failed.
+     */
+    private void optimizeOne(ClassSource source, File outputDir)
+    {
+        Path root = outputDir.toPath().toAbsolutePath().normalize();
+        Path resolved = root.resolve(source.relativePath()).normalize();
+        if (!resolved.startsWith(root) || resolved.equals(root)) {
+            System.err.println("Refused to write " + source.relativePath() + " outside of " + outputDir);
+            failedCount.incrementAndGet();
+            return;
+        }
+        File target = resolved.toFile();
+        byte[] original = null;
+        try {
+            try (InputStream in = source.open()) {
+                original = readFully(in);
+            }
+            byte[] result = cache != null ? cache.optimizeClass(original, source.relativePath(), fields)
+                    : ConstantFolder.optimizeClass(original, source.relativePath(), fields);
+            if (result != null) {
+                writeFile(target, result);
+                optimizedCount.incrementAndGet();
+            } else {
+                writeFile(target, original);
+                unchangedCount.incrementAndGet();
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to optimise " + source.relativePath());
+            e.printStackTrace();
+            failedCount.incrementAndGet();
+            if (original != null) {
+                try {
+                    writeFile(target, original);
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
+    }
+
+    /**
+     * Optimises every class file found in the input, which may be a directory or a JAR file.
+     * @param input directory tree or JAR file
+     * @param output directory the optimised classes are written to, keeping their relative paths, or a JAR file if
+     *               the input is one too
+     * @return number of classes that were processed
+     */
+    public int run(File input, File output) throws IOException
+    {
+        if (input.isDirectory()) {
+            return runAll(collectDirectory(input), output);
+        }
+        if (output.getName().endsWith(".jar")) {
+            JarRewriter rewriter = new JarRewriter(pool, cache, fields);
+            int entries = rewriter.rewrite(input, output);
+            failedCount.addAndGet(rewriter.getFailedCount());
+            return entries;
+        }
+        try (ZipFile jar = new ZipFile(input)) {
+            return runAll(collectJar(jar), output);
+        }
+    }
+
+    /**
+     * Indexes the static fields of every class in the input, which may be a directory or a JAR file. Classes that
+     * cannot be parsed are left out of the index.
+     * @return the index, for setFieldConstants
+     */
+    public FieldConstants indexFields(File input) throws IOException
+    {
+        FieldConstants index = new FieldConstants();
+        if (input.isDirectory()) {
+            indexAll(collectDirectory(input), index);
+        } else {
+            try (ZipFile jar = new ZipFile(input)) {
+                indexAll(collectJar(jar), index);
+            }
+        }
+        return index;
+    }
+
+    private void indexAll(List<ClassSource> sources, FieldConstants index)
+    {
+        pool.submit(() -> sources.parallelStream().forEach(source -> {
+            try (InputStream in = source.open()) {
+                index.addClassFile(readFully(in), source.relativePath());
+            } catch (Exception e) {
+                System.err.println("Failed to index " + source.relativePath() + ": " + e);
+            }
+        })).join();
+    }
+
+    private int runAll(List<ClassSource> sources, File outputDir)
+    {
+        long start = System.nanoTime();
+        pool.invoke(new BatchTask(sources, 0, sources.size(), outputDir));
+        long elapsed = System.nanoTime() - start;
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("Optimised %d classes (%d unchanged, %d failed) in %.3f s, %.1f classes/sec using %d threads%n",
+                optimizedCount.get(), unchangedCount.get(), failedCount.get(), seconds,
+                seconds > 0 ? sources.size() / seconds : 0.0, pool.getParallelism());
+        return sources.size();
+    }
+
+    private List<ClassSource> collectDirectory(File root) throws IOException
+    {
+        final Path rootPath = root.toPath();
+        List<ClassSource> sources = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(rootPath)) {
+            paths.filter(p -> p.toString().endsWith(".class") && Files.isRegularFile(p)).forEach(p -> {
+                final String relative = rootPath.relativize(p).toString();
+                sources.add(new ClassSource() {
+                    public String relativePath()
+                    {
+                        return relative;
+                    }
+
+                    public InputStream open() throws IOException
+                    {
+                        return Files.newInputStream(p);
+                    }
+                });
+            });
+        }
+        return sources;
+    }
+
+    private List<ClassSource> collectJar(final ZipFile jar)
+    {
+        List<ClassSource> sources = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+                continue;
+            }
+            sources.add(new ClassSource() {
+                public String relativePath()
+                {
+                    return entry.getName();
+                }
+
+                public InputStream open() throws IOException
+                {
+                    return jar.getInputStream(entry);
+                }
+            });
+        }
+        return sources;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 1024));
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeFile(File target, byte[] bytes) throws IOException
+    {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        Files.write(target.toPath(), bytes);
+    }
+
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String cacheDir = null;
+        String metricsFile = null;
+        long cacheMegabytes = ClassCache.DEFAULT_MEGABYTES;
+        boolean sharedFields = false;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+                cacheMegabytes = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--metrics") && i + 1 < args.length) {
+                metricsFile = args[++i];
+            } else if (args[i].equals("--shared-fields")) {
+                sharedFields = true;
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 2) {
+            System.err.println("Usage: BatchFolder [--cache <directory>] [--cache-size <MB>] [--metrics <file.json>] "
+                    + "[--shared-fields] <input directory | input.jar> <output directory | output.jar> [threads]");
+            System.exit(2);
+        }
+        int threads = positional.size() > 2 ? Integer.parseInt(positional.get(2))
+                : Runtime.getRuntime().availableProcessors();
+
+        if (metricsFile != null) {
+            Metrics.startCollecting();
+        }
+        BatchFolder batch = new BatchFolder(threads);
+        String configuration = ConstantFolder.configuration();
+        if (sharedFields) {
+            // the output of a class now depends on the fields of the others, so the cache must too
+            FieldConstants index = batch.indexFields(new File(positional.get(0)));
+            batch.setFieldConstants(index);
+            configuration += ";fields=" + index.fingerprint();
+        }
+        ClassCache cache = null;
+        if (cacheDir != null) {
+            cache = new ClassCache(new File(cacheDir), cacheMegabytes * 1024 * 1024, configuration);
+            batch.setCache(cache);
+        }
+        try {
+            batch.run(new File(positional.get(0)), new File(positional.get(1)));
+        } finally {
+            batch.shutdown();
+        }
+        if (cache != null) {
+            System.out.println(cache);
+        }
+        if (metricsFile != null) {
+            try (Writer out = Files.newBufferedWriter(new File(metricsFile).toPath(), StandardCharsets.UTF_8)) {
+                Metrics.writeJson(out);
+            }
+        }
+        if (batch.getFailedCount() > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantDouble;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantLong;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.ConstantString;
+
+import java.util.BitSet;
+
+
+/**
+ * BYTECODE PREFILTER
+ * Decides from the raw bytes of a method, without building an InstructionList, whether the folder could change it at
+ * all. Most methods never compute anything from constants, and for those building the handles, the MethodGen and the
+ * regenerated method is pure waste.
+ *
+ * The scan walks the instructions once and keeps the number of stack slots on top that were pushed by constants since
+ * the last other instruction, much like foldBlock's producers. A method may fold if
+ * - an operation, conditional branch or switch finds all its operands pushed by constants;
+ * - a static call the PureCalls may evaluate finds all its arguments pushed by constants;
+ * - a GETSTATIC reads a field the FieldConstants index knows;
+ * - String.length, String.hashCode or String.equals, or an invokedynamic concatenation, finds its operands pushed by
+ *   constants, or a StringBuilder chain only ever appended constants when its toString is called;
+ * - a constant is stored to a local that is loaded or incremented anywhere in the method, so that the load may be
+ *   folded or a loop over it evaluated;
+ * - the Peephole has something to do: an LDC with a shorter encoding, a store followed by a load of the same local, a
+ *   multiplication or division by a constant, or a jump to the next instruction.
+ * The answer errs on the side of "may fold": jump targets, for instance, are not taken into account.
+ *
+ * Dead stores that exist without any folding are left in place in the methods this filter rejects.
+ */
+final class BytecodePrefilter {
+    /** Length of every instruction of fixed length. */
+    private static final byte[] LENGTHS = new byte[256];
+
+    static {
+        for (int opcode = 0; opcode < 256; opcode++) {
+            LENGTHS[opcode] = 1;
+        }
+        lengths(2, Const.BIPUSH, Const.LDC, Const.ILOAD, Const.LLOAD, Const.FLOAD, Const.DLOAD, Const.ALOAD,
+                Const.ISTORE, Const.LSTORE, Const.FSTORE, Const.DSTORE, Const.ASTORE, Const.RET, Const.NEWARRAY);
+        lengths(3, Const.SIPUSH, Const.LDC_W, Const.LDC2_W, Const.IINC, Const.GETSTATIC, Const.PUTSTATIC,
+                Const.GETFIELD, Const.PUTFIELD, Const.INVOKEVIRTUAL, Const.INVOKESPECIAL, Const.INVOKESTATIC,
+                Const.NEW, Const.ANEWARRAY, Const.CHECKCAST, Const.INSTANCEOF, Const.IFNULL, Const.IFNONNULL);
+        for (int opcode = Const.IFEQ; opcode <= Const.JSR; opcode++) {
+            LENGTHS[opcode] = 3;
+        }
+        lengths(4, Const.MULTIANEWARRAY);
+        lengths(5, Const.INVOKEINTERFACE, Const.INVOKEDYNAMIC, Const.GOTO_W, Const.JSR_W);
+    }
+
+    private static void lengths(int length, short... opcodes)
+    {
+        for (short opcode : opcodes) {
+            LENGTHS[opcode] = (byte) length;
+        }
+    }
+
+    private BytecodePrefilter()
+    {
+    }
+
+    /**
+     * Scans the code of a method.
+     * @param cp constant pool the code refers to
+     * @param calls the calls and fields the folder may evaluate
+     * @return false if the folder would leave the method as it is
+     */
+    static boolean scan(Code code, ConstantPool cp, PureCalls calls)
+    {
+        byte[] bytes = code.getCode();
+        boolean mayFold = false;
+        // slots on top of the stack pushed by constants
+        int constants = 0;
+        BitSet constantLocals = null;
+        BitSet loadedLocals = new BitSet();
+        // value of the last int or long constant pushed, if the top of the stack is one
+        boolean integerOnTop = false;
+        long lastValue = 0;
+        boolean subroutines = false;
+        // local stored by the previous instruction, or -1
+        int storedLocal = -1;
+        int storedKind = -1;
+        // whether the builder on top of the stack was created and appended to with constants only
+        boolean builderChain = false;
+
+        int pc = 0;
+        while (pc < bytes.length) {
+            int opcode = bytes[pc] & 0xff;
+            int length = length(bytes, pc);
+            int pushed = 0;
+            boolean integer = false;
+            int local = -1;
+            int kind = -1;
+            boolean builder = false;
+
+            if (opcode >= Const.ICONST_M1 && opcode <= Const.ICONST_5) {
+                pushed = 1;
+                integer = true;
+                lastValue = opcode - Const.ICONST_0;
+            } else if (opcode == Const.LCONST_0 || opcode == Const.LCONST_1) {
+                pushed = 2;
+                integer = true;
+                lastValue = opcode - Const.LCONST_0;
+            } else if (opcode >= Const.FCONST_0 && opcode <= Const.DCONST_1) {
+                pushed = opcode >= Const.DCONST_0 ? 2 : 1;
+            } else if (opcode == Const.BIPUSH) {
+                pushed = 1;
+                integer = true;
+                lastValue = bytes[pc + 1];
+            } else if (opcode == Const.SIPUSH) {
+                pushed = 1;
+                integer = true;
+                lastValue = s2(bytes, pc + 1);
+            } else if (opcode == Const.LDC || opcode == Const.LDC_W || opcode == Const.LDC2_W) {
+                int index = opcode == Const.LDC ? bytes[pc + 1] & 0xff : u2(bytes, pc + 1);
+                Constant constant = cp.getConstant(index);
+                pushed = numberSize(constant);
+                if (pushed > 0 && hasShorterEncoding(constant)) {
+                    mayFold = true;
+                }
+                if (constant instanceof ConstantString) {
+                    pushed = 1;
+                }
+                if (constant instanceof ConstantInteger) {
+                    integer = true;
+                    lastValue = ((ConstantInteger) constant).getBytes();
+                } else if (constant instanceof ConstantLong) {
+                    integer = true;
+                    lastValue = ((ConstantLong) constant).getBytes();
+                }
+            } else if (Evaluator.isFoldable(opcode)) {
+                if (constants >= Evaluator.operandSlots(opcode)
+                        || (integerOnTop && isStrengthReduced(opcode, lastValue))) {
+                    mayFold = true;
+                }
+            } else if (opcode >= Const.IFEQ && opcode <= Const.IF_ICMPLE) {
+                if (constants >= (opcode <= Const.IFLE ? 1 : 2) || s2(bytes, pc + 1) == length) {
+                    mayFold = true;
+                }
+            } else if (opcode == Const.IFNULL || opcode == Const.IFNONNULL) {
+                // a constant reference is a string, which is never null
+                if (constants >= 1 || s2(bytes, pc + 1) == length) {
+                    mayFold = true;
+                }
+            } else if (opcode == Const.GOTO || opcode == Const.IF_ACMPEQ || opcode == Const.IF_ACMPNE) {
+                if (s2(bytes, pc + 1) == length) {
+                    mayFold = true;
+                }
+            } else if (opcode == Const.GOTO_W) {
+                if (s4(bytes, pc + 1) == length) {
+                    mayFold = true;
+                }
+            } else if (opcode == Const.TABLESWITCH || opcode == Const.LOOKUPSWITCH) {
+                if (constants >= 1) {
+                    mayFold = true;
+                }
+            } else if (opcode == Const.NEW) {
+                builder = isBuilderClass(((ConstantClass) cp.getConstant(u2(bytes, pc + 1))).getBytes(cp));
+            } else if (opcode == Const.DUP) {
+                builder = builderChain;
+            } else if (opcode == Const.INVOKEVIRTUAL) {
+                ConstantCP method = (ConstantCP) cp.getConstant(u2(bytes, pc + 1));
+                String owner = method.getClass(cp);
+                String name = ((ConstantNameAndType) cp.getConstant(method.getNameAndTypeIndex())).getName(cp);
+                if (owner.equals("java.lang.String")) {
+                    if (constants >= (name.equals("equals") ? 2 : 1)
+                            && (name.equals("length") || name.equals("hashCode") || name.equals("equals"))) {
+                        mayFold = true;
+                    }
+                } else if (isBuilderClass(owner.replace('.', '/')) && builderChain) {
+                    if (name.equals("toString")) {
+                        mayFold = true;
+                    }
+                    builder = name.equals("append") && constants >= argumentSlots(signature(method, cp));
+                }
+            } else if (opcode == Const.INVOKEDYNAMIC) {
+                ConstantCP site = (ConstantCP) cp.getConstant(u2(bytes, pc + 1));
+                ConstantNameAndType nameAndType = (ConstantNameAndType) cp.getConstant(site.getNameAndTypeIndex());
+                String name = nameAndType.getName(cp);
+                if ((name.equals("makeConcat") || name.equals("makeConcatWithConstants"))
+                        && constants >= argumentSlots(nameAndType.getSignature(cp))) {
+                    mayFold = true;
+                }
+            } else if (opcode == Const.INVOKESTATIC || opcode == Const.INVOKESPECIAL) {
+                ConstantCP method = (ConstantCP) cp.getConstant(u2(bytes, pc + 1));
+                if (opcode == Const.INVOKESPECIAL && builderChain) {
+                    // the constructor of a new builder, which takes no argument or a constant string
+                    builder = isBuilderClass(method.getClass(cp).replace('.', '/'))
+                            && constants >= argumentSlots(signature(method, cp));
+                }
+                if (opcode == Const.INVOKESTATIC && calls.mayEvaluate(method.getClass(cp))) {
+                    String signature = signature(method, cp);
+                    if (signature.charAt(signature.length() - 1) != 'V'
+                            && constants >= argumentSlots(signature)) {
+                        mayFold = true;
+                    }
+                }
+            } else if (opcode == Const.GETSTATIC) {
+                ConstantCP field = (ConstantCP) cp.getConstant(u2(bytes, pc + 1));
+                ConstantNameAndType nameAndType = (ConstantNameAndType) cp.getConstant(field.getNameAndTypeIndex());
+                if (calls.knowsField(field.getClass(cp), nameAndType.getName(cp), nameAndType.getSignature(cp))) {
+                    mayFold = true;
+                }
+            } else if (opcode == Const.JSR || opcode == Const.JSR_W || opcode == Const.RET
+                    || (opcode == Const.WIDE && (bytes[pc + 1] & 0xff) == Const.RET)) {
+                subroutines = true;
+            } else if (opcode == Const.IINC || (opcode == Const.WIDE && (bytes[pc + 1] & 0xff) == Const.IINC)) {
+                loadedLocals.set(opcode == Const.IINC ? bytes[pc + 1] & 0xff : u2(bytes, pc + 2));
+            } else {
+                // loads and stores of locals; kinds 0 to 4 are the loads of int, long, float, double and reference,
+                // 5 to 9 the stores
+                int base = opcode == Const.WIDE ? bytes[pc + 1] & 0xff : opcode;
+                if (base >= Const.ILOAD && base <= Const.ALOAD) {
+                    kind = base - Const.ILOAD;
+                    local = opcode == Const.WIDE ? u2(bytes, pc + 2) : bytes[pc + 1] & 0xff;
+                } else if (base >= Const.ILOAD_0 && base <= Const.ALOAD_3) {
+                    kind = (base - Const.ILOAD_0) / 4;
+                    local = (base - Const.ILOAD_0) % 4;
+                } else if (base >= Const.ISTORE && base <= Const.ASTORE) {
+                    kind = 5 + base - Const.ISTORE;
+                    local = opcode == Const.WIDE ? u2(bytes, pc + 2) : bytes[pc + 1] & 0xff;
+                } else if (base >= Const.ISTORE_0 && base <= Const.ASTORE_3) {
+                    kind = 5 + (base - Const.ISTORE_0) / 4;
+                    local = (base - Const.ISTORE_0) % 4;
+                }
+                if (kind >= 0 && kind < 5) {
+                    loadedLocals.set(local);
+                    if (storedLocal == local && storedKind == kind) {
+                        mayFold = true;
+                    }
+                } else if (kind >= 5 && constants > 0) {
+                    if (constantLocals == null) {
+                        constantLocals = new BitSet();
+                    }
+                    constantLocals.set(local);
+                }
+            }
+
+            // a method that may fold is looked at instruction by instruction anyway
+            if (mayFold && !subroutines) {
+                return true;
+            }
+            constants = pushed > 0 ? constants + pushed : 0;
+            // constants pushed for the builder keep its chain going until the call that takes them
+            builderChain = builder || (pushed > 0 && builderChain);
+            integerOnTop = integer;
+            storedLocal = kind >= 5 ? local : -1;
+            storedKind = kind - 5;
+            pc += length;
+        }
+        if (subroutines) {
+            // the folder skips these methods
+            return false;
+        }
+        return mayFold || (constantLocals != null && constantLocals.intersects(loadedLocals));
+    }
+
+    private static boolean isBuilderClass(String internalName)
+    {
+        return internalName.equals("java/lang/StringBuilder") || internalName.equals("java/lang/StringBuffer");
+    }
+
+    /**
+     * Length in bytes of the instruction at pc.
+     */
+    private static int length(byte[] bytes, int pc)
+    {
+        int opcode = bytes[pc] & 0xff;
+        switch (opcode) {
+            case Const.TABLESWITCH: {
+                int operands = (pc + 4) & ~3;
+                int low = s4(bytes, operands + 4);
+                int high = s4(bytes, operands + 8);
+                return operands + 12 + 4 * (high - low + 1) - pc;
+            }
+            case Const.LOOKUPSWITCH: {
+                int operands = (pc + 4) & ~3;
+                return operands + 8 + 8 * s4(bytes, operands + 4) - pc;
+            }
+            case Const.WIDE:
+                return (bytes[pc + 1] & 0xff) == Const.IINC ? 6 : 4;
+            default:
+                return LENGTHS[opcode];
+        }
+    }
+
+    /**
+     * Stack slots taken by the value of a numeric constant, 0 for other constants.
+     */
+    private static int numberSize(Constant constant)
+    {
+        if (constant instanceof ConstantInteger || constant instanceof ConstantFloat) {
+            return 1;
+        }
+        if (constant instanceof ConstantLong || constant instanceof ConstantDouble) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Whether makeConstant would push a numeric constant without an LDC.
+     */
+    private static boolean hasShorterEncoding(Constant constant)
+    {
+        if (constant instanceof ConstantInteger) {
+            int value = ((ConstantInteger) constant).getBytes();
+            return value == (short) value;
+        }
+        if (constant instanceof ConstantFloat) {
+            int bits = Float.floatToRawIntBits(((ConstantFloat) constant).getBytes());
+            return bits == Float.floatToRawIntBits(0.0f) || bits == Float.floatToRawIntBits(1.0f)
+                    || bits == Float.floatToRawIntBits(2.0f);
+        }
+        if (constant instanceof ConstantLong) {
+            long value = ((ConstantLong) constant).getBytes();
+            return value == 0 || value == 1;
+        }
+        long bits = Double.doubleToRawLongBits(((ConstantDouble) constant).getBytes());
+        return bits == Double.doubleToRawLongBits(0.0) || bits == Double.doubleToRawLongBits(1.0);
+    }
+
+    private static String signature(ConstantCP method, ConstantPool cp)
+    {
+        return ((ConstantNameAndType) cp.getConstant(method.getNameAndTypeIndex())).getSignature(cp);
+    }
+
+    /**
+     * Stack slots taken by the arguments of a method descriptor.
+     */
+    static int argumentSlots(String signature)
+    {
+        int slots = 0;
+        int i = 1;
+        while (signature.charAt(i) != ')') {
+            char c = signature.charAt(i);
+            if (c == 'J' || c == 'D') {
+                slots += 2;
+                i++;
+                continue;
+            }
+            while (c == '[') {
+                c = signature.charAt(++i);
+            }
+            if (c == 'L') {
+                i = signature.indexOf(';', i);
+            }
+            slots++;
+            i++;
+        }
+        return slots;
+    }
+
+    /**
+     * Whether the Peephole rewrites a multiplication or division by the given constant.
+     */
+    private static boolean isStrengthReduced(int opcode, long value)
+    {
+        if (opcode != Const.IMUL && opcode != Const.LMUL && opcode != Const.IDIV && opcode != Const.LDIV) {
+            return false;
+        }
+        if (value == 1 || value == -1) {
+            return true;
+        }
+        boolean multiply = opcode == Const.IMUL || opcode == Const.LMUL;
+        return multiply && (opcode == Const.IMUL ? Integer.bitCount((int) value) : Long.bitCount(value)) == 1;
+    }
+
+    private static int u2(byte[] bytes, int at)
+    {
+        return ((bytes[at] & 0xff) << 8) | (bytes[at + 1] & 0xff);
+    }
+
+    private static int s2(byte[] bytes, int at)
+    {
+        return (short) u2(bytes, at);
+    }
+
+    private static int s4(byte[] bytes, int at)
+    {
+        return ((bytes[at] & 0xff) << 24) | ((bytes[at + 1] & 0xff) << 16) | ((bytes[at + 2] & 0xff) << 8)
+                | (bytes[at + 3] & 0xff);
+    }
+}
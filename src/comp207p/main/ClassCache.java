@@ -0,0 +1,293 @@
+package comp207p.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+
+/**
+ * CLASS CACHE
+ * Content-addressed on-disk cache of optimisation results. The key of a class is the SHA-256 hash of the optimiser
+ * version, the configuration and the bytes of the input class file, so a hit can be returned without parsing the class
+ * at all. Entries are stored as cacheDir/ab/abcdef..., where ab are the first two hex digits of the key.
+ *
+ * Every entry starts with one byte telling whether the class was changed; unchanged classes store nothing else, so
+ * they cost almost no space but still skip the optimiser on the next run.
+ *
+ * Entries are written to a temporary file in the cache directory and moved into place atomically, so several build
+ * processes can share one cache: a reader either sees a complete entry or none, and two writers of the same key write
+ * the same bytes. The cache is kept below a size bound by deleting the least recently used entries; a hit refreshes
+ * the modification time of its entry, which is what the eviction orders by.
+ */
+public class ClassCache {
+    /** Size bound of a cache when the user gives none, in megabytes. */
+    public static final long DEFAULT_MEGABYTES = 512;
+
+    private static final byte UNCHANGED = 0;
+    private static final byte OPTIMIZED = 1;
+
+    /** Eviction deletes entries until the cache is this fraction of its bound, so it does not run on every store. */
+    private static final double EVICT_TO = 0.9;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final byte[] salt;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Approximate size of the entries; other processes sharing the directory are only seen when evicting. */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Opens (and if needed creates) a cache directory.
+     * @param directory directory the entries are stored in
+     * @param maxBytes bound on the total size of the entries
+     * @param configuration description of the optimiser options; results of different configurations never mix
+     */
+    public ClassCache(File directory, long maxBytes, String configuration) throws IOException
+    {
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+        this.salt = (ConstantFolder.VERSION + '\0' + configuration + '\0').getBytes(StandardCharsets.UTF_8);
+        Files.createDirectories(this.directory);
+        this.size.set(totalSize(listEntries()));
+    }
+
+    /**
+     * Optimises a class, or returns the result stored for the same input.
+     * @return the optimised class file, or null if there was nothing to fold, like ConstantFolder.optimizeClass
+     */
+    public byte[] optimizeClass(byte[] classFile, String fileName) throws IOException
+    {
+        return optimizeClass(classFile, fileName, null);
+    }
+
+    /**
+     * Optimises a class with a shared index of static fields, or returns the result stored for the same input. The
+     * configuration of the cache must include the fingerprint of the index.
+     */
+    public byte[] optimizeClass(byte[] classFile, String fileName, FieldConstants fields) throws IOException
+    {
+        String key = key(classFile);
+        Path entry = entryPath(key);
+        byte[] stored = read(entry);
+        if (stored != null) {
+            hits.incrementAndGet();
+            return stored[0] == UNCHANGED ? null : Arrays.copyOfRange(stored, 1, stored.length);
+        }
+        misses.incrementAndGet();
+
+        byte[] result = ConstantFolder.optimizeClass(classFile, fileName, fields);
+        store(entry, result);
+        return result;
+    }
+
+    String key(byte[] classFile)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(salt);
+        digest.update(classFile);
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] hash)
+    {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(hash[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    private Path entryPath(String key)
+    {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * Reads an entry and marks it as recently used.
+     * @return contents of the entry, or null if there is none or it is not a valid entry
+     */
+    private byte[] read(Path entry)
+    {
+        byte[] stored;
+        try {
+            stored = Files.readAllBytes(entry);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (stored.length == 0 || (stored[0] != UNCHANGED && stored[0] != OPTIMIZED)) {
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // evicted by another process in the meantime; the bytes that were read are still valid
+        }
+        return stored;
+    }
+
+    private void store(Path entry, byte[] result)
+    {
+        int length = result == null ? 1 : result.length + 1;
+        byte[] contents = new byte[length];
+        if (result == null) {
+            contents[0] = UNCHANGED;
+        } else {
+            contents[0] = OPTIMIZED;
+            System.arraycopy(result, 0, contents, 1, result.length);
+        }
+
+        Path temporary = null;
+        try {
+            Files.createDirectories(entry.getParent());
+            temporary = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp");
+            Files.write(temporary, contents);
+            try {
+                Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+        } catch (IOException e) {
+            // a cache that cannot be written only costs time
+            e.printStackTrace();
+            return;
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
+
+        if (size.addAndGet(length) > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is well below its bound. The directory is listed again
+     * so that entries stored by other processes are accounted for.
+     */
+    private synchronized void evict()
+    {
+        if (size.get() <= maxBytes) {
+            return;
+        }
+        List<CachedFile> entries;
+        try {
+            entries = listEntries();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        entries.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+
+        long total = totalSize(entries);
+        long target = (long) (maxBytes * EVICT_TO);
+        for (CachedFile file : entries) {
+            if (total <= target) {
+                break;
+            }
+            try {
+                if (Files.deleteIfExists(file.path)) {
+                    evictions.incrementAndGet();
+                }
+                total -= file.size;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        size.set(total);
+    }
+
+    private static class CachedFile {
+        final Path path;
+        final long size;
+        final long lastUsed;
+
+        CachedFile(Path path, long size, long lastUsed)
+        {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private List<CachedFile> listEntries() throws IOException
+    {
+        List<CachedFile> entries = new ArrayList<>();
+        // entries deleted by another process while walking show up as unchecked exceptions
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            paths.filter(p -> p.getNameCount() == directory.getNameCount() + 2 && !p.toString().endsWith(".tmp"))
+                    .forEach(p -> {
+                        File file = p.toFile();
+                        if (file.isFile()) {
+                            entries.add(new CachedFile(p, file.length(), file.lastModified()));
+                        }
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return entries;
+    }
+
+    private static long totalSize(List<CachedFile> entries)
+    {
+        long total = 0;
+        for (CachedFile entry : entries) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("cache %s: %d hits, %d misses, %d evicted, %.1f MB", directory, hits.get(), misses.get(),
+                evictions.get(), size.get() / (1024.0 * 1024.0));
+    }
+}
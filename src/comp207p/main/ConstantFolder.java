@@ -1,33 +1,70 @@
 package comp207p.main;
 
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.BootstrapMethods;
 import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.Code;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
+import org.apache.bcel.classfile.StackMap;
 import org.apache.bcel.generic.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Stack;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 
 public class ConstantFolder {
+    /** Identifies the optimiser in cache keys; change it whenever the output for the same input can change. */
+    public static final String VERSION = "20";
+
+    /** Classes with at least this many methods have them optimised in parallel. */
+    static final int PARALLEL_METHODS = Integer.getInteger("comp207p.parallelMethods", 64);
+    /** Methods a parallel worker is given at least, so that copying the constant pool for it pays off. */
+    static final int METHODS_PER_WORKER = 16;
+
     ClassParser parser = null;
     ClassGen gen = null;
 
     JavaClass original = null;
     JavaClass optimized = null;
+    /** Bytes of the optimised class with a compacted constant pool. */
+    byte[] optimizedBytes = null;
+
+    boolean modified = false;
+
+    Metrics.ClassMetrics metrics = null;
+    Metrics.MethodMetrics methodMetrics = null;
+    /** Frames of the method optimizeMethod returned last, null if the class version does not need them. */
+    StackMapBuilder stackMap = null;
 
-    Stack<Number> constantStack = null;
-    HashMap<Integer, Number> vars = null;
+    /** Copy of the constant pool of the class that a worker adds the constants of its methods to. */
+    ConstantPoolGen workerPool = null;
+
+    /** Static fields with known values; when null only the fields of this class are indexed. */
+    FieldConstants fields = null;
+    /** Whether methods in which the BytecodePrefilter finds nothing to fold are skipped; tests turn it off. */
+    boolean prefilter = true;
+    /** Methods a class needs to be optimised in parallel; tests raise it to compare with a sequential run. */
+    int parallelMethods = PARALLEL_METHODS;
+
+    Frame frame = new Frame();
+    ConstantPropagation propagation = new ConstantPropagation();
+    LoopOptimizer loopOptimizer = new LoopOptimizer();
+    InstructionHandle[] producers = new InstructionHandle[16];
+    PassManager passes = createPasses();
 
     public ConstantFolder(String classFilePath)
     {
         try {
-            System.out.println(classFilePath);
+            if (Trace.INFO) {
+                Trace.log(classFilePath);
+            }
             this.parser = new ClassParser(classFilePath);
             this.original = this.parser.parse();
             this.gen = new ClassGen(this.original);
@@ -36,16 +73,69 @@ public class ConstantFolder {
         }
     }
 
+    /**
+     * Parses the class from an already opened stream, e.g. an entry of a JAR file. The file name is only used by the
+     * parser for error messages.
+     * @param in stream positioned at the start of the class file
+     * @param fileName name of the class file the stream was opened from
+     */
+    public ConstantFolder(InputStream in, String fileName) throws IOException
+    {
+        this.parser = new ClassParser(in, fileName);
+        this.original = this.parser.parse();
+        this.gen = new ClassGen(this.original);
+    }
+
+    /**
+     * Creates a worker that optimises methods of a class for the folder of the class, with its own evaluation state
+     * and its own copy of the constant pool, so that any number of workers can run at once.
+     * @param calls evaluator of the calls of the class, owned by the worker
+     */
+    private ConstantFolder(JavaClass original, PureCalls calls)
+    {
+        this.original = original;
+        this.metrics = new Metrics.ClassMetrics(original.getClassName());
+        this.propagation.calls = calls;
+    }
+
     /**
      * SAFE DELETE INSTRUCTIONS
      * @param handle
      * @param list
      *
      * This method takes an instruction handle that is found within an instruction list and safely deletes it from the
-     * list by remove all references to it from any GOTO instructions in the list.
+     * list. Everything that still refers to it is moved first: jumps go to the following instruction, an exception
+     * range or local variable that ends at it now ends at the previous one.
      */
-    private void deleteInstruction(InstructionHandle handle, InstructionList list)
+    static void deleteInstruction(InstructionHandle handle, InstructionList list)
     {
+        InstructionHandle next = handle.getNext() != null ? handle.getNext() : handle.getPrev();
+        InstructionHandle prev = handle.getPrev() != null ? handle.getPrev() : handle.getNext();
+
+        for (InstructionTargeter targeter : handle.getTargeters()) {
+            if (targeter instanceof CodeExceptionGen) {
+                CodeExceptionGen range = (CodeExceptionGen) targeter;
+                if (range.getStartPC() == handle) {
+                    range.setStartPC(next);
+                }
+                if (range.getEndPC() == handle) {
+                    range.setEndPC(prev);
+                }
+                if (range.getHandlerPC() == handle) {
+                    range.setHandlerPC(next);
+                }
+            } else if (targeter instanceof LocalVariableGen) {
+                LocalVariableGen variable = (LocalVariableGen) targeter;
+                if (variable.getStart() == handle) {
+                    variable.setStart(next);
+                }
+                if (variable.getEnd() == handle) {
+                    variable.setEnd(prev);
+                }
+            } else {
+                targeter.updateTarget(handle, next);
+            }
+        }
         try {
             list.delete(handle);
         } catch (TargetLostException e) {
@@ -60,489 +150,709 @@ public class ConstantFolder {
     }
 
     /**
-     * PERFORM LOGIC
-     * Evaluate logical expressions. Given a logical comparison instruction, this method will evaluate it based on
-     * the two parameters from the top of the stack and return the result of the comparison
-     * @param handle the handle of the logic
-     * @return result
+     * Inserts an instruction in front of a handle so that it runs whenever the handle would have: jumps to the handle
+     * and exception ranges starting at it are moved to the new instruction.
+     * @return handle of the inserted instruction
      */
-    private boolean performLogOp(InstructionHandle handle)
+    static InstructionHandle insertBefore(InstructionHandle handle, Instruction inst, InstructionList list)
     {
-        Instruction inst = handle.getInstruction();
-        if (inst instanceof IFLE) {
-            Number value1 = constantStack.pop();
-            return (Integer) value1 <= 0;
-        }
-
-        Number x = constantStack.pop();
-        Number y = constantStack.pop();
-
-        // identify what kind of operation it is, and then perform the op.
-        boolean result = false;
-        if (inst instanceof IF_ICMPEQ) {
-            if (x.equals(y)) {
-                result = true;
-            }
-        } else if (inst instanceof IF_ICMPGE) {
-            if ((Integer) x >= (Integer) y) {
-                result = true;
-            }
-        } else if (inst instanceof IF_ICMPGT) {
-            if ((Integer) x > (Integer) y) {
-                result = true;
-            }
-        } else if (inst instanceof IF_ICMPLE) {
-            if ((Integer) x <= (Integer) y) {
-                result = true;
-            }
-        } else if (inst instanceof IF_ICMPLT) {
-            if ((Integer) x < (Integer) y) {
-                result = true;
-            }
-        } else if (inst instanceof IF_ICMPNE) {
-            if (!x.equals(y)) {
-                result = true;
+        InstructionHandle inserted = list.insert(handle, inst);
+        for (InstructionTargeter targeter : handle.getTargeters()) {
+            if (targeter instanceof CodeExceptionGen) {
+                CodeExceptionGen range = (CodeExceptionGen) targeter;
+                if (range.getStartPC() == handle) {
+                    range.setStartPC(inserted);
+                }
+                if (range.getHandlerPC() == handle) {
+                    range.setHandlerPC(inserted);
+                }
+            } else if (targeter instanceof LocalVariableGen) {
+                LocalVariableGen variable = (LocalVariableGen) targeter;
+                if (variable.getStart() == handle) {
+                    variable.setStart(inserted);
+                }
+            } else {
+                targeter.updateTarget(handle, inserted);
             }
         }
-        return result;
+        return inserted;
     }
 
     /**
-     * PERFORM ARITHMETIC
-     * Given an arithmetic instruction, this method will take the two operands from the top of the stack and evaluate
-     * the expression. It will place the result onto the stack to replace the operands.
-     * @param handle the handle of the arithmetic instruction
+     * Creates the instruction that pushes the given constant with the smallest encoding: ICONST, BIPUSH or SIPUSH for
+     * small ints and the xCONST instructions for the values they exist for, otherwise an LDC/LDC2_W, adding the value
+     * to the constant pool. Strings are always pushed with an LDC.
+     * @return the instruction, or null if the value is not a known constant
      */
-    private void performArithOp(InstructionHandle handle)
-    {
-        Number x = constantStack.pop();
-        Number y = constantStack.pop();
-
-        // identify what kind of operation it is, and then perform the op.
-        if (handle.getInstruction() instanceof IADD) {
-            Number newValue = y.intValue() + x.intValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof LADD) {
-            Number newValue = y.longValue() + x.longValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof FADD) {
-            Number newValue = y.floatValue() + x.floatValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof DADD) {
-            Number newValue = y.doubleValue() + x.doubleValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof IMUL) {
-            Number newValue = y.intValue() * x.intValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof LMUL) {
-            Number newValue = y.longValue() * x.longValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof FMUL) {
-            Number newValue = y.floatValue() * x.floatValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof DMUL) {
-            Number newValue = y.doubleValue() * x.doubleValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof ISUB) {
-            Number newValue = y.intValue() - x.intValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof LSUB) {
-            Number newValue = y.longValue() - x.longValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof FSUB) {
-            Number newValue = y.floatValue() - x.floatValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof DSUB) {
-            Number newValue = y.doubleValue() - x.doubleValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof IDIV) {
-            Number newValue = y.intValue() / x.intValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof LDIV) {
-            Number newValue = y.longValue() / x.longValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof FDIV) {
-            Number newValue = y.floatValue() / x.floatValue();
-            constantStack.push(newValue);
-        } else if (handle.getInstruction() instanceof DDIV) {
-            Number newValue = y.doubleValue() / x.doubleValue();
-            constantStack.push(newValue);
-        }
-    }
-
-    private void removeLDCs(InstructionHandle handle, InstructionList instList, int toDelete)
-    {
-        int times = 0;
-        InstructionHandle handleToCheck = handle.getPrev();
-        while (times != toDelete) {
-
-            if ((handleToCheck.getInstruction() instanceof LDC) || (handleToCheck.getInstruction() instanceof LDC2_W)) {
-                times++;
-                if (times < toDelete) {
-                    handleToCheck = handleToCheck.getPrev();
-                    deleteInstruction(handleToCheck.getNext(), instList);
-                    continue;
-                } else {
-                    deleteInstruction(handleToCheck, instList);
+    static Instruction makeConstant(ConstantPoolGen cpgen, byte tag, long bits)
+    {
+        switch (tag) {
+            case Frame.DOUBLE:
+                // compared as bits, so that -0.0 is not pushed as DCONST_0
+                if (bits == Double.doubleToRawLongBits(0.0) || bits == Double.doubleToRawLongBits(1.0)) {
+                    return new DCONST(Double.longBitsToDouble(bits));
                 }
-
-            } else if (handleToCheck.getPrev() == null) {
-                break;
-            }
-            handleToCheck = handleToCheck.getPrev();
+                return new LDC2_W(cpgen.addDouble(Double.longBitsToDouble(bits)));
+            case Frame.LONG:
+                if (bits == 0 || bits == 1) {
+                    return new LCONST(bits);
+                }
+                return new LDC2_W(cpgen.addLong(bits));
+            case Frame.INT:
+                int value = (int) bits;
+                if (value >= -1 && value <= 5) {
+                    return new ICONST(value);
+                } else if (value == (byte) value) {
+                    return new BIPUSH((byte) value);
+                } else if (value == (short) value) {
+                    return new SIPUSH((short) value);
+                }
+                return new LDC(cpgen.addInteger(value));
+            case Frame.STRING:
+                // the bits already are the index of the string in the pool
+                return new LDC((int) bits);
+            case Frame.FLOAT:
+                int floatBits = (int) bits;
+                if (floatBits == Float.floatToRawIntBits(0.0f) || floatBits == Float.floatToRawIntBits(1.0f)
+                        || floatBits == Float.floatToRawIntBits(2.0f)) {
+                    return new FCONST(Float.intBitsToFloat(floatBits));
+                }
+                return new LDC(cpgen.addFloat(Float.intBitsToFloat(floatBits)));
+            default:
+                return null;
         }
     }
 
     /**
-     * This method goes through list of instructions and identifies the index of start and end locations of for loops,
-     * as well as the index of the loop variable. These three numbers are grouped and stored in a list to represent the
-     * loop
-     * @param instList
-     * @return loopIndexArray (len = 3 * number of loops in instList)
+     * Instructions that have no effect other than computing their result from the values they pop. If that result is
+     * a constant the instruction can be replaced by the constant. A static call or field read only has a constant
+     * result if it was evaluated as a pure call or a known field, a reference load if the local holds a string.
      */
-    private ArrayList<Integer> findLoops(InstructionList instList)
+    private static boolean isFoldable(Instruction inst, ConstantPoolGen cpgen)
     {
-        ArrayList<Integer> loopPositions = new ArrayList<>();
+        return Evaluator.isFoldable(inst.getOpcode()) || inst instanceof LoadInstruction
+                || inst instanceof INVOKESTATIC || inst instanceof GETSTATIC || StringValues.isFoldable(inst, cpgen);
+    }
 
+    private static boolean hasSubroutines(InstructionList instList)
+    {
         for (InstructionHandle handle : instList.getInstructionHandles()) {
-            Instruction inst = handle.getInstruction();
+            if (handle.getInstruction() instanceof JsrInstruction || handle.getInstruction() instanceof RET) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            if (inst instanceof IINC) {
-                InstructionHandle nextInstructionHandle = handle.getNext();
-                Instruction nextInstruction = nextInstructionHandle.getInstruction();
-                Integer index = ((IINC) inst).getIndex();
-                if (nextInstruction instanceof GotoInstruction) {
-                    InstructionHandle targetHandle = ((GotoInstruction) nextInstruction).getTarget();
-                    Integer start = targetHandle.getPosition() - 2;
-                    loopPositions.add(start);
-                    loopPositions.add(nextInstructionHandle.getPosition());
-                    loopPositions.add(index);
-                }
+    /**
+     * Checks that every stack slot in [from, to) was pushed by a constant instruction of the current block.
+     */
+    private boolean allProduced(int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            if (producers[i] == null) {
+                return false;
             }
+        }
+        return true;
+    }
 
+    /**
+     * Deletes the constant instructions that pushed the stack slots [from, to). A long or double pushed by a single
+     * instruction occupies two slots but is only deleted once.
+     */
+    private void deleteProducers(int from, int to, InstructionList instList)
+    {
+        InstructionHandle last = null;
+        for (int i = from; i < to; i++) {
+            if (producers[i] != last) {
+                last = producers[i];
+                deleteInstruction(last, instList);
+            }
+            producers[i] = null;
         }
-        return loopPositions;
     }
 
-    private void optimizeMethod(ClassGen cgen, ConstantPoolGen cpgen, Method method)
+    /**
+     * The passes a method goes through, by the names comp207p.passes refers to them with.
+     */
+    private PassManager createPasses()
     {
-        Code methodCode = method.getCode();
-        constantStack = new Stack<Number>();
-        vars = new HashMap<Integer, Number>();
+        PassManager manager = new PassManager();
+        // loops that only run on constants are replaced first, what they leave behind is then folded as usual
+        manager.register("loops", method -> loopOptimizer.optimize(method.methodGen, method.cfg(),
+                method.propagation(), method.metrics));
+        manager.register("fold", method -> foldBlocks(method, true, false));
+        manager.register("branches", method -> foldBlocks(method, false, true));
+        manager.register("dead-code", this::removeUnreachableCode);
+        // with the loads of constant locals gone, the stores to them are dead
+        manager.register("dead-stores", method -> {
+            int deadStores = DeadStoreElimination.eliminate(method.methodGen, method.cfg());
+            method.metrics.deadStoresRemoved += deadStores;
+            return deadStores;
+        });
+        manager.register("peephole", method -> Peephole.optimize(method.methodGen, method.metrics));
+        return manager;
+    }
 
-        InstructionList instList = new InstructionList(methodCode.getCode());
+    /**
+     * Runs foldBlock over every reachable block of a method.
+     */
+    private int foldBlocks(PassManager.MethodState method, boolean values, boolean branches)
+    {
+        ConstantPropagation propagation = method.propagation();
+        if (Trace.DEBUG) {
+            Trace.log(values ? "\nFOLDING:" : "\nBRANCHES:");
+        }
+        int changes = 0;
+        for (BasicBlock block : method.cfg().blocks) {
+            if (propagation.isReachable(block)) {
+                changes += foldBlock(block, method.instList, method.cpgen, values, branches);
+            }
+        }
+        return changes;
+    }
 
-        System.out.println("\n*****************************************");
-        System.out.println("Optimising method: " + method.getName()+ " ("+original.getClassName()+")");
-        System.out.println("*****************************************");
-        System.out.println("\nPROCESSING:");
+    /**
+     * Deletes the instructions from start up to, but not including, end.
+     */
+    private static void deleteRange(InstructionHandle start, InstructionHandle end, InstructionList instList)
+    {
+        InstructionHandle handle = start;
+        while (handle != end) {
+            InstructionHandle next = handle.getNext();
+            deleteInstruction(handle, instList);
+            handle = next;
+        }
+    }
 
-        //Create a method generator from original method
-        MethodGen methodGen = new MethodGen(method.getAccessFlags(), method.getReturnType(), method.getArgumentTypes(), null, method.getName(), cgen.getClassName(), instList, cpgen);
-        boolean skipNextArith = false;
+    /**
+     * FOLD BLOCK
+     * Walks a reachable block with the state the propagation computed for its entry and rewrites it:
+     * - if values is set, loads of locals holding a constant become the constant, and an operation whose operands
+     *   were all pushed by constants in this block becomes its result, the instructions that pushed the operands
+     *   being deleted. A StringBuilder chain whose result is known is replaced as a whole;
+     * - if branches is set, a conditional branch with a known outcome becomes a GOTO or disappears, and a switch on a
+     *   constant becomes a GOTO to the case it selects. The code no longer reached is left to removeUnreachableCode.
+     * @return number of instructions changed
+     */
+    private int foldBlock(BasicBlock block, InstructionList instList, ConstantPoolGen cpgen, boolean values,
+                          boolean branches)
+    {
+        frame.copyFrom(propagation.entryFrame(block));
+        if (producers.length < frame.tags.length) {
+            producers = new InstructionHandle[frame.tags.length];
+        }
+        Arrays.fill(producers, null);
 
-        boolean justDeletedIf = false;
+        int changes = 0;
+        InstructionHandle handle = block.start;
+        while (true) {
+            InstructionHandle next = handle.getNext();
+            boolean isLast = handle == block.end;
+            Instruction inst = handle.getInstruction();
+            if (Trace.DEBUG) {
+                Trace.log(handle + "\tSTACK:" + frame);
+            }
 
-        int constants = 0;
-        ArrayList<Integer> arrayForLoops = findLoops(instList);
-        for (InstructionHandle handle : instList.getInstructionHandles()) {
-            boolean inLoop = false;
-            for (int i = 0; i < arrayForLoops.size(); i += 3) {
-                Integer one = arrayForLoops.get(i);
-                Integer two = arrayForLoops.get(i + 1);
-                if (handle.getPosition() <= two && handle.getPosition() >= one) {
-                    inLoop = true; //Checks whether in the loop
+            int before = frame.sp;
+            int operands = before - inst.consumeStack(cpgen);
+            int branch = ConstantPropagation.UNKNOWN_BRANCH;
+            InstructionHandle target = null;
+            if (branches && inst instanceof IfInstruction) {
+                branch = ConstantPropagation.evaluateBranch((IfInstruction) inst, frame);
+                if (branch == ConstantPropagation.TAKEN) {
+                    target = ((IfInstruction) inst).getTarget();
+                }
+            } else if (branches && inst instanceof Select) {
+                target = ConstantPropagation.selectTarget((Select) inst, frame);
+                if (target != null) {
+                    branch = ConstantPropagation.TAKEN;
                 }
             }
-            if (handle.getInstruction() == null) {
-                continue;
-            }
-            System.out.println(handle + "\tSTACK:" + constantStack);
-
-            boolean isLDC = (handle.getInstruction() instanceof LDC) || (handle.getInstruction() instanceof LDC_W) || (handle.getInstruction() instanceof LDC2_W);
-            boolean isArithmeticInst = (handle.getInstruction() instanceof ArithmeticInstruction);
-            boolean isPush = (handle.getInstruction() instanceof SIPUSH) || (handle.getInstruction() instanceof BIPUSH);
-            boolean isConst = (handle.getInstruction() instanceof ICONST || handle.getInstruction() instanceof FCONST || handle.getInstruction() instanceof LCONST || handle.getInstruction() instanceof DCONST);
-            boolean isStore = (handle.getInstruction() instanceof StoreInstruction);
-            boolean isLoad = (handle.getInstruction() instanceof LoadInstruction);
-            boolean isComparison = (handle.getInstruction() instanceof IfInstruction);
-            boolean isLongComparison = (handle.getInstruction() instanceof LCMP);
-            boolean isGoto = (handle.getInstruction() instanceof GotoInstruction);
-            boolean isConversion = (handle.getInstruction() instanceof I2D);
-
-            if (!isArithmeticInst && !isStore) {
-                skipNextArith = false; //Makes sure the code doesn't skip an incorrect instruction.
-            }
-            if (inLoop) {
-                if (isLoad) {
-                    boolean removeLoad = true;
-                    for (int i = 0; i < arrayForLoops.size(); i += 3) {
-                        Integer index = arrayForLoops.get(i + 2);
-                        int nowIndex = ((LoadInstruction) handle.getInstruction()).getIndex();
-                        /* We are seeing if this load instruction is the load instruction for the loop variable
-                           If it is, then we should not remove this load instruction
-                         */
-
-                        if (index == nowIndex) {
-                            removeLoad = false;
-                            skipNextArith = true;
-                            /*
-                            avoid optimising arithmetic instructions where the loop variable is involved
-                            */
-                        }
-                    }
-                    if (removeLoad) {
-                        if (!(handle.getInstruction() instanceof ALOAD)) {
-                            int index = ((LoadInstruction) handle.getInstruction()).getIndex();
-                            Number topOfStack = vars.get(index);
-
-                            constantStack.push(topOfStack);
-                            if (topOfStack instanceof Double) {
-                                instList.insert(handle, new LDC2_W(cpgen.addDouble((Double) topOfStack)));
-                            } else if (topOfStack instanceof Long) {
-                                instList.insert(handle, new LDC2_W(cpgen.addLong((Long) topOfStack)));
-                            } else if (topOfStack instanceof Integer) {
-                                handle.setInstruction(new LDC(cpgen.addInteger((Integer) topOfStack)));
-                            } else if (topOfStack instanceof Float) {
-                                instList.insert(handle, new LDC(cpgen.addFloat((Float) topOfStack)));
-                            }
 
-                        }
+            if (branch != ConstantPropagation.UNKNOWN_BRANCH) {
+                if (allProduced(operands, before)) {
+                    deleteProducers(operands, before, instList);
+                } else {
+                    for (int remaining = before - operands; remaining > 0; remaining -= 2) {
+                        insertBefore(handle, remaining >= 2 ? new POP2() : new POP(), instList);
                     }
                 }
-                if (isArithmeticInst && (!skipNextArith)) {
-                    if (constants >= 2) {
-                        removeLDCs(handle, instList, 1);
-                    } else {
-                        removeLDCs(handle, instList, 0);
+                if (branch == ConstantPropagation.TAKEN) {
+                    if (Trace.DEBUG) {
+                        Trace.log("Branch always taken to " + target);
                     }
-                    performArithOp(handle);
-                    Number topOfStack = constantStack.pop();
-                    constants++;
-                    if (topOfStack instanceof Double) {
-                        instList.insert(handle, new LDC2_W(cpgen.addDouble((Double) topOfStack)));
-                    } else if (topOfStack instanceof Long) {
-                        instList.insert(handle, new LDC2_W(cpgen.addLong((Long) topOfStack)));
-                    } else if (topOfStack instanceof Integer) {
-                        instList.insert(handle, new LDC(cpgen.addInteger((Integer) topOfStack)));
-                    } else if (topOfStack instanceof Float) {
-                        instList.insert(handle, new LDC(cpgen.addFloat((Float) topOfStack)));
+                    handle.setInstruction(new GOTO(target));
+                } else {
+                    if (Trace.DEBUG) {
+                        Trace.log("Branch never taken");
                     }
-
-                    constantStack.push(topOfStack);
-                    deleteInstruction(handle, instList);
-                }
-                if (isArithmeticInst && (skipNextArith)) {
-                    skipNextArith = false;
-                }
-                continue;
-            }
-
-            //x = 5+4
-            //LDC 5
-            //LDC 4
-            //IADD
-
-            if (isLDC || isPush) {
-                Number value = getConstantValue(handle, cpgen);
-                constantStack.push(value);
-                deleteInstruction(handle, instList);
-            } else if (isConversion) {
-                deleteInstruction(handle, instList);
-            } else if (isGoto) {
-                GotoInstruction inst = (GotoInstruction) handle.getInstruction();
-                InstructionHandle instH = inst.getTarget();
-                if (instH == handle.getNext()) {
-                    System.out.println("Removed goto");
                     deleteInstruction(handle, instList);
                 }
-            } else if (isComparison) {
-                InstructionHandle handleToCheck = handle;
-                while ((!(handleToCheck.getInstruction() instanceof GOTO))) {
-                    handleToCheck = handleToCheck.getNext();
-                    //System.out.println(handleToCheck);
-                }
-
-                System.out.println("OUT");
-                if (handleToCheck.getInstruction() instanceof GOTO) {
-                    System.out.println("IN");
-                    InstructionHandle targetHandle = ((GotoInstruction) handleToCheck.getInstruction()).getTarget();
-                    //System.out.println(targetHandle);
-                    if (targetHandle == null) {
-                        targetHandle = handle.getNext();
-                        int firstIndex = targetHandle.getPosition();
-                        int secondIndex = handleToCheck.getPosition();
-                        if (secondIndex > firstIndex) {
-                            ((GotoInstruction) (handleToCheck.getInstruction())).setTarget(handle);
-                            System.out.println("Found loop");
-                            continue;
+                frame.pop(before - operands);
+                methodMetrics.branchesEliminated++;
+                changes++;
+            } else {
+                ConstantPropagation.execute(inst, frame, cpgen, propagation.calls);
+                int after = frame.sp;
+                InstructionHandle producer = null;
+
+                if (ConstantPropagation.isConstantPush(inst, cpgen)) {
+                    producer = handle;
+                } else if (after > operands && Frame.isBuilder(frame.tags[after - 1])) {
+                    // the slots of a builder remember where its chain starts
+                    producer = inst instanceof NEW ? handle : producers[operands];
+                } else if (values && StringValues.isToString(inst, cpgen) && frame.topTag(1) == Frame.STRING
+                        && producers[operands] != null && StringValues.isChain(producers[operands], handle, cpgen)) {
+                    deleteRange(producers[operands], handle, instList);
+                    handle.setInstruction(makeConstant(cpgen, Frame.STRING, frame.topBits(1)));
+                    if (Trace.DEBUG) {
+                        Trace.log("Folded builder to " + StringValues.value(cpgen, frame.topBits(1)));
+                    }
+                    producer = handle;
+                    methodMetrics.instructionsFolded++;
+                    methodMetrics.stringsFolded++;
+                    changes++;
+                } else if (values && isFoldable(inst, cpgen) && after > operands
+                        && frame.topIsConstant(after - operands)) {
+                    if (inst instanceof LoadInstruction || allProduced(operands, before)) {
+                        deleteProducers(operands, before, instList);
+                        handle.setInstruction(makeConstant(cpgen, frame.tags[operands], frame.bits[operands]));
+                        if (Trace.DEBUG) {
+                            Trace.log("Folded to " + Frame.toString(frame.tags[operands], frame.bits[operands]));
+                        }
+                        producer = handle;
+                        methodMetrics.instructionsFolded++;
+                        if (inst instanceof INVOKESTATIC) {
+                            methodMetrics.callsFolded++;
+                        } else if (inst instanceof GETSTATIC) {
+                            methodMetrics.fieldsInlined++;
+                        } else if (inst instanceof INVOKEVIRTUAL || inst instanceof INVOKEDYNAMIC) {
+                            methodMetrics.stringsFolded++;
                         }
+                        changes++;
                     }
-
                 }
-                if (constants >= 2) {
-                    removeLDCs(handle, instList, 2);
-                } else {
-                    removeLDCs(handle, instList, 1);
+                for (int i = operands; i < after; i++) {
+                    producers[i] = producer;
                 }
+            }
 
-                IfInstruction inst = (IfInstruction) handle.getInstruction();
-                System.out.println("IfStatement Target" + inst.getTarget());
-                if (!performLogOp(handle)) {
-                    try {
-                        instList.delete(handle, inst.getTarget().getPrev());
-                    } catch (Exception ignored) {
+            if (isLast) {
+                return changes;
+            }
+            handle = next;
+        }
+    }
 
-                    }
-                    justDeletedIf = true;
-                } else {
-                    try {
-                        InstructionHandle target = inst.getTarget();
-                        System.out.println("ELSE branch deleting" + handle + target);
-                        deleteInstruction(handle, instList);
-                        deleteInstruction(target, instList);
-                        justDeletedIf = true;
-                    } catch (Exception e) {
-                        System.out.println("Exception ELSE branch");
-                    }
-                }
+    /**
+     * Drops the exception handlers that nothing reachable can throw to, then the code that can never run.
+     * @return number of handlers and instructions removed
+     */
+    private int removeUnreachableCode(PassManager.MethodState method)
+    {
+        ControlFlowGraph cfg = method.cfg();
+        ConstantPropagation propagation = method.propagation();
+        int changes = 0;
+        for (CodeExceptionGen handler : method.methodGen.getExceptionHandlers()) {
+            if (!propagation.isReachable(cfg.blockAt(handler.getHandlerPC()))) {
+                removeExceptionHandler(method.methodGen, handler);
+                changes++;
+            }
+        }
+        for (BasicBlock block : cfg.blocks) {
+            if (!propagation.isReachable(block)) {
+                changes += removeBlock(block, method.instList);
+            }
+        }
+        return changes;
+    }
 
-            } else if (isLongComparison) {
-                Number value1 = constantStack.pop();
-                Number value2 = constantStack.pop();
-                Number toPush;
-                if ((Long) value1 > (Long) value2) {
-                    toPush = 1;
-                } else if ((Long) value1 < (Long) value2) {
-                    toPush = -1;
-                } else {
-                    toPush = 0;
-                }
-                constantStack.push(toPush);
-                deleteInstruction(handle, instList);
+    /**
+     * Deletes every instruction of a block that can never be reached.
+     * @return number of instructions deleted
+     */
+    private int removeBlock(BasicBlock block, InstructionList instList)
+    {
+        int changes = 0;
+        InstructionHandle handle = block.start;
+        while (true) {
+            InstructionHandle next = handle.getNext();
+            boolean isLast = handle == block.end;
+            deleteInstruction(handle, instList);
+            methodMetrics.instructionsRemoved++;
+            changes++;
+            if (isLast) {
+                return changes;
             }
-            else if (isConst) {
-                Number value = null;
-                if (handle.getInstruction() instanceof ICONST) {
-                    value = (((ICONST) handle.getInstruction()).getValue());
-                } else if (handle.getInstruction() instanceof FCONST) {
-                    value = (((FCONST) handle.getInstruction()).getValue());
-                } else if (handle.getInstruction() instanceof LCONST) {
-                    value = (((LCONST) handle.getInstruction()).getValue());
-                } else if (handle.getInstruction() instanceof DCONST) {
-                    value = (((DCONST) handle.getInstruction()).getValue());
-                }
-                constantStack.push(value);
-                System.out.println("Pushed: " + value);
-                if (justDeletedIf) {
-                    System.out.println("Kept CONST instruction for if statements to function");
-                    justDeletedIf = false;
-                }
+            handle = next;
+        }
+    }
+
+    /**
+     * Drops an exception handler, releasing the instructions it refers to.
+     */
+    static void removeExceptionHandler(MethodGen methodGen, CodeExceptionGen handler)
+    {
+        methodGen.removeExceptionHandler(handler);
+        handler.setStartPC(null);
+        handler.setEndPC(null);
+        handler.setHandlerPC(null);
+    }
+
+    /**
+     * After instructions have been deleted an exception range or local variable can end before it starts; such ranges
+     * no longer cover anything and are dropped. Positions must be up to date.
+     */
+    static void removeEmptyRanges(MethodGen methodGen)
+    {
+        for (CodeExceptionGen handler : methodGen.getExceptionHandlers()) {
+            if (handler.getStartPC().getPosition() > handler.getEndPC().getPosition()) {
+                removeExceptionHandler(methodGen, handler);
             }
-            else if (isArithmeticInst) {
-                if (constants >= 2) {
-                    removeLDCs(handle, instList, 2);
-                } else {
-                    removeLDCs(handle, instList, 1);
-                }
-                performArithOp(handle);
-                Number topOfStack = constantStack.pop();
-
-                if (topOfStack instanceof Double) {
-                    instList.insert(handle, new LDC2_W(cpgen.addDouble((Double) topOfStack)));
-                } else if (topOfStack instanceof Long) {
-                    instList.insert(handle, new LDC2_W(cpgen.addLong((Long) topOfStack)));
-                } else if (topOfStack instanceof Integer) {
-                    instList.insert(handle, new LDC(cpgen.addInteger((Integer) topOfStack)));
-                } else if (topOfStack instanceof Float) {
-                    instList.insert(handle, new LDC(cpgen.addFloat((Float) topOfStack)));
-                }
+        }
+        for (LocalVariableGen variable : methodGen.getLocalVariables()) {
+            if (variable.getStart().getPosition() > variable.getEnd().getPosition()) {
+                methodGen.removeLocalVariable(variable);
+            }
+        }
+    }
 
-                constantStack.push(topOfStack);
-                deleteInstruction(handle, instList);
-            } else if (isStore) {
-                Number value = constantStack.pop();
-                int index = ((StoreInstruction) handle.getInstruction()).getIndex();
-                vars.put(index, value);
-                deleteInstruction(handle, instList);
-            } else if (isLoad) {
-                if (!(handle.getInstruction() instanceof ALOAD)) {
-                    int index = ((LoadInstruction) handle.getInstruction()).getIndex();
-                    Number topOfStack = vars.get(index);
-                    System.out.println("Creating constant: " + topOfStack);
-                    constants++;
-                    constantStack.push(topOfStack);
-                    if (topOfStack instanceof Double) {
-                        instList.insert(handle, new LDC2_W(cpgen.addDouble((Double) topOfStack)));
-                    } else if (topOfStack instanceof Long) {
-                        instList.insert(handle, new LDC2_W(cpgen.addLong((Long) topOfStack)));
-                    } else if (topOfStack instanceof Integer) {
-                        instList.insert(handle, new LDC(cpgen.addInteger((Integer) topOfStack)));
-                    } else if (topOfStack instanceof Float) {
-                        instList.insert(handle, new LDC(cpgen.addFloat((Float) topOfStack)));
-                    }
+    /**
+     * Optimises the methods [from, to) of the class, as a worker.
+     * @param results receives the optimised methods, still referring to the pool of the worker, and null for the
+     *                methods left as they are
+     * @param resultMetrics receives the metrics of the optimised methods
+     * @param stackMaps receives the frames of the optimised methods
+     */
+    private void optimizeMethods(Method[] methods, int from, int to, MethodGen[] results,
+                                 Metrics.MethodMetrics[] resultMetrics, StackMapBuilder[] stackMaps)
+    {
+        for (int i = from; i < to; i++) {
+            results[i] = optimizeMethod(methods[i]);
+            resultMetrics[i] = methodMetrics;
+            stackMaps[i] = stackMap;
+        }
+    }
 
-                    deleteInstruction(handle, instList);
-                }
+    /**
+     * Optimises one method and records its metrics, including the time it took.
+     * @return the optimised method, or null if nothing changed
+     */
+    private MethodGen optimizeMethod(Method method)
+    {
+        methodMetrics = null;
+        stackMap = null;
+        Code methodCode = method.getCode();
+        if (methodCode == null) {
+            return null; // abstract and native methods have no code to fold
+        }
+        if (prefilter && !BytecodePrefilter.scan(methodCode, original.getConstantPool(), propagation.calls)) {
+            if (Trace.DEBUG) {
+                Trace.log("Nothing to fold in method: " + method.getName() + " (" + original.getClassName() + ")");
             }
+            metrics.methodsSkipped++;
+            return null;
+        }
+
+        if (Trace.INFO) {
+            Trace.log("Optimising method: " + method.getName() + " (" + original.getClassName() + ")");
+        }
+        if (workerPool == null) {
+            workerPool = new ConstantPoolGen(original.getConstantPool());
         }
+        propagation.calls.forgetResults();
+        long start = System.nanoTime();
+        methodMetrics = metrics.addMethod(method.getName() + method.getSignature());
+        try {
+            return foldMethod(workerPool, method);
+        } finally {
+            methodMetrics.nanos = System.nanoTime() - start;
+        }
+    }
+
+    private MethodGen foldMethod(ConstantPoolGen cpgen, Method method)
+    {
+        //Create a method generator from original method, keeping its exception handlers and debug information
+        MethodGen methodGen = new MethodGen(method, original.getClassName(), cpgen);
+        InstructionList instList = methodGen.getInstructionList();
+        if (hasSubroutines(instList)) {
+            if (Trace.INFO) {
+                Trace.log("Skipped: method uses JSR/RET subroutines");
+            }
+            return null;
+        }
+        // the frames the compiler wrote tell the types where paths meet, which the new frames need
+        StackMapBuilder.Hints hints = null;
+        if (original.getMajor() >= Const.MAJOR_1_6) {
+            hints = StackMapBuilder.originalFrames(methodGen, original.getClassName());
+        }
+
+        int changes;
+        try {
+            changes = passes.run(new PassManager.MethodState(methodGen, propagation, methodMetrics));
+        } catch (IllegalStateException e) {
+            if (Trace.INFO) {
+                Trace.log("Skipped: " + e.getMessage());
+            }
+            return null;
+        }
+        if (changes == 0) {
+            if (Trace.INFO) {
+                Trace.log("Nothing to fold");
+            }
+            return null;
+        }
+
         try {
             instList.setPositions(true);
         } catch (Exception e) {
-            System.out.println("Problem setting positions");
+            if (Trace.INFO) {
+                Trace.log("Problem setting positions");
+            }
         }
-        System.out.println("\nRESULT:");
-        for (InstructionHandle handle : instList.getInstructionHandles()) {
-            System.out.println(handle.toString());
+        removeEmptyRanges(methodGen);
+        int[] renumbered = DeadStoreElimination.compactLocals(methodGen);
+        // stack map frames and the generic local variable table describe the old code
+        methodGen.removeCodeAttributes();
+        methodGen.removeLocalVariableTypeTable();
+
+        if (Trace.DEBUG) {
+            Trace.log("\nRESULT:");
+            for (InstructionHandle handle : instList.getInstructionHandles()) {
+                Trace.log(handle.toString());
+            }
         }
         methodGen.setMaxStack();
         methodGen.setMaxLocals();
 
-        Method newMethod = methodGen.getMethod();
-
-        //replace the method in the original class
-        cgen.replaceMethod(method, newMethod);
+        if (original.getMajor() >= Const.MAJOR_1_6) {
+            if (hints != null && renumbered != null) {
+                StackMapBuilder.renumberLocals(hints, renumbered, methodGen.getMaxLocals());
+            }
+            StackMapBuilder builder = new StackMapBuilder(methodGen, original.getClassName(), hints);
+            if (!builder.compute()) {
+                if (Trace.INFO) {
+                    Trace.log("Kept original: no stack map frames for the optimised code");
+                }
+                metrics.stackMapsFailed++;
+                return null;
+            }
+            stackMap = builder;
+        }
+        return methodGen;
     }
 
-    public Number getConstantValue(InstructionHandle handle, ConstantPoolGen cpgen)
+    /**
+     * Moves a method optimised by a worker over to the constant pool of the class. The pool of the worker started as
+     * a copy of it, so only the entries the worker added need to be added again; they are looked up by value, which
+     * makes the result independent of which worker optimised what. The stack map frames are written last, once the
+     * positions of the instructions are final.
+     * @param stackMap frames of the method, or null if the class version does not need them
+     * @param base size of the constant pool of the class when the workers copied it
+     */
+    private static Method mergeMethod(MethodGen methodGen, StackMapBuilder stackMap, ConstantPoolGen cpgen, int base)
     {
-        Instruction instruction = handle.getInstruction();
-        if ((instruction instanceof LDC)) {
-            return (Number) (((LDC) handle.getInstruction()).getValue(cpgen));
-        } else if (instruction instanceof LDC2_W) {
-            return (((LDC2_W) handle.getInstruction()).getValue(cpgen));
-        } else if (instruction instanceof BIPUSH) {
-            return (((BIPUSH) handle.getInstruction()).getValue());
-        } else if (instruction instanceof SIPUSH) {
-            return (((SIPUSH) handle.getInstruction()).getValue());
+        ConstantPoolGen workerPool = methodGen.getConstantPool();
+        InstructionList instList = methodGen.getInstructionList();
+        for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()) {
+            Instruction inst = handle.getInstruction();
+            if (inst instanceof CPInstruction && ((CPInstruction) inst).getIndex() >= base) {
+                CPInstruction cpInst = (CPInstruction) inst;
+                // an LDC switches between its short and wide form as its index changes
+                cpInst.setIndex(cpgen.addConstant(workerPool.getConstant(cpInst.getIndex()), workerPool));
+            }
         }
-        return null;
+        instList.setPositions(true);
+        methodGen.setConstantPool(cpgen);
+        if (stackMap != null) {
+            StackMap table = stackMap.encode(cpgen);
+            if (table != null) {
+                methodGen.addCodeAttribute(table);
+            }
+        }
+        return methodGen.getMethod();
     }
 
+    /**
+     * Optimises every method of the class. The class keeps its version: the methods of a class of version 50 or later
+     * get new stack map frames.
+     */
     public void optimize()
     {
+        long start = System.nanoTime();
+        metrics = new Metrics.ClassMetrics(original.getClassName());
         ClassGen cgen = new ClassGen(original);
-        cgen.setMajor(50);
         ConstantPoolGen cpgen = cgen.getConstantPool();
 
         //Implement your optimization here
 
         Method[] methods = cgen.getMethods();
-
-        for (Method m : methods) {
-            optimizeMethod(cgen, cpgen, m);
+        FieldConstants index = fields;
+        if (index == null) {
+            index = new FieldConstants();
+            index.add(original);
         }
+        optimizeMethods(cgen, methods, index);
         this.optimized = cgen.getJavaClass();
+        if (modified) {
+            optimizedBytes = ConstantPoolCompactor.compact(optimized.getBytes());
+            metrics.constantsRemoved = cpgen.getSize() - ConstantPoolCompactor.poolCount(optimizedBytes);
+        }
+
+        metrics.nanos = System.nanoTime() - start;
+        Metrics.record(metrics);
+    }
+
+    /**
+     * The bootstrap methods of the invokedynamic instructions of a class, null if it has none.
+     */
+    private static BootstrapMethods bootstrapMethods(JavaClass javaClass)
+    {
+        for (Attribute attribute : javaClass.getAttributes()) {
+            if (attribute instanceof BootstrapMethods) {
+                return (BootstrapMethods) attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Optimises the methods of a class and puts the ones that changed back into it. Large classes are split between
+     * workers running in parallel, in the pool of the calling thread if it is a ForkJoinPool worker. Each worker has
+     * its own copy of the constant pool, and the methods are merged back in their order in the class, so the output
+     * does not depend on how many workers there were. A class with fewer methods goes through the same steps with a
+     * single worker.
+     */
+    private void optimizeMethods(ClassGen cgen, Method[] methods, FieldConstants index)
+    {
+        ConstantPoolGen cpgen = cgen.getConstantPool();
+        int base = cpgen.getSize();
+        BootstrapMethods bootstrapMethods = bootstrapMethods(original);
+        int workers = 1;
+        if (methods.length >= parallelMethods) {
+            workers = Math.min((methods.length + METHODS_PER_WORKER - 1) / METHODS_PER_WORKER,
+                    4 * Runtime.getRuntime().availableProcessors());
+        }
+        ConstantFolder[] folders = new ConstantFolder[workers];
+        MethodGen[] results = new MethodGen[methods.length];
+        Metrics.MethodMetrics[] resultMetrics = new Metrics.MethodMetrics[methods.length];
+        StackMapBuilder[] stackMaps = new StackMapBuilder[methods.length];
+        IntStream tasks = IntStream.range(0, workers);
+        (workers > 1 ? tasks.parallel() : tasks).forEach(worker -> {
+            PureCalls calls = new PureCalls(cgen.getClassName(), methods, cpgen, index, bootstrapMethods);
+            ConstantFolder folder = new ConstantFolder(original, calls);
+            folder.prefilter = prefilter;
+            folders[worker] = folder;
+            int from = (int) ((long) worker * methods.length / folders.length);
+            int to = (int) ((long) (worker + 1) * methods.length / folders.length);
+            folder.optimizeMethods(methods, from, to, results, resultMetrics, stackMaps);
+        });
+
+        for (ConstantFolder folder : folders) {
+            metrics.methodsSkipped += folder.metrics.methodsSkipped;
+            metrics.stackMapsFailed += folder.metrics.stackMapsFailed;
+            metrics.methods.addAll(folder.metrics.methods);
+        }
+        Method[] merged = methods.clone();
+        for (int i = 0; i < methods.length; i++) {
+            if (results[i] != null) {
+                merged[i] = mergeMethod(results[i], stackMaps[i], cpgen, base);
+                resultMetrics[i].bytesSaved = methods[i].getCode().getCode().length
+                        - merged[i].getCode().getCode().length;
+                modified = true;
+            }
+        }
+        // replacing the methods one by one would search the list of methods for each of them
+        cgen.setMethods(merged);
+    }
+
+    /**
+     * Lets GETSTATIC of the fields in an index shared between classes, e.g. all classes of a JAR, be folded. Without
+     * one only the fields of the class itself are known.
+     */
+    public void setFieldConstants(FieldConstants fields)
+    {
+        this.fields = fields;
+    }
+
+    /**
+     * What the last call to optimize() did, or null if it has not run or the class was skipped.
+     */
+    public Metrics.ClassMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+
+    /**
+     * Whether optimize() changed any method. An unmodified class can be shipped as the original bytes.
+     */
+    public boolean isModified()
+    {
+        return modified;
+    }
+
+    /**
+     * The options that change what the folder produces for the same input, such as the loop budgets and the passes,
+     * as one string. Cached results are keyed by it. The time budget of the PassManager is left out: it only changes
+     * the output of methods that exceed it.
+     */
+    public static String configuration()
+    {
+        return "loopEvaluationBudget=" + LoopOptimizer.EVALUATION_BUDGET
+                + ";unrollBudget=" + LoopOptimizer.UNROLL_BUDGET
+                + ";passes=" + String.join(",", PassManager.ORDER)
+                + ";maxIterations=" + PassManager.MAX_ITERATIONS;
     }
 
+    /**
+     * Optimises a class given as the bytes of its class file.
+     * @param classFile contents of the class file
+     * @param fileName name used in error messages
+     * @return the optimised class file, or null if there was nothing to fold and the input can be used as it is
+     */
+    public static byte[] optimizeClass(byte[] classFile, String fileName) throws IOException
+    {
+        return optimizeClass(classFile, fileName, null);
+    }
+
+    /**
+     * Optimises a class given as the bytes of its class file, folding the static fields of a shared index.
+     * @param fields index of static fields with known values, or null to index only the class itself
+     */
+    public static byte[] optimizeClass(byte[] classFile, String fileName, FieldConstants fields) throws IOException
+    {
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(classFile), fileName);
+        folder.setFieldConstants(fields);
+        folder.optimize();
+        return folder.isModified() ? folder.getOptimizedBytes() : null;
+    }
+
+    public String getClassName()
+    {
+        return original.getClassName();
+    }
+
+    /**
+     * Returns the optimised class file, running the optimisation first if it has not been done yet.
+     * @return bytes of the optimised class file
+     */
+    public byte[] getOptimizedBytes()
+    {
+        if (this.optimized == null) {
+            this.optimize();
+        }
+        return this.optimizedBytes != null ? this.optimizedBytes : this.optimized.getBytes();
+    }
 
     public void write(String optimisedFilePath)
     {
         this.optimize();
 
-        try {
-            FileOutputStream out = new FileOutputStream(new File(optimisedFilePath));
-            this.optimized.dump(out);
+        try (FileOutputStream out = new FileOutputStream(new File(optimisedFilePath))) {
+            out.write(getOptimizedBytes());
         } catch (IOException e) {
             //Auto-generated catch block
             e.printStackTrace();
@@ -0,0 +1,766 @@
+package comp207p.main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+
+/**
+ * CONSTANT POOL COMPACTOR
+ * Rewrites a class file with a constant pool that holds only the entries still referenced, each of them once. Folding
+ * adds the constants it computes to the pool of the original class and never removes the ones whose last LDC it
+ * deleted, so without this pass optimised classes carry a larger pool than their input.
+ *
+ * The class file is processed as bytes, because BCEL has no way to renumber the pool:
+ * - every reference to the pool is located, in the class, field and method headers, in the bytecode and in all
+ *   attributes defined by the JVM specification up to records, and the entries they reach are marked as used;
+ * - entries with the same tag and contents are merged;
+ * - the entries loaded by a one-byte LDC are numbered first, so that they still fit in its operand and no instruction
+ *   changes size;
+ * - the pool is written anew and every reference is patched in place.
+ * A class with an attribute this pass does not know is returned unchanged, as it may hold references that would not
+ * be patched.
+ */
+final class ConstantPoolCompactor {
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int INTERFACE_METHODREF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    /** Thrown when the class contains something the compactor cannot patch. */
+    private static class UnsupportedClassException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedClassException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private final byte[] data;
+    private int pos;
+
+    private int count;
+    private int[] tags;
+    /** Offset of every entry, just after its tag. */
+    private int[] offsets;
+    private int poolEnd;
+
+    /** Positions of the two-byte references outside of the pool, and the one-byte references of LDC. */
+    private int[] wideRefs = new int[64];
+    private int wideCount = 0;
+    private int[] narrowRefs = new int[16];
+    private int narrowCount = 0;
+
+    private final BitSet used = new BitSet();
+
+    private ConstantPoolCompactor(byte[] data)
+    {
+        this.data = data;
+    }
+
+    /**
+     * Compacts the constant pool of a class file.
+     * @return the compacted class file, or the input itself if nothing could be removed or the class cannot be
+     * compacted
+     */
+    static byte[] compact(byte[] classFile)
+    {
+        try {
+            return new ConstantPoolCompactor(classFile).compact();
+        } catch (UnsupportedClassException | RuntimeException e) {
+            if (Trace.INFO) {
+                Trace.log("Constant pool not compacted: " + e.getMessage());
+            }
+            return classFile;
+        }
+    }
+
+    /**
+     * The constant_pool_count of a class file: one more than the number of slots in its pool.
+     */
+    static int poolCount(byte[] classFile)
+    {
+        return ((classFile[8] & 0xff) << 8) | (classFile[9] & 0xff);
+    }
+
+    private byte[] compact() throws UnsupportedClassException
+    {
+        readPool();
+        readClass();
+        if (pos != data.length) {
+            throw new UnsupportedClassException("trailing bytes after the class");
+        }
+        markReachable();
+
+        int[] canonical = mergeDuplicates();
+        BitSet narrow = new BitSet();
+        for (int i = 0; i < narrowCount; i++) {
+            narrow.set(canonical[u1(narrowRefs[i])]);
+        }
+
+        // new numbering: the entries loaded by LDC first, then the others in their original order
+        int[] numbers = new int[count];
+        int next = 1;
+        int[] order = new int[count];
+        int ordered = 0;
+        for (int i = narrow.nextSetBit(0); i >= 0; i = narrow.nextSetBit(i + 1)) {
+            order[ordered++] = i;
+            numbers[i] = next;
+            next += slots(i);
+        }
+        if (next > 256) {
+            throw new UnsupportedClassException("too many constants loaded by LDC");
+        }
+        for (int i = 1; i < count; i++) {
+            if (used.get(i) && canonical[i] == i && !narrow.get(i)) {
+                order[ordered++] = i;
+                numbers[i] = next;
+                next += slots(i);
+            }
+        }
+        if (next == count) {
+            return data;
+        }
+        for (int i = 1; i < count; i++) {
+            if (used.get(i)) {
+                numbers[i] = numbers[canonical[i]];
+            }
+        }
+
+        byte[] pool = writePool(order, ordered, numbers);
+        int rest = data.length - poolEnd;
+        byte[] result = new byte[10 + pool.length + rest];
+        System.arraycopy(data, 0, result, 0, 8);
+        putU2(result, 8, next);
+        System.arraycopy(pool, 0, result, 10, pool.length);
+        System.arraycopy(data, poolEnd, result, 10 + pool.length, rest);
+        int shift = 10 + pool.length - poolEnd;
+        for (int i = 0; i < wideCount; i++) {
+            int at = wideRefs[i];
+            int index = u2(at);
+            if (index != 0) {
+                putU2(result, at + shift, numbers[index]);
+            }
+        }
+        for (int i = 0; i < narrowCount; i++) {
+            int at = narrowRefs[i];
+            result[at + shift] = (byte) numbers[u1(at)];
+        }
+        return result;
+    }
+
+    private int slots(int index)
+    {
+        return tags[index] == LONG || tags[index] == DOUBLE ? 2 : 1;
+    }
+
+    private void readPool() throws UnsupportedClassException
+    {
+        if (data.length < 10 || u2(0) != 0xCAFE || u2(2) != 0xBABE) {
+            throw new UnsupportedClassException("not a class file");
+        }
+        count = u2(8);
+        tags = new int[count];
+        offsets = new int[count];
+        pos = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = data[pos++];
+            tags[i] = tag;
+            offsets[i] = pos;
+            switch (tag) {
+                case UTF8:
+                    pos += 2 + u2(pos);
+                    break;
+                case INTEGER:
+                case FLOAT:
+                case FIELDREF:
+                case METHODREF:
+                case INTERFACE_METHODREF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    pos += 4;
+                    break;
+                case LONG:
+                case DOUBLE:
+                    pos += 8;
+                    i++;
+                    break;
+                case CLASS:
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    pos += 2;
+                    break;
+                case METHOD_HANDLE:
+                    pos += 3;
+                    break;
+                default:
+                    throw new UnsupportedClassException("unknown constant pool tag " + tag);
+            }
+        }
+        poolEnd = pos;
+    }
+
+    /**
+     * The pool entries an entry refers to, as offsets of two-byte indices within it.
+     */
+    private static int[] referenceOffsets(int tag)
+    {
+        switch (tag) {
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                return new int[]{0};
+            case FIELDREF:
+            case METHODREF:
+            case INTERFACE_METHODREF:
+            case NAME_AND_TYPE:
+                return new int[]{0, 2};
+            case METHOD_HANDLE:
+                return new int[]{1};
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                // the first index is into the BootstrapMethods attribute, not the pool
+                return new int[]{2};
+            default:
+                return new int[0];
+        }
+    }
+
+    private void markReachable()
+    {
+        // references only go from entries to entries of lower levels, so one pass per level is enough
+        for (int level = 3; level >= 1; level--) {
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                if (level(tags[i]) != level) {
+                    continue;
+                }
+                for (int offset : referenceOffsets(tags[i])) {
+                    used.set(u2(offsets[i] + offset));
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries only refer to entries of a lower level: Utf8 and numbers are at level 0, Class, String, MethodType,
+     * Module, Package and NameAndType at level 1, field and method references and (invoke)dynamic constants at level 2,
+     * method handles at level 3.
+     */
+    private static int level(int tag)
+    {
+        switch (tag) {
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+            case NAME_AND_TYPE:
+                return 1;
+            case FIELDREF:
+            case METHODREF:
+            case INTERFACE_METHODREF:
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                return 2;
+            case METHOD_HANDLE:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Maps every used entry to the first used entry with the same tag and contents.
+     */
+    private int[] mergeDuplicates()
+    {
+        int[] canonical = new int[count];
+        HashMap<String, Integer> seen = new HashMap<>();
+        for (int level = 0; level <= 3; level++) {
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                if (level(tags[i]) != level) {
+                    continue;
+                }
+                String key = key(i, canonical);
+                Integer first = seen.get(key);
+                if (first == null) {
+                    seen.put(key, i);
+                    canonical[i] = i;
+                } else {
+                    canonical[i] = first;
+                }
+            }
+        }
+        return canonical;
+    }
+
+    private String key(int index, int[] canonical)
+    {
+        int tag = tags[index];
+        int start = offsets[index];
+        StringBuilder key = new StringBuilder().append(tag).append(':');
+        if (tag == UTF8) {
+            return key.append(new String(data, start, 2 + u2(start), StandardCharsets.ISO_8859_1)).toString();
+        }
+        int[] references = referenceOffsets(tag);
+        if (references.length == 0) {
+            int length = tag == LONG || tag == DOUBLE ? 8 : 4;
+            return key.append(new String(data, start, length, StandardCharsets.ISO_8859_1)).toString();
+        }
+        if (tag == METHOD_HANDLE) {
+            key.append(data[start]).append(':');
+        } else if (tag == DYNAMIC || tag == INVOKE_DYNAMIC) {
+            key.append(u2(start)).append(':');
+        }
+        for (int offset : references) {
+            key.append(canonical[u2(start + offset)]).append(':');
+        }
+        return key.toString();
+    }
+
+    private byte[] writePool(int[] order, int ordered, int[] numbers)
+    {
+        int length = 0;
+        for (int n = 0; n < ordered; n++) {
+            length += entryLength(order[n]);
+        }
+        byte[] pool = new byte[length];
+        int at = 0;
+        for (int n = 0; n < ordered; n++) {
+            int i = order[n];
+            int entryLength = entryLength(i);
+            pool[at] = (byte) tags[i];
+            System.arraycopy(data, offsets[i], pool, at + 1, entryLength - 1);
+            for (int offset : referenceOffsets(tags[i])) {
+                putU2(pool, at + 1 + offset, numbers[u2(offsets[i] + offset)]);
+            }
+            at += entryLength;
+        }
+        return pool;
+    }
+
+    /**
+     * Length of an entry including its tag.
+     */
+    private int entryLength(int index)
+    {
+        int end = index + 1 < count && offsets[index + 1] != 0 ? offsets[index + 1] - 1
+                : index + 2 < count ? offsets[index + 2] - 1 : poolEnd;
+        return end - offsets[index] + 1;
+    }
+
+    /*
+     * Walking the class
+     */
+
+    private void readClass() throws UnsupportedClassException
+    {
+        pos = poolEnd + 2;
+        reference();
+        reference();
+        int interfaces = readU2();
+        for (int i = 0; i < interfaces; i++) {
+            reference();
+        }
+        for (int members = 0; members < 2; members++) {
+            int n = readU2();
+            for (int i = 0; i < n; i++) {
+                pos += 2;
+                reference();
+                reference();
+                attributes();
+            }
+        }
+        attributes();
+    }
+
+    private void attributes() throws UnsupportedClassException
+    {
+        int n = readU2();
+        for (int i = 0; i < n; i++) {
+            int nameIndex = u2(pos);
+            reference();
+            int length = readU4();
+            int end = pos + length;
+            attribute(utf8(nameIndex), end);
+            if (pos != end) {
+                throw new UnsupportedClassException("malformed attribute " + utf8(nameIndex));
+            }
+        }
+    }
+
+    private void attribute(String name, int end) throws UnsupportedClassException
+    {
+        switch (name) {
+            case "ConstantValue":
+            case "Signature":
+            case "SourceFile":
+            case "NestHost":
+            case "ModuleMainClass":
+                reference();
+                break;
+            case "Code":
+                code();
+                break;
+            case "StackMapTable":
+                stackMapTable();
+                break;
+            case "Exceptions":
+            case "NestMembers":
+            case "PermittedSubclasses":
+            case "ModulePackages":
+                references(readU2());
+                break;
+            case "InnerClasses":
+                for (int n = readU2(); n > 0; n--) {
+                    references(3);
+                    pos += 2;
+                }
+                break;
+            case "EnclosingMethod":
+                references(2);
+                break;
+            case "LocalVariableTable":
+            case "LocalVariableTypeTable":
+                for (int n = readU2(); n > 0; n--) {
+                    pos += 4;
+                    references(2);
+                    pos += 2;
+                }
+                break;
+            case "MethodParameters":
+                for (int n = readU1(); n > 0; n--) {
+                    reference();
+                    pos += 2;
+                }
+                break;
+            case "BootstrapMethods":
+                for (int n = readU2(); n > 0; n--) {
+                    reference();
+                    references(readU2());
+                }
+                break;
+            case "Record":
+                for (int n = readU2(); n > 0; n--) {
+                    references(2);
+                    attributes();
+                }
+                break;
+            case "RuntimeVisibleAnnotations":
+            case "RuntimeInvisibleAnnotations":
+                for (int n = readU2(); n > 0; n--) {
+                    annotation();
+                }
+                break;
+            case "RuntimeVisibleParameterAnnotations":
+            case "RuntimeInvisibleParameterAnnotations":
+                for (int parameters = readU1(); parameters > 0; parameters--) {
+                    for (int n = readU2(); n > 0; n--) {
+                        annotation();
+                    }
+                }
+                break;
+            case "RuntimeVisibleTypeAnnotations":
+            case "RuntimeInvisibleTypeAnnotations":
+                for (int n = readU2(); n > 0; n--) {
+                    typeAnnotation();
+                }
+                break;
+            case "AnnotationDefault":
+                elementValue();
+                break;
+            case "Synthetic":
+            case "Deprecated":
+            case "SourceDebugExtension":
+            case "LineNumberTable":
+                pos = end;
+                break;
+            default:
+                throw new UnsupportedClassException("unknown attribute " + name);
+        }
+    }
+
+    private void code() throws UnsupportedClassException
+    {
+        pos += 4;
+        int length = readU4();
+        int start = pos;
+        int end = start + length;
+        while (pos < end) {
+            int opcode = readU1();
+            switch (opcode) {
+                case 0x12: // ldc
+                    narrowReference();
+                    break;
+                case 0x13: // ldc_w
+                case 0x14: // ldc2_w
+                case 0xb2: // getstatic
+                case 0xb3: // putstatic
+                case 0xb4: // getfield
+                case 0xb5: // putfield
+                case 0xb6: // invokevirtual
+                case 0xb7: // invokespecial
+                case 0xb8: // invokestatic
+                case 0xbb: // new
+                case 0xbd: // anewarray
+                case 0xc0: // checkcast
+                case 0xc1: // instanceof
+                    reference();
+                    break;
+                case 0xb9: // invokeinterface
+                case 0xba: // invokedynamic
+                    reference();
+                    pos += 2;
+                    break;
+                case 0xc5: // multianewarray
+                    reference();
+                    pos += 1;
+                    break;
+                case 0xaa: // tableswitch
+                    pos = start + ((pos - start + 3) & ~3) + 4;
+                    int low = readU4();
+                    int high = readU4();
+                    pos += 4 * (high - low + 1);
+                    break;
+                case 0xab: // lookupswitch
+                    pos = start + ((pos - start + 3) & ~3) + 4;
+                    int pairs = readU4();
+                    pos += 8 * pairs;
+                    break;
+                case 0xc4: // wide
+                    int widened = readU1();
+                    pos += widened == 0x84 ? 4 : 2;
+                    break;
+                default:
+                    pos += operandLength(opcode);
+            }
+        }
+        if (pos != end) {
+            throw new UnsupportedClassException("malformed code");
+        }
+        for (int n = readU2(); n > 0; n--) {
+            pos += 6;
+            reference();
+        }
+        attributes();
+    }
+
+    /**
+     * Length of the operands of an instruction that does not refer to the pool and has a fixed size.
+     */
+    private static int operandLength(int opcode)
+    {
+        if (opcode == 0x10 || (opcode >= 0x15 && opcode <= 0x19) || (opcode >= 0x36 && opcode <= 0x3a)
+                || opcode == 0xa9 || opcode == 0xbc) {
+            return 1; // bipush, loads, stores, ret, newarray
+        }
+        if (opcode == 0x11 || opcode == 0x84 || (opcode >= 0x99 && opcode <= 0xa8) || opcode == 0xc6
+                || opcode == 0xc7) {
+            return 2; // sipush, iinc, branches
+        }
+        if (opcode == 0xc8 || opcode == 0xc9) {
+            return 4; // goto_w, jsr_w
+        }
+        return 0;
+    }
+
+    private void stackMapTable()
+    {
+        for (int n = readU2(); n > 0; n--) {
+            int type = readU1();
+            if (type < 64) {
+                continue;
+            }
+            if (type < 128) {
+                verificationType();
+            } else if (type == 247) {
+                pos += 2;
+                verificationType();
+            } else if (type >= 248 && type <= 251) {
+                pos += 2;
+            } else if (type >= 252 && type <= 254) {
+                pos += 2;
+                for (int i = type - 251; i > 0; i--) {
+                    verificationType();
+                }
+            } else if (type == 255) {
+                pos += 2;
+                for (int i = readU2(); i > 0; i--) {
+                    verificationType();
+                }
+                for (int i = readU2(); i > 0; i--) {
+                    verificationType();
+                }
+            }
+        }
+    }
+
+    private void verificationType()
+    {
+        int tag = readU1();
+        if (tag == 7) {
+            reference();
+        } else if (tag == 8) {
+            pos += 2;
+        }
+    }
+
+    private void annotation() throws UnsupportedClassException
+    {
+        reference();
+        for (int n = readU2(); n > 0; n--) {
+            reference();
+            elementValue();
+        }
+    }
+
+    private void elementValue() throws UnsupportedClassException
+    {
+        int tag = readU1();
+        switch (tag) {
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'F':
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'Z':
+            case 's':
+            case 'c':
+                reference();
+                break;
+            case 'e':
+                references(2);
+                break;
+            case '@':
+                annotation();
+                break;
+            case '[':
+                for (int n = readU2(); n > 0; n--) {
+                    elementValue();
+                }
+                break;
+            default:
+                throw new UnsupportedClassException("unknown element value " + (char) tag);
+        }
+    }
+
+    private void typeAnnotation() throws UnsupportedClassException
+    {
+        int target = readU1();
+        if (target == 0x00 || target == 0x01 || target == 0x16) {
+            pos += 1;
+        } else if (target == 0x10 || target == 0x17 || (target >= 0x42 && target <= 0x46)) {
+            pos += 2;
+        } else if (target == 0x11 || target == 0x12) {
+            pos += 2;
+        } else if (target == 0x40 || target == 0x41) {
+            int entries = readU2();
+            pos += 6 * entries;
+        } else if (target >= 0x47 && target <= 0x4b) {
+            pos += 3;
+        } else if (target < 0x13 || target > 0x15) {
+            throw new UnsupportedClassException("unknown type annotation target " + target);
+        }
+        int pathLength = readU1();
+        pos += 2 * pathLength;
+        annotation();
+    }
+
+    /*
+     * Reading the bytes
+     */
+
+    private void reference()
+    {
+        if (wideCount == wideRefs.length) {
+            wideRefs = Arrays.copyOf(wideRefs, wideCount * 2);
+        }
+        wideRefs[wideCount++] = pos;
+        used.set(u2(pos));
+        pos += 2;
+    }
+
+    private void references(int n)
+    {
+        for (int i = 0; i < n; i++) {
+            reference();
+        }
+    }
+
+    private void narrowReference()
+    {
+        if (narrowCount == narrowRefs.length) {
+            narrowRefs = Arrays.copyOf(narrowRefs, narrowCount * 2);
+        }
+        narrowRefs[narrowCount++] = pos;
+        used.set(u1(pos));
+        pos += 1;
+    }
+
+    private String utf8(int index) throws UnsupportedClassException
+    {
+        if (index <= 0 || index >= count || tags[index] != UTF8) {
+            throw new UnsupportedClassException("bad attribute name");
+        }
+        int start = offsets[index];
+        // attribute names are plain ASCII, so the modified UTF-8 encoding does not matter here
+        return new String(data, start + 2, u2(start), StandardCharsets.UTF_8);
+    }
+
+    private int u1(int at)
+    {
+        return data[at] & 0xff;
+    }
+
+    private int u2(int at)
+    {
+        return ((data[at] & 0xff) << 8) | (data[at + 1] & 0xff);
+    }
+
+    private int readU1()
+    {
+        return data[pos++] & 0xff;
+    }
+
+    private int readU2()
+    {
+        int value = u2(pos);
+        pos += 2;
+        return value;
+    }
+
+    private int readU4()
+    {
+        int value = (u2(pos) << 16) | u2(pos + 2);
+        pos += 4;
+        return value;
+    }
+
+    private static void putU2(byte[] target, int at, int value)
+    {
+        target[at] = (byte) (value >> 8);
+        target[at + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,415 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * CONSTANT PROPAGATION
+ * Forward dataflow analysis over the control flow graph of a method. Every local variable and stack slot is tracked in
+ * the constant lattice of Frame; block entry states are merged at join points and the blocks are re-evaluated from a
+ * worklist until nothing changes. Conditional branches and switches whose operands are constant only propagate along
+ * the edge that is actually taken, so code behind a branch that can never be taken stays unreached.
+ *
+ * One instance is kept per ConstantFolder and reused for every method; the block entry frames come from a pool that
+ * only grows.
+ */
+class ConstantPropagation {
+    static final int UNKNOWN_BRANCH = 0;
+    static final int TAKEN = 1;
+    static final int NOT_TAKEN = 2;
+
+    private final ArrayList<Frame> framePool = new ArrayList<>();
+    private final Frame current = new Frame();
+
+    private Frame[] entryFrames = new Frame[16];
+    private boolean[] queued = new boolean[16];
+    private final ArrayDeque<BasicBlock> worklist = new ArrayDeque<>();
+
+    private ControlFlowGraph cfg;
+    private ConstantPoolGen cpgen;
+
+    /** Evaluator of static calls and fields of the class being optimised, or null to treat them all as unknown. */
+    PureCalls calls = null;
+
+    /**
+     * Runs the analysis to a fixpoint.
+     * @param cfg graph of the method
+     * @param cpgen constant pool the instructions refer to
+     * @param methodGen method being analysed, for its arguments and frame size
+     */
+    void analyse(ControlFlowGraph cfg, ConstantPoolGen cpgen, MethodGen methodGen)
+    {
+        this.cfg = cfg;
+        this.cpgen = cpgen;
+        int blocks = cfg.blocks.length;
+        if (entryFrames.length < blocks) {
+            entryFrames = new Frame[blocks];
+            queued = new boolean[blocks];
+        } else {
+            Arrays.fill(entryFrames, 0, blocks, null);
+            Arrays.fill(queued, 0, blocks, false);
+        }
+        while (framePool.size() < blocks) {
+            framePool.add(new Frame());
+        }
+        worklist.clear();
+        if (blocks == 0) {
+            return;
+        }
+
+        // arguments (and this) are not constants, every other local is undefined until it is stored to
+        Frame entry = framePool.get(0);
+        entry.reset(methodGen.getMaxStack(), methodGen.getMaxLocals());
+        int slot = 0;
+        if (!methodGen.isStatic()) {
+            entry.setLocal(Frame.UNKNOWN, slot++, 0);
+        }
+        for (Type argument : methodGen.getArgumentTypes()) {
+            for (int i = 0; i < argument.getSize(); i++) {
+                entry.setLocal(Frame.UNKNOWN, slot++, 0);
+            }
+        }
+        entryFrames[0] = entry;
+        enqueue(cfg.entry());
+
+        while (!worklist.isEmpty()) {
+            BasicBlock block = worklist.poll();
+            queued[block.index] = false;
+            evaluateBlock(block);
+        }
+    }
+
+    boolean isReachable(BasicBlock block)
+    {
+        return entryFrames[block.index] != null;
+    }
+
+    /**
+     * The state on entry to a block once the analysis has finished, or null if the block is never reached.
+     */
+    Frame entryFrame(BasicBlock block)
+    {
+        return entryFrames[block.index];
+    }
+
+    private void enqueue(BasicBlock block)
+    {
+        if (!queued[block.index]) {
+            queued[block.index] = true;
+            worklist.add(block);
+        }
+    }
+
+    private void evaluateBlock(BasicBlock block)
+    {
+        current.copyFrom(entryFrames[block.index]);
+        flowToHandlers(block);
+
+        InstructionHandle handle = block.start;
+        while (true) {
+            Instruction inst = handle.getInstruction();
+            if (handle == block.end) {
+                int branch = UNKNOWN_BRANCH;
+                InstructionHandle selected = null;
+                if (inst instanceof IfInstruction) {
+                    branch = evaluateBranch((IfInstruction) inst, current);
+                } else if (inst instanceof Select) {
+                    selected = selectTarget((Select) inst, current);
+                }
+                execute(inst, current, cpgen, calls);
+                flowToSuccessors(block, inst, branch, selected);
+                return;
+            }
+            execute(inst, current, cpgen, calls);
+            if (inst instanceof StoreInstruction || inst instanceof IINC) {
+                flowToHandlers(block);
+            }
+            handle = handle.getNext();
+        }
+    }
+
+    /**
+     * @param selected the target a switch is known to jump to, or null
+     */
+    private void flowToSuccessors(BasicBlock block, Instruction last, int branch, InstructionHandle selected)
+    {
+        if (selected != null) {
+            flowTo(cfg.blockAt(selected));
+        } else if (last instanceof BranchInstruction) {
+            if (branch != NOT_TAKEN) {
+                flowTo(cfg.blockAt(((BranchInstruction) last).getTarget()));
+            }
+            if (last instanceof Select) {
+                for (InstructionHandle target : ((Select) last).getTargets()) {
+                    flowTo(cfg.blockAt(target));
+                }
+            }
+        }
+        if (ControlFlowGraph.fallsThrough(last) && branch != TAKEN && block.end.getNext() != null) {
+            flowTo(cfg.blockAt(block.end.getNext()));
+        }
+    }
+
+    private void flowTo(BasicBlock target)
+    {
+        Frame entry = entryFrames[target.index];
+        if (entry == null) {
+            entry = framePool.get(target.index);
+            entry.copyFrom(current);
+            entryFrames[target.index] = entry;
+            enqueue(target);
+        } else if (entry.merge(current)) {
+            enqueue(target);
+        }
+    }
+
+    /**
+     * An exception handler is entered with the locals of any instruction in its range and the exception alone on the
+     * stack.
+     */
+    private void flowToHandlers(BasicBlock block)
+    {
+        for (BasicBlock handler : block.handlers) {
+            Frame entry = entryFrames[handler.index];
+            if (entry == null) {
+                entry = framePool.get(handler.index);
+                entry.copyFrom(current);
+                entry.sp = entry.maxLocals;
+                entry.push(Frame.UNKNOWN, 0);
+                entryFrames[handler.index] = entry;
+                enqueue(handler);
+            } else if (entry.mergeLocals(current)) {
+                enqueue(handler);
+            }
+        }
+    }
+
+    /**
+     * TRANSFER FUNCTION
+     * Applies the effect of one instruction to the frame. Constants are pushed and folded where possible, including
+     * strings (see StringValues), and the results of pure static calls, known static fields and string concatenation
+     * call sites if calls is given; anything else pushes values that are not constants.
+     */
+    static void execute(Instruction inst, Frame frame, ConstantPoolGen cpgen, PureCalls calls)
+    {
+        if (pushConstant(inst, frame, cpgen)) {
+            return;
+        }
+        if (inst instanceof LoadInstruction) {
+            frame.load(((LoadInstruction) inst).getIndex(), ((LoadInstruction) inst).getType(cpgen).getSize());
+            return;
+        }
+        if (inst instanceof StoreInstruction) {
+            frame.store(((StoreInstruction) inst).getIndex(), ((StoreInstruction) inst).getType(cpgen).getSize());
+            return;
+        }
+        if (inst instanceof IINC) {
+            int index = ((IINC) inst).getIndex();
+            if (frame.localTag(index) == Frame.INT) {
+                frame.setLocal(Frame.INT, index, (int) frame.localBits(index) + ((IINC) inst).getIncrement());
+            } else {
+                frame.setLocal(Frame.UNKNOWN, index, 0);
+            }
+            return;
+        }
+        if (Evaluator.evaluate(inst.getOpcode(), frame)) {
+            return;
+        }
+        if (StringValues.evaluate(inst, frame, cpgen)) {
+            return;
+        }
+        if (inst instanceof INVOKEDYNAMIC && calls != null && calls.concatenate((INVOKEDYNAMIC) inst, frame, cpgen)) {
+            return;
+        }
+        if (inst instanceof INVOKESTATIC && calls != null && calls.evaluate((INVOKESTATIC) inst, frame)) {
+            return;
+        }
+        if (inst instanceof GETSTATIC && calls != null && calls.getStatic((GETSTATIC) inst, frame)) {
+            return;
+        }
+        switch (inst.getOpcode()) {
+            case Const.POP:
+                frame.pop(1);
+                return;
+            case Const.POP2:
+                frame.pop(2);
+                return;
+            case Const.DUP:
+                frame.dup(1, 0);
+                return;
+            case Const.DUP_X1:
+                frame.dup(1, 1);
+                return;
+            case Const.DUP_X2:
+                frame.dup(1, 2);
+                return;
+            case Const.DUP2:
+                frame.dup(2, 0);
+                return;
+            case Const.DUP2_X1:
+                frame.dup(2, 1);
+                return;
+            case Const.DUP2_X2:
+                frame.dup(2, 2);
+                return;
+            case Const.SWAP:
+                frame.swap();
+                return;
+            default:
+                frame.pop(inst.consumeStack(cpgen));
+                frame.pushUnknown(inst.produceStack(cpgen));
+        }
+    }
+
+    /**
+     * Pushes the value of an ICONST/BIPUSH/SIPUSH/LDC-style instruction, strings included.
+     * @return false if the instruction does not push a constant
+     */
+    static boolean pushConstant(Instruction inst, Frame frame, ConstantPoolGen cpgen)
+    {
+        short opcode = inst.getOpcode();
+        if (opcode >= Const.ICONST_M1 && opcode <= Const.ICONST_5) {
+            frame.pushInt(opcode - Const.ICONST_0);
+        } else if (opcode == Const.LCONST_0 || opcode == Const.LCONST_1) {
+            frame.pushLong(opcode - Const.LCONST_0);
+        } else if (opcode >= Const.FCONST_0 && opcode <= Const.FCONST_2) {
+            frame.pushFloat(opcode - Const.FCONST_0);
+        } else if (opcode == Const.DCONST_0 || opcode == Const.DCONST_1) {
+            frame.pushDouble(opcode - Const.DCONST_0);
+        } else if (inst instanceof BIPUSH || inst instanceof SIPUSH) {
+            frame.pushInt(((ConstantPushInstruction) inst).getValue().intValue());
+        } else if (inst instanceof LDC) {
+            Constant value = cpgen.getConstant(((LDC) inst).getIndex());
+            if (value instanceof ConstantInteger) {
+                frame.pushInt(((ConstantInteger) value).getBytes());
+            } else if (value instanceof ConstantFloat) {
+                frame.pushFloat(((ConstantFloat) value).getBytes());
+            } else if (value instanceof ConstantString) {
+                frame.push(Frame.STRING, ((LDC) inst).getIndex());
+            } else {
+                frame.push(Frame.UNKNOWN, 0);
+            }
+        } else if (inst instanceof LDC2_W) {
+            Number value = ((LDC2_W) inst).getValue(cpgen);
+            if (value instanceof Long) {
+                frame.pushLong(value.longValue());
+            } else {
+                frame.pushDouble(value.doubleValue());
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the instruction does nothing but push a constant.
+     */
+    static boolean isConstantPush(Instruction inst, ConstantPoolGen cpgen)
+    {
+        if (inst instanceof LDC) {
+            // LDC.getValue resolves class constants as types, which fails for plain internal names
+            Constant value = cpgen.getConstant(((LDC) inst).getIndex());
+            return value instanceof ConstantInteger || value instanceof ConstantFloat
+                    || value instanceof ConstantString;
+        }
+        return inst instanceof ConstantPushInstruction || inst instanceof LDC2_W;
+    }
+
+    /**
+     * PERFORM LOGIC
+     * Evaluates a conditional branch whose operands are known, without popping them. Ints are compared by value. A
+     * reference is only known not to be null: strings and builders are never null, so IFNULL and IFNONNULL are
+     * decided on them; comparing two references is not, as equal strings need not be the same object.
+     * @return TAKEN or NOT_TAKEN, or UNKNOWN_BRANCH if the outcome cannot be decided
+     */
+    static int evaluateBranch(IfInstruction inst, Frame frame)
+    {
+        short opcode = inst.getOpcode();
+        if (opcode == Const.IFNULL || opcode == Const.IFNONNULL) {
+            byte tag = frame.topTag(1);
+            if (tag != Frame.STRING && !Frame.isBuilder(tag)) {
+                return UNKNOWN_BRANCH;
+            }
+            return decide(opcode == Const.IFNONNULL);
+        }
+        if (opcode >= Const.IFEQ && opcode <= Const.IFLE) {
+            if (frame.topTag(1) != Frame.INT) {
+                return UNKNOWN_BRANCH;
+            }
+            return decide(compare(opcode - Const.IFEQ, (int) frame.topBits(1), 0));
+        }
+        if (opcode < Const.IF_ICMPEQ || opcode > Const.IF_ICMPLE) {
+            return UNKNOWN_BRANCH;
+        }
+        if (frame.topTag(1) != Frame.INT || frame.topTag(2) != Frame.INT) {
+            return UNKNOWN_BRANCH;
+        }
+        // compare value1 (x) with value2 (y)
+        int x = (int) frame.topBits(2);
+        int y = (int) frame.topBits(1);
+        return decide(compare(opcode - Const.IF_ICMPEQ, x, y));
+    }
+
+    /**
+     * Applies the condition of an IFxx or IF_ICMPxx, given by its offset from IFEQ or IF_ICMPEQ: both families list
+     * EQ, NE, LT, GE, GT and LE in that order.
+     */
+    private static boolean compare(int condition, int x, int y)
+    {
+        switch (condition) {
+            case 0:
+                return x == y;
+            case 1:
+                return x != y;
+            case 2:
+                return x < y;
+            case 3:
+                return x >= y;
+            case 4:
+                return x > y;
+            default:
+                return x <= y;
+        }
+    }
+
+    /**
+     * The target a switch jumps to if its key is a constant, without popping it.
+     * @return null if the key is not known
+     */
+    static InstructionHandle selectTarget(Select inst, Frame frame)
+    {
+        if (frame.topTag(1) != Frame.INT) {
+            return null;
+        }
+        return select(inst, (int) frame.topBits(1));
+    }
+
+    /**
+     * The target a switch jumps to for the given key: the target of the matching case, or the default one.
+     */
+    static InstructionHandle select(Select inst, int key)
+    {
+        int[] matches = inst.getMatchs();
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] == key) {
+                return inst.getTargets()[i];
+            }
+        }
+        return inst.getTarget();
+    }
+
+    private static int decide(boolean taken)
+    {
+        return taken ? TAKEN : NOT_TAKEN;
+    }
+}
@@ -0,0 +1,128 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+
+/**
+ * CONTROL FLOW GRAPH
+ * Splits the instruction list of a method into basic blocks and links them by their normal and exceptional successors.
+ * A new block starts at the first instruction, at every branch target, after every branch, return or throw, at every
+ * exception handler and at both ends of every exception range.
+ */
+class ControlFlowGraph {
+    final BasicBlock[] blocks;
+
+    private final IdentityHashMap<InstructionHandle, BasicBlock> blockStarts = new IdentityHashMap<>();
+
+    ControlFlowGraph(InstructionList instList, CodeExceptionGen[] exceptionHandlers)
+    {
+        instList.setPositions();
+        InstructionHandle[] handles = instList.getInstructionHandles();
+
+        IdentityHashMap<InstructionHandle, Boolean> leaders = new IdentityHashMap<>();
+        if (handles.length > 0) {
+            leaders.put(handles[0], Boolean.TRUE);
+        }
+        for (InstructionHandle handle : handles) {
+            Instruction inst = handle.getInstruction();
+            if (inst instanceof BranchInstruction) {
+                leaders.put(((BranchInstruction) inst).getTarget(), Boolean.TRUE);
+                if (inst instanceof Select) {
+                    for (InstructionHandle target : ((Select) inst).getTargets()) {
+                        leaders.put(target, Boolean.TRUE);
+                    }
+                }
+            }
+            if (endsBlock(inst) && handle.getNext() != null) {
+                leaders.put(handle.getNext(), Boolean.TRUE);
+            }
+        }
+        for (CodeExceptionGen handler : exceptionHandlers) {
+            leaders.put(handler.getStartPC(), Boolean.TRUE);
+            leaders.put(handler.getHandlerPC(), Boolean.TRUE);
+            if (handler.getEndPC().getNext() != null) {
+                leaders.put(handler.getEndPC().getNext(), Boolean.TRUE);
+            }
+        }
+
+        List<BasicBlock> list = new ArrayList<>();
+        BasicBlock current = null;
+        for (InstructionHandle handle : handles) {
+            if (leaders.containsKey(handle)) {
+                current = new BasicBlock(list.size(), handle);
+                list.add(current);
+                blockStarts.put(handle, current);
+            }
+            current.end = handle;
+        }
+        this.blocks = list.toArray(new BasicBlock[0]);
+
+        for (BasicBlock block : blocks) {
+            Instruction last = block.end.getInstruction();
+            if (last instanceof BranchInstruction) {
+                addEdge(block, blockAt(((BranchInstruction) last).getTarget()));
+                if (last instanceof Select) {
+                    for (InstructionHandle target : ((Select) last).getTargets()) {
+                        addEdge(block, blockAt(target));
+                    }
+                }
+            }
+            if (fallsThrough(last) && block.end.getNext() != null) {
+                addEdge(block, blockAt(block.end.getNext()));
+            }
+
+            int position = block.start.getPosition();
+            for (CodeExceptionGen handler : exceptionHandlers) {
+                if (position >= handler.getStartPC().getPosition() && position <= handler.getEndPC().getPosition()) {
+                    BasicBlock handlerBlock = blockAt(handler.getHandlerPC());
+                    if (!block.handlers.contains(handlerBlock)) {
+                        block.handlers.add(handlerBlock);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addEdge(BasicBlock from, BasicBlock to)
+    {
+        if (!from.successors.contains(to)) {
+            from.successors.add(to);
+            to.predecessors.add(from);
+        }
+    }
+
+    /**
+     * Whether the instruction is the last one of its block.
+     */
+    static boolean endsBlock(Instruction inst)
+    {
+        return inst instanceof BranchInstruction || inst instanceof ReturnInstruction || inst instanceof ATHROW
+                || inst instanceof RET;
+    }
+
+    /**
+     * Whether control can continue with the next instruction in the list after this one.
+     */
+    static boolean fallsThrough(Instruction inst)
+    {
+        return !(inst instanceof GotoInstruction || inst instanceof Select || inst instanceof ReturnInstruction
+                || inst instanceof ATHROW || inst instanceof RET);
+    }
+
+    BasicBlock entry()
+    {
+        return blocks[0];
+    }
+
+    /**
+     * Returns the block starting at the given instruction.
+     */
+    BasicBlock blockAt(InstructionHandle start)
+    {
+        return blockStarts.get(start);
+    }
+}
@@ -0,0 +1,193 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * DEAD STORE ELIMINATION
+ * Once folding has replaced the loads of constant locals by the constants, the stores to those locals are usually no
+ * longer read by anything. Liveness finds the stores whose value is never read on any path; they are removed
+ * together with the instruction that pushed the stored value where that has no other effect, or replaced by a POP.
+ * Removing a store can make the load feeding it, and so an earlier store, dead too, so this repeats until nothing
+ * changes.
+ *
+ * Afterwards compactLocals renumbers the locals that are still used so that they are dense again and max_locals
+ * shrinks.
+ */
+final class DeadStoreElimination {
+    private DeadStoreElimination()
+    {
+    }
+
+    /**
+     * Removes every dead store and dead IINC of a method. Positions must be up to date.
+     * @return number of instructions removed or replaced
+     */
+    static int eliminate(MethodGen methodGen, ControlFlowGraph cfg)
+    {
+        InstructionList instList = methodGen.getInstructionList();
+        ConstantPoolGen cpgen = methodGen.getConstantPool();
+        int total = 0;
+        while (true) {
+            int changes = removeDeadStores(cfg, new Liveness(cfg), instList, cpgen);
+            if (changes == 0) {
+                return total;
+            }
+            total += changes;
+            cfg = new ControlFlowGraph(instList, methodGen.getExceptionHandlers());
+        }
+    }
+
+    private static int removeDeadStores(ControlFlowGraph cfg, Liveness liveness, InstructionList instList,
+                                        ConstantPoolGen cpgen)
+    {
+        List<InstructionHandle> dead = new ArrayList<>();
+        BitSet live = new BitSet();
+        for (BasicBlock block : cfg.blocks) {
+            liveness.liveOut(block, live);
+            BitSet handlerLive = liveness.handlerLive(block);
+            InstructionHandle handle = block.end;
+            while (true) {
+                Instruction inst = handle.getInstruction();
+                if (inst instanceof StoreInstruction || inst instanceof IINC) {
+                    int index = ((LocalVariableInstruction) inst).getIndex();
+                    if (!live.get(index)) {
+                        dead.add(handle);
+                    }
+                }
+                Liveness.transfer(inst, live);
+                live.or(handlerLive);
+                if (handle == block.start) {
+                    break;
+                }
+                handle = handle.getPrev();
+            }
+        }
+
+        int changes = 0;
+        for (InstructionHandle handle : dead) {
+            Instruction inst = handle.getInstruction();
+            if (inst instanceof IINC) {
+                ConstantFolder.deleteInstruction(handle, instList);
+                changes++;
+                continue;
+            }
+            int slots = Liveness.slots(inst);
+            InstructionHandle prev = handle.getPrev();
+            if (!handle.hasTargeters() && prev != null && isPurePush(prev.getInstruction(), slots, cpgen)) {
+                ConstantFolder.deleteInstruction(prev, instList);
+                ConstantFolder.deleteInstruction(handle, instList);
+                changes += 2;
+            } else {
+                handle.setInstruction(slots == 2 ? new POP2() : new POP());
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Whether the instruction pushes exactly the value a store of the given size consumes and has no other effect, so
+     * that it can be removed together with the store.
+     */
+    private static boolean isPurePush(Instruction inst, int slots, ConstantPoolGen cpgen)
+    {
+        if (inst instanceof DUP || inst instanceof DUP2) {
+            return inst.produceStack(cpgen) - inst.consumeStack(cpgen) == slots;
+        }
+        if (inst instanceof LDC) {
+            // loading a class constant can fail, the other constants cannot
+            Constant value = cpgen.getConstant(((LDC) inst).getIndex());
+            return value instanceof ConstantInteger || value instanceof ConstantFloat || value instanceof ConstantString;
+        }
+        return inst instanceof ConstantPushInstruction || inst instanceof LDC2_W || inst instanceof LoadInstruction
+                || inst instanceof ACONST_NULL;
+    }
+
+    /**
+     * COMPACT LOCALS
+     * Renumbers the locals above the arguments so that no slot is left unused. Two slots accessed together as a long
+     * or double stay next to each other; otherwise the order of the slots is kept. Local variable table entries of
+     * slots that are no longer used are dropped.
+     * @return the new slot of every old slot, -1 for unused slots, or null if no local was renumbered
+     */
+    static int[] compactLocals(MethodGen methodGen)
+    {
+        int first = methodGen.isStatic() ? 0 : 1;
+        for (Type argument : methodGen.getArgumentTypes()) {
+            first += argument.getSize();
+        }
+
+        InstructionList instList = methodGen.getInstructionList();
+        int limit = first;
+        for (InstructionHandle handle : instList.getInstructionHandles()) {
+            Instruction inst = handle.getInstruction();
+            if (inst instanceof LocalVariableInstruction) {
+                limit = Math.max(limit, ((LocalVariableInstruction) inst).getIndex() + 2);
+            }
+        }
+
+        // used[i]: slot i is accessed; joined[i]: slot i and i + 1 are accessed as one value
+        boolean[] used = new boolean[limit];
+        boolean[] joined = new boolean[limit];
+        for (InstructionHandle handle : instList.getInstructionHandles()) {
+            Instruction inst = handle.getInstruction();
+            if (inst instanceof LocalVariableInstruction) {
+                int index = ((LocalVariableInstruction) inst).getIndex();
+                used[index] = true;
+                if (!(inst instanceof IINC) && Liveness.slots(inst) == 2) {
+                    used[index + 1] = true;
+                    joined[index] = true;
+                }
+            }
+        }
+
+        int[] mapping = new int[limit];
+        Arrays.fill(mapping, -1);
+        boolean renumbered = false;
+        int next = first;
+        for (int i = 0; i < limit; i++) {
+            if (i < first) {
+                mapping[i] = i;
+                continue;
+            }
+            if (used[i] && mapping[i] < 0) {
+                mapping[i] = next++;
+            }
+            if (joined[i]) {
+                mapping[i + 1] = mapping[i] + 1;
+                next = Math.max(next, mapping[i] + 2);
+            }
+            renumbered |= mapping[i] >= 0 && mapping[i] != i;
+        }
+        if (!renumbered) {
+            return null;
+        }
+
+        for (InstructionHandle handle : instList.getInstructionHandles()) {
+            Instruction inst = handle.getInstruction();
+            if (inst instanceof LocalVariableInstruction) {
+                LocalVariableInstruction access = (LocalVariableInstruction) inst;
+                access.setIndex(mapping[access.getIndex()]);
+            }
+        }
+        for (LocalVariableGen variable : methodGen.getLocalVariables()) {
+            int index = variable.getIndex();
+            if (index >= limit || mapping[index] < 0) {
+                methodGen.removeLocalVariable(variable);
+            } else {
+                variable.setIndex(mapping[index]);
+            }
+        }
+        return mapping;
+    }
+}
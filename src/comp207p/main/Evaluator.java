@@ -0,0 +1,316 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+
+
+/**
+ * EVALUATOR
+ * Folds the pure arithmetic, logic, comparison and conversion instructions of the JVM. OPERANDS is indexed by opcode
+ * and holds the number of stack slots an instruction pops, or 0 if it is not folded at all, so deciding whether an
+ * instruction can be evaluated is a single array load. The evaluation itself is a dense switch on the opcode, which
+ * compiles to a jump table.
+ *
+ * The operations are the Java operators with the same types, which have exactly the semantics of the corresponding
+ * instructions: wrap-around integer arithmetic, masked shift distances, IEEE 754 floating point with round to nearest,
+ * fmod-style remainders and saturating float to integer conversions. Integer division and remainder by zero are left
+ * alone, since they throw at run time.
+ */
+final class Evaluator {
+    /** Stack slots popped by each foldable opcode, 0 for everything else. */
+    private static final byte[] OPERANDS = new byte[256];
+
+    static {
+        operands(2, Const.IADD, Const.ISUB, Const.IMUL, Const.IDIV, Const.IREM, Const.IAND, Const.IOR, Const.IXOR,
+                Const.ISHL, Const.ISHR, Const.IUSHR, Const.FADD, Const.FSUB, Const.FMUL, Const.FDIV, Const.FREM,
+                Const.FCMPL, Const.FCMPG);
+        operands(4, Const.LADD, Const.LSUB, Const.LMUL, Const.LDIV, Const.LREM, Const.LAND, Const.LOR, Const.LXOR,
+                Const.DADD, Const.DSUB, Const.DMUL, Const.DDIV, Const.DREM, Const.LCMP, Const.DCMPL, Const.DCMPG);
+        // long shifts take an int distance
+        operands(3, Const.LSHL, Const.LSHR, Const.LUSHR);
+        operands(1, Const.INEG, Const.FNEG, Const.I2L, Const.I2F, Const.I2D, Const.F2I, Const.F2L, Const.F2D,
+                Const.I2B, Const.I2C, Const.I2S);
+        operands(2, Const.LNEG, Const.DNEG, Const.L2I, Const.L2F, Const.L2D, Const.D2I, Const.D2L, Const.D2F);
+    }
+
+    private static void operands(int slots, short... opcodes)
+    {
+        for (short opcode : opcodes) {
+            OPERANDS[opcode] = (byte) slots;
+        }
+    }
+
+    private Evaluator()
+    {
+    }
+
+    /**
+     * Whether the instruction computes its result from the values it pops and nothing else.
+     */
+    static boolean isFoldable(int opcode)
+    {
+        return OPERANDS[opcode] != 0;
+    }
+
+    /**
+     * Stack slots a foldable instruction pops, 0 if it is not foldable.
+     */
+    static int operandSlots(int opcode)
+    {
+        return OPERANDS[opcode];
+    }
+
+    /**
+     * Pops the operands of a foldable instruction and pushes its result, if all operands are constants.
+     * @return false, leaving the frame untouched, if the instruction is not foldable, an operand is not a constant or
+     *         the instruction would throw
+     */
+    static boolean evaluate(int opcode, Frame frame)
+    {
+        int slots = OPERANDS[opcode];
+        if (slots == 0 || !frame.topIsConstant(slots)) {
+            return false;
+        }
+        int i;
+        long l;
+        float f;
+        double d;
+        switch (opcode) {
+            case Const.IADD:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() + i);
+                break;
+            case Const.ISUB:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() - i);
+                break;
+            case Const.IMUL:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() * i);
+                break;
+            case Const.IDIV:
+                if ((int) frame.topBits(1) == 0) {
+                    return false;
+                }
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() / i);
+                break;
+            case Const.IREM:
+                if ((int) frame.topBits(1) == 0) {
+                    return false;
+                }
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() % i);
+                break;
+            case Const.INEG:
+                frame.pushInt(-frame.popInt());
+                break;
+            case Const.IAND:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() & i);
+                break;
+            case Const.IOR:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() | i);
+                break;
+            case Const.IXOR:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() ^ i);
+                break;
+            case Const.ISHL:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() << i);
+                break;
+            case Const.ISHR:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() >> i);
+                break;
+            case Const.IUSHR:
+                i = frame.popInt();
+                frame.pushInt(frame.popInt() >>> i);
+                break;
+
+            case Const.LADD:
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() + l);
+                break;
+            case Const.LSUB:
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() - l);
+                break;
+            case Const.LMUL:
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() * l);
+                break;
+            case Const.LDIV:
+                if (frame.topBits(2) == 0) {
+                    return false;
+                }
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() / l);
+                break;
+            case Const.LREM:
+                if (frame.topBits(2) == 0) {
+                    return false;
+                }
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() % l);
+                break;
+            case Const.LNEG:
+                frame.pushLong(-frame.popLong());
+                break;
+            case Const.LAND:
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() & l);
+                break;
+            case Const.LOR:
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() | l);
+                break;
+            case Const.LXOR:
+                l = frame.popLong();
+                frame.pushLong(frame.popLong() ^ l);
+                break;
+            case Const.LSHL:
+                i = frame.popInt();
+                frame.pushLong(frame.popLong() << i);
+                break;
+            case Const.LSHR:
+                i = frame.popInt();
+                frame.pushLong(frame.popLong() >> i);
+                break;
+            case Const.LUSHR:
+                i = frame.popInt();
+                frame.pushLong(frame.popLong() >>> i);
+                break;
+            case Const.LCMP:
+                l = frame.popLong();
+                frame.pushInt(Long.compare(frame.popLong(), l));
+                break;
+
+            case Const.FADD:
+                f = frame.popFloat();
+                frame.pushFloat(frame.popFloat() + f);
+                break;
+            case Const.FSUB:
+                f = frame.popFloat();
+                frame.pushFloat(frame.popFloat() - f);
+                break;
+            case Const.FMUL:
+                f = frame.popFloat();
+                frame.pushFloat(frame.popFloat() * f);
+                break;
+            case Const.FDIV:
+                f = frame.popFloat();
+                frame.pushFloat(frame.popFloat() / f);
+                break;
+            case Const.FREM:
+                f = frame.popFloat();
+                frame.pushFloat(frame.popFloat() % f);
+                break;
+            case Const.FNEG:
+                frame.pushFloat(-frame.popFloat());
+                break;
+            case Const.FCMPL:
+            case Const.FCMPG:
+                f = frame.popFloat();
+                frame.pushInt(compare(frame.popFloat(), f, opcode == Const.FCMPG));
+                break;
+
+            case Const.DADD:
+                d = frame.popDouble();
+                frame.pushDouble(frame.popDouble() + d);
+                break;
+            case Const.DSUB:
+                d = frame.popDouble();
+                frame.pushDouble(frame.popDouble() - d);
+                break;
+            case Const.DMUL:
+                d = frame.popDouble();
+                frame.pushDouble(frame.popDouble() * d);
+                break;
+            case Const.DDIV:
+                d = frame.popDouble();
+                frame.pushDouble(frame.popDouble() / d);
+                break;
+            case Const.DREM:
+                d = frame.popDouble();
+                frame.pushDouble(frame.popDouble() % d);
+                break;
+            case Const.DNEG:
+                frame.pushDouble(-frame.popDouble());
+                break;
+            case Const.DCMPL:
+            case Const.DCMPG:
+                d = frame.popDouble();
+                frame.pushInt(compare(frame.popDouble(), d, opcode == Const.DCMPG));
+                break;
+
+            case Const.I2L:
+                frame.pushLong(frame.popInt());
+                break;
+            case Const.I2F:
+                frame.pushFloat(frame.popInt());
+                break;
+            case Const.I2D:
+                frame.pushDouble(frame.popInt());
+                break;
+            case Const.I2B:
+                frame.pushInt((byte) frame.popInt());
+                break;
+            case Const.I2C:
+                frame.pushInt((char) frame.popInt());
+                break;
+            case Const.I2S:
+                frame.pushInt((short) frame.popInt());
+                break;
+            case Const.L2I:
+                frame.pushInt((int) frame.popLong());
+                break;
+            case Const.L2F:
+                frame.pushFloat(frame.popLong());
+                break;
+            case Const.L2D:
+                frame.pushDouble(frame.popLong());
+                break;
+            case Const.F2I:
+                frame.pushInt((int) frame.popFloat());
+                break;
+            case Const.F2L:
+                frame.pushLong((long) frame.popFloat());
+                break;
+            case Const.F2D:
+                frame.pushDouble(frame.popFloat());
+                break;
+            case Const.D2I:
+                frame.pushInt((int) frame.popDouble());
+                break;
+            case Const.D2L:
+                frame.pushLong((long) frame.popDouble());
+                break;
+            case Const.D2F:
+                frame.pushFloat((float) frame.popDouble());
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * FCMPx/DCMPx: 1, 0 or -1 as value1 is greater than, equal to or less than value2. If either is NaN the result is
+     * 1 for the G variant and -1 for the L variant.
+     */
+    private static int compare(double value1, double value2, boolean nanIsGreater)
+    {
+        if (value1 > value2) {
+            return 1;
+        }
+        if (value1 == value2) {
+            return 0;
+        }
+        if (value1 < value2) {
+            return -1;
+        }
+        return nanIsGreater ? 1 : -1;
+    }
+}
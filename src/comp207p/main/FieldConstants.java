@@ -0,0 +1,320 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantDouble;
+import org.apache.bcel.classfile.ConstantFieldref;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantLong;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.ConstantValue;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * FIELD CONSTANTS
+ * Index of the static final fields whose value is known before any code reads them, so that GETSTATIC of such a field
+ * can be folded like a constant push. A field is known if
+ * - it has a ConstantValue attribute, or
+ * - it is assigned exactly once, by a constant, in a trivial static initialiser: one that does nothing but store
+ *   constants to static fields of its own class.
+ *
+ * A GETSTATIC of another class initialises that class, and before it its superclasses and the superinterfaces that
+ * declare default methods, so a field of another class is only folded if initialising all of them has no effect: each
+ * must be in the index with no static initialiser or a trivial one. java.lang.Object and the interfaces of the JDK are
+ * taken to be free of effects; any other class missing from the index is not. In its own class a field can always be
+ * folded, as the class is initialised by the time its code runs. A field with a ConstantValue attribute is a constant
+ * variable, whose use never initialises its class (JLS 12.4.1), so it is folded wherever it is read.
+ *
+ * By default the ConstantFolder indexes only the class it optimises. BatchFolder can index a whole directory or JAR
+ * first and share the index between all classes; the index is safe to use from any number of threads once built.
+ */
+public final class FieldConstants {
+    /**
+     * The known fields of one class, whether its own static initialiser can be skipped, and the classes whose
+     * initialisation it starts.
+     */
+    private static class ClassFields {
+        final boolean initialisationFree;
+        final Map<String, long[]> values;
+        /** Keys of the fields whose value is given by a ConstantValue attribute. */
+        final Set<String> constantValues;
+        /** Superclass, null for java.lang.Object and interfaces. */
+        final String superclassName;
+        final String[] interfaceNames;
+
+        ClassFields(boolean initialisationFree, Map<String, long[]> values, Set<String> constantValues,
+                    String superclassName, String[] interfaceNames)
+        {
+            this.initialisationFree = initialisationFree;
+            this.values = values;
+            this.constantValues = constantValues;
+            this.superclassName = superclassName;
+            this.interfaceNames = interfaceNames;
+        }
+    }
+
+    private final ConcurrentHashMap<String, ClassFields> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes a class given as the bytes of its class file.
+     */
+    public void addClassFile(byte[] classFile, String fileName) throws IOException
+    {
+        add(new ClassParser(new ByteArrayInputStream(classFile), fileName).parse());
+    }
+
+    /**
+     * Indexes a class. Indexing a class a second time has no effect.
+     */
+    public void add(JavaClass javaClass)
+    {
+        if (classes.containsKey(javaClass.getClassName())) {
+            return;
+        }
+        ConstantPool cp = javaClass.getConstantPool();
+        Map<String, long[]> values = new HashMap<>();
+        Set<String> constantValues = new HashSet<>();
+        Set<String> finals = new HashSet<>();
+        for (Field field : javaClass.getFields()) {
+            if (!field.isStatic() || !field.isFinal()) {
+                continue;
+            }
+            String key = key(field.getName(), field.getSignature());
+            finals.add(key);
+            ConstantValue constantValue = field.getConstantValue();
+            if (constantValue != null) {
+                long[] value = valueOf(cp.getConstant(constantValue.getConstantValueIndex()));
+                if (value != null) {
+                    values.put(key, value);
+                    constantValues.add(key);
+                }
+            }
+        }
+
+        boolean initialisationFree = true;
+        for (Method method : javaClass.getMethods()) {
+            if (method.getName().equals(Const.STATIC_INITIALIZER_NAME)) {
+                initialisationFree = addInitialisedFields(javaClass.getClassName(), method.getCode(), cp, finals,
+                        values);
+            }
+        }
+        // a field the initialiser stores to is no longer given by its ConstantValue alone
+        constantValues.retainAll(values.keySet());
+        String superclassName = javaClass.isInterface() || javaClass.getClassName().equals("java.lang.Object") ? null
+                : javaClass.getSuperclassName();
+        classes.putIfAbsent(javaClass.getClassName(), new ClassFields(initialisationFree, values, constantValues,
+                superclassName, javaClass.getInterfaceNames()));
+    }
+
+    /**
+     * Adds the fields a static initialiser assigns constants to, if it is trivial.
+     * @return whether the initialiser is trivial
+     */
+    private static boolean addInitialisedFields(String className, Code code, ConstantPool cp, Set<String> finals,
+                                                Map<String, long[]> values)
+    {
+        if (code == null || code.getExceptionTable().length > 0) {
+            return false;
+        }
+        Map<String, long[]> assigned = new HashMap<>();
+        Set<String> reassigned = new HashSet<>();
+        long[] pushed = null;
+        for (InstructionHandle handle : new InstructionList(code.getCode()).getInstructionHandles()) {
+            Instruction inst = handle.getInstruction();
+            if (pushed != null && inst instanceof PUTSTATIC) {
+                ConstantFieldref ref = (ConstantFieldref) cp.getConstant(((PUTSTATIC) inst).getIndex());
+                ConstantNameAndType nameAndType = (ConstantNameAndType) cp.getConstant(ref.getNameAndTypeIndex());
+                if (!ref.getClass(cp).equals(className)) {
+                    return false;
+                }
+                String key = key(nameAndType.getName(cp), nameAndType.getSignature(cp));
+                if (assigned.put(key, pushed) != null) {
+                    reassigned.add(key);
+                }
+                pushed = null;
+                continue;
+            }
+            if (pushed == null) {
+                pushed = pushedValue(inst, cp);
+                if (pushed != null) {
+                    continue;
+                }
+            }
+            if (!(inst instanceof RETURN) && !(inst instanceof NOP)) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, long[]> field : assigned.entrySet()) {
+            String key = field.getKey();
+            if (!finals.contains(key)) {
+                continue;
+            }
+            if (reassigned.contains(key) || values.containsKey(key)) {
+                values.remove(key);
+            } else {
+                values.put(key, field.getValue());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The tag and bits of the value a constant push instruction pushes, or null if it is not one.
+     */
+    private static long[] pushedValue(Instruction inst, ConstantPool cp)
+    {
+        if (inst instanceof LDC || inst instanceof LDC2_W) {
+            return valueOf(cp.getConstant(((CPInstruction) inst).getIndex()));
+        }
+        if (!(inst instanceof ConstantPushInstruction)) {
+            return null;
+        }
+        Number value = ((ConstantPushInstruction) inst).getValue();
+        if (value instanceof Long) {
+            return new long[]{Frame.LONG, value.longValue()};
+        } else if (value instanceof Float) {
+            return new long[]{Frame.FLOAT, Float.floatToRawIntBits(value.floatValue())};
+        } else if (value instanceof Double) {
+            return new long[]{Frame.DOUBLE, Double.doubleToRawLongBits(value.doubleValue())};
+        }
+        return new long[]{Frame.INT, value.intValue()};
+    }
+
+    private static long[] valueOf(Constant constant)
+    {
+        if (constant instanceof ConstantInteger) {
+            return new long[]{Frame.INT, ((ConstantInteger) constant).getBytes()};
+        } else if (constant instanceof ConstantFloat) {
+            return new long[]{Frame.FLOAT, Float.floatToRawIntBits(((ConstantFloat) constant).getBytes())};
+        } else if (constant instanceof ConstantLong) {
+            return new long[]{Frame.LONG, ((ConstantLong) constant).getBytes()};
+        } else if (constant instanceof ConstantDouble) {
+            return new long[]{Frame.DOUBLE, Double.doubleToRawLongBits(((ConstantDouble) constant).getBytes())};
+        }
+        return null;
+    }
+
+    private static String key(String name, String signature)
+    {
+        return name + ':' + signature;
+    }
+
+    /**
+     * Pushes the value of a static field if it is known.
+     * @param owner class the field is accessed through
+     * @param fromOwner whether the access is made by code of that class itself
+     * @return false, leaving the frame untouched, if the field is not known or may not be folded
+     */
+    boolean push(String owner, String name, String signature, boolean fromOwner, Frame frame)
+    {
+        long[] value = value(owner, name, signature, fromOwner);
+        if (value == null) {
+            return false;
+        }
+        frame.pushValue((byte) value[0], value[1]);
+        return true;
+    }
+
+    /**
+     * Whether push would push the value of a static field.
+     */
+    boolean knows(String owner, String name, String signature, boolean fromOwner)
+    {
+        return value(owner, name, signature, fromOwner) != null;
+    }
+
+    private long[] value(String owner, String name, String signature, boolean fromOwner)
+    {
+        ClassFields fields = classes.get(owner);
+        if (fields == null) {
+            return null;
+        }
+        String key = key(name, signature);
+        if (!fromOwner && !fields.constantValues.contains(key) && !isInitialisationFree(owner)) {
+            return null;
+        }
+        return fields.values.get(key);
+    }
+
+    /**
+     * Whether initialising a class has no effect: neither its own static initialiser nor those of its superclasses
+     * and superinterfaces do anything but store constants.
+     */
+    private boolean isInitialisationFree(String className)
+    {
+        for (String name = className; name != null; ) {
+            ClassFields fields = classes.get(name);
+            if (fields == null) {
+                return name.equals("java.lang.Object");
+            }
+            if (!fields.initialisationFree || !areInterfacesFree(fields.interfaceNames)) {
+                return false;
+            }
+            name = fields.superclassName;
+        }
+        return true;
+    }
+
+    /**
+     * Whether initialising interfaces, and the interfaces they extend, has no effect.
+     */
+    private boolean areInterfacesFree(String[] interfaceNames)
+    {
+        for (String name : interfaceNames) {
+            ClassFields fields = classes.get(name);
+            if (fields == null) {
+                if (!name.startsWith("java.")) {
+                    return false;
+                }
+            } else if (!fields.initialisationFree || !areInterfacesFree(fields.interfaceNames)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash of every known field and value, which changes whenever a constant the folder may inline does.
+     */
+    public String fingerprint()
+    {
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (Map.Entry<String, ClassFields> entry : classes.entrySet()) {
+            ClassFields fields = entry.getValue();
+            for (Map.Entry<String, long[]> field : fields.values.entrySet()) {
+                sorted.put(entry.getKey() + '.' + field.getKey(), isInitialisationFree(entry.getKey()) + ":"
+                        + fields.constantValues.contains(field.getKey()) + ":"
+                        + field.getValue()[0] + ":" + field.getValue()[1]);
+            }
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Map.Entry<String, String> field : sorted.entrySet()) {
+                digest.update((field.getKey() + '=' + field.getValue() + '\n').getBytes(StandardCharsets.UTF_8));
+            }
+            return ClassCache.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package comp207p.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * FOLDING AGENT
+ * Java agent that runs the constant folder on classes as they are loaded, for code that cannot be rebuilt with
+ * BatchFolder, e.g. third-party JARs:
+ *
+ *     java -javaagent:constant-folding.jar=include=com.acme.:org.example.,cache=/var/cache/folding -jar app.jar
+ *
+ * The options are separated by commas:
+ * - include=<prefixes>: only classes whose name starts with one of these colon-separated prefixes are folded; by
+ *   default every class not excluded is;
+ * - exclude=<prefixes>: classes whose name starts with one of these are never folded. Classes of the JDK, of BCEL and
+ *   of the folder itself are always excluded, as are classes of the bootstrap loader;
+ * - cache=<directory>: ClassCache the results are kept in, by default comp207p-agent-cache in the temporary
+ *   directory, or none to fold every class on every start;
+ * - cacheSize=<MB>: bound of the cache, 512 MB by default;
+ * - report=<file>: file the time added to loading each class is written to when the JVM exits.
+ *
+ * The cache is what makes later starts cheap: a class seen before is looked up by the hash of its bytes without being
+ * parsed, and a class with nothing to fold is remembered as such, so it costs one lookup. A class is left as it is
+ * whenever the folder fails on it; the agent never stops a class from loading.
+ *
+ * BCEL must be on the class path of the application, or be added to the agent JAR.
+ */
+public final class FoldingAgent implements ClassFileTransformer {
+    /** Packages that are never folded: the folder cannot rewrite the classes it is itself loading. */
+    private static final String[] ALWAYS_EXCLUDED = {
+            "java.", "javax.", "jdk.", "sun.", "com.sun.", "org.apache.bcel.", "comp207p.main."
+    };
+
+    /**
+     * Time spent on one class and what became of it.
+     */
+    private static class ClassTiming {
+        final String className;
+        final String outcome;
+        final long nanos;
+
+        ClassTiming(String className, String outcome, long nanos)
+        {
+            this.className = className;
+            this.outcome = outcome;
+            this.nanos = nanos;
+        }
+    }
+
+    private final String[] includes;
+    private final String[] excludes;
+    private final ClassCache cache;
+    private final ConcurrentLinkedQueue<ClassTiming> timings = new ConcurrentLinkedQueue<>();
+
+    /** Set while a thread is folding, so that the classes loaded by the folder itself are passed through. */
+    private final ThreadLocal<Boolean> busy = new ThreadLocal<>();
+
+    FoldingAgent(String[] includes, String[] excludes, ClassCache cache)
+    {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.cache = cache;
+    }
+
+    public static void premain(String arguments, Instrumentation instrumentation) throws IOException
+    {
+        install(arguments, instrumentation);
+    }
+
+    /**
+     * Entry point when the agent is attached to a running JVM. Only classes loaded from then on are folded.
+     */
+    public static void agentmain(String arguments, Instrumentation instrumentation) throws IOException
+    {
+        install(arguments, instrumentation);
+    }
+
+    private static void install(String arguments, Instrumentation instrumentation) throws IOException
+    {
+        String[] includes = new String[0];
+        String[] excludes = new String[0];
+        String cacheDir = new File(System.getProperty("java.io.tmpdir"), "comp207p-agent-cache").getPath();
+        long cacheMegabytes = ClassCache.DEFAULT_MEGABYTES;
+        String reportFile = null;
+        if (arguments != null && !arguments.isEmpty()) {
+            for (String option : arguments.split(",")) {
+                int separator = option.indexOf('=');
+                String name = separator < 0 ? option : option.substring(0, separator);
+                String value = separator < 0 ? "" : option.substring(separator + 1);
+                switch (name) {
+                    case "include":
+                        includes = prefixes(value);
+                        break;
+                    case "exclude":
+                        excludes = prefixes(value);
+                        break;
+                    case "cache":
+                        cacheDir = value;
+                        break;
+                    case "cacheSize":
+                        cacheMegabytes = Long.parseLong(value);
+                        break;
+                    case "report":
+                        reportFile = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown agent option " + option);
+                }
+            }
+        }
+
+        ClassCache cache = null;
+        if (!cacheDir.equals("none")) {
+            cache = new ClassCache(new File(cacheDir), cacheMegabytes * 1024 * 1024, ConstantFolder.configuration());
+        }
+        final FoldingAgent agent = new FoldingAgent(includes, excludes, cache);
+        instrumentation.addTransformer(agent);
+
+        if (reportFile != null) {
+            final File report = new File(reportFile);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    agent.writeReport(report);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "folding-agent-report"));
+        }
+    }
+
+    private static String[] prefixes(String list)
+    {
+        List<String> prefixes = new ArrayList<>();
+        for (String prefix : list.split(":")) {
+            if (!prefix.isEmpty()) {
+                prefixes.add(prefix);
+            }
+        }
+        return prefixes.toArray(new String[0]);
+    }
+
+    /**
+     * Whether a class, given by its binary name with dots, may be folded.
+     */
+    boolean accepts(String className)
+    {
+        for (String prefix : ALWAYS_EXCLUDED) {
+            if (className.startsWith(prefix)) {
+                return false;
+            }
+        }
+        for (String prefix : excludes) {
+            if (className.startsWith(prefix)) {
+                return false;
+            }
+        }
+        if (includes.length == 0) {
+            return true;
+        }
+        for (String prefix : includes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String internalName, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classFile)
+    {
+        // classes of the bootstrap loader, redefinitions and hidden classes are left alone
+        if (loader == null || classBeingRedefined != null || internalName == null || busy.get() != null) {
+            return null;
+        }
+        String className = internalName.replace('/', '.');
+        if (!accepts(className)) {
+            return null;
+        }
+        busy.set(Boolean.TRUE);
+        try {
+            return fold(classFile, internalName + ".class");
+        } finally {
+            busy.remove();
+        }
+    }
+
+    /**
+     * Folds one class, recording how long it took.
+     * @return the folded class file, or null to load the class as it is
+     */
+    private byte[] fold(byte[] classFile, String fileName)
+    {
+        long start = System.nanoTime();
+        byte[] result = null;
+        String outcome;
+        try {
+            result = cache != null ? cache.optimizeClass(classFile, fileName)
+                    : ConstantFolder.optimizeClass(classFile, fileName);
+            outcome = result != null ? "optimised" : "unchanged";
+        } catch (Exception | LinkageError e) {
+            if (Trace.INFO) {
+                Trace.log("Folding agent failed on " + fileName + ": " + e);
+            }
+            outcome = "failed";
+        }
+        long nanos = System.nanoTime() - start;
+        timings.add(new ClassTiming(fileName, outcome, nanos));
+        if (Trace.INFO) {
+            Trace.log(String.format("Folding agent: %s %s in %.3f ms", fileName, outcome, nanos / 1e6));
+        }
+        return result;
+    }
+
+    /**
+     * Writes the time spent on every class, one class per line, followed by the total and the cache statistics.
+     */
+    void writeReport(File report) throws IOException
+    {
+        long total = 0;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8))) {
+            out.println("nanos\toutcome\tclass");
+            for (ClassTiming timing : timings) {
+                out.println(timing.nanos + "\t" + timing.outcome + "\t" + timing.className);
+                total += timing.nanos;
+            }
+            out.printf("# %d classes, %.3f ms added to class loading%n", timings.size(), total / 1e6);
+            if (cache != null) {
+                out.println("# " + cache);
+            }
+        }
+    }
+}
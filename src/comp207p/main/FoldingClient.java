@@ -0,0 +1,179 @@
+package comp207p.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * FOLDING CLIENT
+ * Sends classes to a running FoldingDaemon over one connection, which can carry any number of requests. From the
+ * command line it optimises pairs of class files, so that a build can call it with the classes it has just compiled:
+ *
+ *     java -cp constant-folding.jar comp207p.main.FoldingClient build/A.class out/A.class build/B.class out/B.class
+ *
+ * It prints the outcome of every class and exits with 1 if any failed or the daemon cannot be reached, so that the
+ * build can fall back to BatchFolder. --stats prints the counters of the daemon and --shutdown stops it. The token the
+ * daemon requires is read from the file it wrote it to, which must be given with --token-file if the daemon was.
+ *
+ * Usage: FoldingClient [--port <port>] [--token-file <file>] (--stats | --shutdown | <input.class> <output.class> ...)
+ */
+public class FoldingClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Connects to a daemon listening on the loopback interface, with the token from the default file of the port.
+     */
+    public FoldingClient(int port) throws IOException
+    {
+        this(port, FoldingDaemon.readToken(FoldingDaemon.tokenFile(port)));
+    }
+
+    /**
+     * Connects to a daemon listening on the loopback interface.
+     * @param token the token the daemon wrote to its token file
+     */
+    public FoldingClient(int port, String token) throws IOException
+    {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // sent with the first request; a wrong token makes the answer to it fail
+        out.writeUTF(token);
+    }
+
+    /**
+     * Has the daemon optimise a class file and write the result, or a copy of it if there was nothing to fold.
+     * @return true if the class was optimised
+     * @throws IOException with the message of the daemon if the class could not be optimised
+     */
+    public boolean optimizeFile(File input, File output) throws IOException
+    {
+        out.writeUTF(FoldingDaemon.PATH);
+        out.writeUTF(input.getAbsolutePath());
+        out.writeUTF(output.getAbsolutePath());
+        out.flush();
+        return readStatus().equals(FoldingDaemon.OPTIMIZED);
+    }
+
+    /**
+     * Has the daemon optimise the bytes of a class file.
+     * @return the optimised class file, or null if there was nothing to fold, like ConstantFolder.optimizeClass
+     * @throws IOException with the message of the daemon if the class could not be optimised
+     */
+    public byte[] optimizeClass(byte[] classFile, String fileName) throws IOException
+    {
+        out.writeUTF(FoldingDaemon.CLASS);
+        out.writeUTF(fileName);
+        out.writeInt(classFile.length);
+        out.write(classFile);
+        out.flush();
+        if (readStatus().equals(FoldingDaemon.UNCHANGED)) {
+            return null;
+        }
+        byte[] result = new byte[in.readInt()];
+        in.readFully(result);
+        return result;
+    }
+
+    /**
+     * The counters of the daemon and of its cache.
+     */
+    public String stats() throws IOException
+    {
+        out.writeUTF(FoldingDaemon.STATS);
+        out.flush();
+        readStatus();
+        return in.readUTF();
+    }
+
+    /**
+     * Stops the daemon; the connection cannot be used afterwards.
+     */
+    public void shutdown() throws IOException
+    {
+        out.writeUTF(FoldingDaemon.SHUTDOWN);
+        out.flush();
+        readStatus();
+        in.readUTF();
+    }
+
+    private String readStatus() throws IOException
+    {
+        String status = in.readUTF();
+        if (status.equals(FoldingDaemon.FAILED)) {
+            throw new IOException(in.readUTF());
+        }
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+
+    public static void main(String[] args)
+    {
+        int port = FoldingDaemon.DEFAULT_PORT;
+        String tokenFile = null;
+        boolean stats = false;
+        boolean shutdown = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--token-file") && i + 1 < args.length) {
+                tokenFile = args[++i];
+            } else if (args[i].equals("--stats")) {
+                stats = true;
+            } else if (args[i].equals("--shutdown")) {
+                shutdown = true;
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() % 2 != 0 || (files.isEmpty() && !stats && !shutdown)) {
+            System.err.println("Usage: FoldingClient [--port <port>] [--token-file <file>] (--stats | --shutdown | "
+                    + "<input.class> <output.class> ...)");
+            System.exit(2);
+        }
+
+        int failed = 0;
+        try (FoldingClient client = new FoldingClient(port, FoldingDaemon.readToken(
+                tokenFile != null ? new File(tokenFile) : FoldingDaemon.tokenFile(port)))) {
+            for (int i = 0; i < files.size(); i += 2) {
+                try {
+                    boolean optimized = client.optimizeFile(new File(files.get(i)), new File(files.get(i + 1)));
+                    System.out.println((optimized ? FoldingDaemon.OPTIMIZED : FoldingDaemon.UNCHANGED) + " "
+                            + files.get(i));
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    failed++;
+                }
+            }
+            if (stats) {
+                System.out.println(client.stats());
+            }
+            if (shutdown) {
+                client.shutdown();
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot reach the folding daemon on port " + port + ": " + e);
+            System.exit(1);
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package comp207p.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * FOLDING DAEMON
+ * Keeps the constant folder resident in one JVM and optimises the classes it is sent, so that a build calling it for
+ * every changed class pays for starting the JVM, loading BCEL and warming up the JIT once instead of on every call.
+ * FoldingClient is the client for build tools and scripts.
+ *
+ * The daemon listens on a TCP port of the loopback interface, or with --stdio reads requests from its standard input
+ * and writes the answers to its standard output, for a build tool that starts it as a child process. Any number of
+ * connections are served at once, each on its own thread and each with as many requests as the client wants to send.
+ * Every class gets its own ConstantFolder, as in BatchFolder, so concurrent requests share no evaluation state.
+ *
+ * A request is a command written with DataOutput.writeUTF, followed by its arguments:
+ * - path <input> <output>: optimises the class file at the path input and writes the result to the path output, or a
+ *   copy of the input if there was nothing to fold. Paths are absolute, as the daemon has its own working directory;
+ * - class <file name> <length> <bytes>: optimises the class file sent, the length being written with writeInt;
+ * - stats: the number of classes served so far, and the state of the cache;
+ * - shutdown: stops the daemon once the requests being served are answered; connections waiting for their next
+ *   request are closed.
+ * Every answer starts with a status: optimized or unchanged, then for class the length and bytes of the optimised
+ * class if it is optimized; ok, then the text asked for; or failed, then an error message. A failed class does not
+ * close the connection. Output files are written to a temporary file and moved into place, so that a build never
+ * sees a partly written class, even if the daemon is killed.
+ *
+ * With --cache, results are kept in a ClassCache, which survives the daemon and may be shared with BatchFolder.
+ *
+ * A path request makes the daemon read and write files with its own permissions, so a TCP connection must first send
+ * a token, with writeUTF, before any request. The daemon draws a random token when it starts and writes it to a file
+ * only its user can read, ~/.comp207p/daemon-<port>.token unless --token-file is given, and deletes the file when it
+ * stops. A connection sending a wrong token is answered failed and closed. The standard streams of --stdio belong to
+ * the process that started the daemon, so they need no token.
+ *
+ * Usage: FoldingDaemon [--port <port> [--token-file <file>] | --stdio] [--cache <directory>] [--cache-size <MB>]
+ */
+public class FoldingDaemon {
+    /** Port the daemon listens on and the client connects to when none is given. */
+    static final int DEFAULT_PORT = 7207;
+
+    /** Largest class file accepted in a class request; anything bigger is not a class file a JVM would load. */
+    static final int MAX_CLASS_BYTES = 64 * 1024 * 1024;
+
+    /** Random bytes in a token. */
+    private static final int TOKEN_BYTES = 32;
+
+    /** How long a shutdown waits for the requests being served, far longer than optimising any class takes. */
+    private static final long SHUTDOWN_WAIT_MINUTES = 5;
+
+    static final String PATH = "path";
+    static final String CLASS = "class";
+    static final String STATS = "stats";
+    static final String SHUTDOWN = "shutdown";
+
+    static final String OPTIMIZED = "optimized";
+    static final String UNCHANGED = "unchanged";
+    static final String OK = "ok";
+    static final String FAILED = "failed";
+
+    private final ClassCache cache;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "folding-daemon-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket server = null;
+    /** Connections being served, whose input is closed on shutdown so that they stop waiting for requests. */
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    private final long started = System.nanoTime();
+    private final AtomicInteger optimizedCount = new AtomicInteger();
+    private final AtomicInteger unchangedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    /**
+     * @param cache cache to look up and store results in, or null to optimise every class sent
+     */
+    public FoldingDaemon(ClassCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * The file the token of the daemon listening on a port is written to by default.
+     */
+    static File tokenFile(int port)
+    {
+        return new File(new File(System.getProperty("user.home"), ".comp207p"), "daemon-" + port + ".token");
+    }
+
+    /**
+     * Reads the token a client must send, as written by listen.
+     */
+    static String readToken(File tokenFile) throws IOException
+    {
+        return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * Writes a new random token to a file only the user running the daemon can read.
+     */
+    private static String writeToken(File tokenFile) throws IOException
+    {
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        String token = ClassCache.toHex(random);
+        Path directory = tokenFile.toPath().toAbsolutePath().getParent();
+        try {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createDirectories(directory);
+        }
+        // temporary files are created readable and writable by their owner only
+        writeAtomically(tokenFile.toPath(), token.getBytes(StandardCharsets.US_ASCII));
+        return token;
+    }
+
+    /**
+     * Accepts connections on a port of the loopback interface until a shutdown request.
+     * @param port port to listen on, 0 for any free port
+     * @param tokenFile file to write the token to, or null for the default file of the port
+     */
+    public void listen(int port, File tokenFile) throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            synchronized (this) {
+                server = socket;
+            }
+            if (tokenFile == null) {
+                tokenFile = tokenFile(socket.getLocalPort());
+            }
+            String token = writeToken(tokenFile);
+            try {
+                // build tools starting the daemon read the port from this line, which matters with port 0
+                System.out.println("Listening on port " + socket.getLocalPort() + ", token in " + tokenFile);
+                System.out.flush();
+                accept(socket, token);
+            } finally {
+                Files.deleteIfExists(tokenFile.toPath());
+            }
+        }
+        try {
+            if (!connections.awaitTermination(SHUTDOWN_WAIT_MINUTES, TimeUnit.MINUTES)) {
+                System.err.println("Stopped with requests still being served");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept(ServerSocket socket, String token) throws IOException
+    {
+        try {
+            while (running) {
+                Socket connection;
+                try {
+                    connection = socket.accept();
+                } catch (IOException e) {
+                    if (!running) {
+                        break;
+                    }
+                    throw e;
+                }
+                open.add(connection);
+                if (!running) {
+                    // stop may have run before the connection was added
+                    connection.shutdownInput();
+                }
+                connections.execute(() -> {
+                    try (Socket client = connection) {
+                        serve(client.getInputStream(), client.getOutputStream(), token);
+                    } catch (IOException e) {
+                        System.err.println("Connection failed: " + e);
+                    } finally {
+                        open.remove(connection);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    /**
+     * Answers the requests read from a stream until it ends or a shutdown request.
+     */
+    public void serve(InputStream input, OutputStream output) throws IOException
+    {
+        serve(input, output, null);
+    }
+
+    /**
+     * @param token token the stream must start with, or null if it needs none
+     */
+    private void serve(InputStream input, OutputStream output, String token) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        if (token != null && !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+            out.writeUTF(FAILED);
+            out.writeUTF("Wrong token");
+            out.flush();
+            return;
+        }
+        while (running) {
+            String command;
+            try {
+                command = in.readUTF();
+            } catch (EOFException e) {
+                return;
+            }
+            switch (command) {
+                case PATH:
+                    optimizeFile(new File(in.readUTF()), new File(in.readUTF()), out);
+                    break;
+                case CLASS:
+                    String fileName = in.readUTF();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_CLASS_BYTES) {
+                        throw new IOException("Class of " + length + " bytes refused");
+                    }
+                    byte[] classFile = new byte[length];
+                    in.readFully(classFile);
+                    optimizeBytes(classFile, fileName, out);
+                    break;
+                case STATS:
+                    out.writeUTF(OK);
+                    out.writeUTF(toString());
+                    break;
+                case SHUTDOWN:
+                    out.writeUTF(OK);
+                    out.writeUTF("Shutting down");
+                    stop();
+                    break;
+                default:
+                    out.writeUTF(FAILED);
+                    out.writeUTF("Unknown command " + command);
+                    break;
+            }
+            out.flush();
+        }
+    }
+
+    private void optimizeFile(File input, File output, DataOutputStream out) throws IOException
+    {
+        try {
+            byte[] original = Files.readAllBytes(input.toPath());
+            byte[] result = optimize(original, input.getName());
+            writeAtomically(output.toPath(), result != null ? result : original);
+            out.writeUTF(result != null ? OPTIMIZED : UNCHANGED);
+        } catch (Exception e) {
+            fail(input.getPath(), e, out);
+        }
+    }
+
+    /**
+     * Writes a file through a temporary file in the same directory, so that it never exists partly written.
+     */
+    private static void writeAtomically(Path target, byte[] bytes) throws IOException
+    {
+        Path parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporary, bytes);
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+        } finally {
+            if (temporary != null) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    private void optimizeBytes(byte[] classFile, String fileName, DataOutputStream out) throws IOException
+    {
+        byte[] result;
+        try {
+            result = optimize(classFile, fileName);
+        } catch (Exception e) {
+            fail(fileName, e, out);
+            return;
+        }
+        if (result == null) {
+            out.writeUTF(UNCHANGED);
+            return;
+        }
+        out.writeUTF(OPTIMIZED);
+        out.writeInt(result.length);
+        out.write(result);
+    }
+
+    private byte[] optimize(byte[] classFile, String fileName) throws IOException
+    {
+        byte[] result = cache != null ? cache.optimizeClass(classFile, fileName)
+                : ConstantFolder.optimizeClass(classFile, fileName);
+        (result != null ? optimizedCount : unchangedCount).incrementAndGet();
+        return result;
+    }
+
+    private void fail(String name, Exception e, DataOutputStream out) throws IOException
+    {
+        System.err.println("Failed to optimise " + name);
+        e.printStackTrace();
+        failedCount.incrementAndGet();
+        out.writeUTF(FAILED);
+        out.writeUTF("Failed to optimise " + name + ": " + e);
+    }
+
+    /**
+     * Stops accepting connections and ends every connection after the request it is serving. listen returns once
+     * those requests are answered.
+     */
+    public void stop()
+    {
+        running = false;
+        synchronized (this) {
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
+        for (Socket connection : open) {
+            try {
+                // a request already read is still answered; a connection waiting for one sees its end
+                connection.shutdownInput();
+            } catch (IOException ignored) {
+
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        String text = String.format("up %.1f s: %d optimised, %d unchanged, %d failed",
+                (System.nanoTime() - started) / 1e9, optimizedCount.get(), unchangedCount.get(), failedCount.get());
+        return cache != null ? text + "; " + cache : text;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = DEFAULT_PORT;
+        String tokenFile = null;
+        boolean stdio = false;
+        String cacheDir = null;
+        long cacheMegabytes = ClassCache.DEFAULT_MEGABYTES;
+        List<String> unknown = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--token-file") && i + 1 < args.length) {
+                tokenFile = args[++i];
+            } else if (args[i].equals("--stdio")) {
+                stdio = true;
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+                cacheMegabytes = Long.parseLong(args[++i]);
+            } else {
+                unknown.add(args[i]);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            System.err.println("Usage: FoldingDaemon [--port <port> [--token-file <file>] | --stdio] "
+                    + "[--cache <directory>] [--cache-size <MB>]");
+            System.exit(2);
+        }
+
+        ClassCache cache = null;
+        if (cacheDir != null) {
+            cache = new ClassCache(new File(cacheDir), cacheMegabytes * 1024 * 1024, ConstantFolder.configuration());
+        }
+        FoldingDaemon daemon = new FoldingDaemon(cache);
+        if (stdio) {
+            // the answers own standard output: anything else printed, such as traces, goes to standard error
+            PrintStream answers = System.out;
+            System.setOut(System.err);
+            daemon.serve(System.in, answers);
+        } else {
+            daemon.listen(port, tokenFile != null ? new File(tokenFile) : null);
+        }
+        System.err.println(daemon);
+    }
+}
@@ -0,0 +1,374 @@
+package comp207p.main;
+
+import java.util.Arrays;
+
+
+/**
+ * ABSTRACT FRAME
+ * The local variable table and operand stack of a method at one program point, as seen by the constant propagation.
+ * Values are stored unboxed: every slot is a type tag plus the raw bits of the value (ints in the low 32 bits, floats
+ * and doubles as their raw IEEE bits), so evaluating an instruction never allocates.
+ *
+ * The layout follows the JVM: locals occupy slots [0, maxLocals) and the operand stack grows upwards from maxLocals.
+ * A long or double takes two slots, the second of which is tagged HIGH and carries a copy of the bits. Each slot is an
+ * element of the constant lattice UNDEFINED (nothing seen yet) > constant > UNKNOWN (not a constant).
+ *
+ * Strings and the StringBuilders concatenating them are tracked too, see StringValues: their bits are the index of
+ * the string in the constant pool. A builder is mutable, so it is only tracked while a single slot refers to it:
+ * duplicating it or storing it to a local forgets it.
+ *
+ * The arrays are sized from max_stack/max_locals and reused; they only grow when a method needs more room than any
+ * before it.
+ */
+class Frame {
+    static final byte UNKNOWN = 0;
+    static final byte INT = 1;
+    static final byte LONG = 2;
+    static final byte FLOAT = 3;
+    static final byte DOUBLE = 4;
+    static final byte HIGH = 5;
+    static final byte UNDEFINED = 6;
+    static final byte STRING = 7;
+    /** A StringBuilder or StringBuffer holding the string, referred to by this slot only. */
+    static final byte BUILDER = 8;
+    /** A StringBuilder or StringBuffer that was created but not yet initialised. */
+    static final byte NEW_BUILDER = 9;
+
+    byte[] tags = new byte[16];
+    long[] bits = new long[16];
+    int maxLocals = 0;
+    int sp = 0;
+
+    /**
+     * Empties the stack and marks every local as undefined, growing the arrays if needed.
+     * @param maxStack max_stack of the method about to be evaluated
+     * @param maxLocals max_locals of the method about to be evaluated
+     */
+    void reset(int maxStack, int maxLocals)
+    {
+        int size = maxLocals + maxStack;
+        if (tags.length < size) {
+            tags = new byte[size];
+            bits = new long[size];
+        }
+        Arrays.fill(tags, 0, maxLocals, UNDEFINED);
+        this.maxLocals = maxLocals;
+        this.sp = maxLocals;
+    }
+
+    void copyFrom(Frame other)
+    {
+        if (tags.length < other.tags.length) {
+            tags = new byte[other.tags.length];
+            bits = new long[other.tags.length];
+        }
+        System.arraycopy(other.tags, 0, tags, 0, other.sp);
+        System.arraycopy(other.bits, 0, bits, 0, other.sp);
+        maxLocals = other.maxLocals;
+        sp = other.sp;
+    }
+
+    /**
+     * MERGE
+     * Joins another frame into this one at a control flow merge point. Slots that agree keep their value, slots that
+     * differ become UNKNOWN and UNDEFINED slots take the other side's value.
+     * @return true if this frame changed
+     */
+    boolean merge(Frame other)
+    {
+        if (other.sp != sp) {
+            throw new IllegalStateException("Stack heights differ at merge point: " + stackSize() + " / " + other.stackSize());
+        }
+        boolean changed = false;
+        for (int i = 0; i < sp; i++) {
+            byte mine = tags[i];
+            byte theirs = other.tags[i];
+            if (mine == UNKNOWN || theirs == UNDEFINED) {
+                continue;
+            }
+            if (mine == UNDEFINED) {
+                tags[i] = theirs;
+                bits[i] = other.bits[i];
+                changed = true;
+            } else if (mine != theirs || bits[i] != other.bits[i]) {
+                tags[i] = UNKNOWN;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Merges only the local variables of another frame, used for the entry state of exception handlers.
+     * @return true if this frame changed
+     */
+    boolean mergeLocals(Frame other)
+    {
+        int savedSp = sp;
+        int otherSp = other.sp;
+        sp = maxLocals;
+        other.sp = other.maxLocals;
+        try {
+            return merge(other);
+        } finally {
+            sp = savedSp;
+            other.sp = otherSp;
+        }
+    }
+
+    int stackSize()
+    {
+        return sp - maxLocals;
+    }
+
+    static boolean isConstant(byte tag)
+    {
+        return (tag >= INT && tag <= HIGH) || tag == STRING;
+    }
+
+    static boolean isBuilder(byte tag)
+    {
+        return tag == BUILDER || tag == NEW_BUILDER;
+    }
+
+    /**
+     * Checks whether the top slots of the stack all hold constants.
+     * @param slots number of slots to check
+     */
+    boolean topIsConstant(int slots)
+    {
+        for (int i = sp - slots; i < sp; i++) {
+            if (!isConstant(tags[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void push(byte tag, long value)
+    {
+        tags[sp] = tag;
+        bits[sp] = value;
+        sp++;
+    }
+
+    /**
+     * Pushes a value, using two slots for longs and doubles.
+     */
+    void pushValue(byte tag, long value)
+    {
+        push(tag, value);
+        if (tag == LONG || tag == DOUBLE) {
+            push(HIGH, value);
+        }
+    }
+
+    /**
+     * Pushes slots that are not constants.
+     */
+    void pushUnknown(int slots)
+    {
+        for (int i = 0; i < slots; i++) {
+            push(UNKNOWN, 0);
+        }
+    }
+
+    void pop(int slots)
+    {
+        sp -= slots;
+    }
+
+    /**
+     * Duplicates the top slots of the stack and inserts the copy further down, as the DUP family of instructions do.
+     * @param count number of slots to duplicate (1 for DUP*, 2 for DUP2*)
+     * @param depth number of slots below them the copy goes under (0 for DUP, 1 for _X1, 2 for _X2)
+     */
+    void dup(int count, int depth)
+    {
+        int base = sp - count - depth;
+        System.arraycopy(tags, base, tags, base + count, count + depth);
+        System.arraycopy(bits, base, bits, base + count, count + depth);
+        System.arraycopy(tags, base + count + depth, tags, base, count);
+        System.arraycopy(bits, base + count + depth, bits, base, count);
+        sp += count;
+        // two slots would refer to the same builder; new builders are duplicated for their constructor
+        for (int i = base; i < base + count; i++) {
+            if (tags[i] == BUILDER) {
+                tags[i] = UNKNOWN;
+                tags[i + count + depth] = UNKNOWN;
+            }
+        }
+    }
+
+    void swap()
+    {
+        byte tag = tags[sp - 1];
+        long value = bits[sp - 1];
+        tags[sp - 1] = tags[sp - 2];
+        bits[sp - 1] = bits[sp - 2];
+        tags[sp - 2] = tag;
+        bits[sp - 2] = value;
+    }
+
+    void pushInt(int value)
+    {
+        push(INT, value);
+    }
+
+    void pushLong(long value)
+    {
+        pushValue(LONG, value);
+    }
+
+    void pushFloat(float value)
+    {
+        push(FLOAT, Float.floatToRawIntBits(value));
+    }
+
+    void pushDouble(double value)
+    {
+        pushValue(DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    int popInt()
+    {
+        sp--;
+        return (int) bits[sp];
+    }
+
+    long popLong()
+    {
+        sp -= 2;
+        return bits[sp];
+    }
+
+    float popFloat()
+    {
+        sp--;
+        return Float.intBitsToFloat((int) bits[sp]);
+    }
+
+    double popDouble()
+    {
+        sp -= 2;
+        return Double.longBitsToDouble(bits[sp]);
+    }
+
+    /**
+     * Tag of the value occupying the given number of slots at the top of the stack.
+     */
+    byte topTag(int size)
+    {
+        return tags[sp - size];
+    }
+
+    long topBits(int size)
+    {
+        return bits[sp - size];
+    }
+
+    /**
+     * Pushes the value of a local variable.
+     * @param size 1, or 2 for longs and doubles
+     */
+    void load(int index, int size)
+    {
+        for (int i = 0; i < size; i++) {
+            push(tags[index + i], bits[index + i]);
+        }
+    }
+
+    /**
+     * Pops a value into a local variable. Overwriting half of a long/double invalidates the other half.
+     * @param size 1, or 2 for longs and doubles
+     */
+    void store(int index, int size)
+    {
+        sp -= size;
+        if (index > 0 && (tags[index - 1] == LONG || tags[index - 1] == DOUBLE)) {
+            tags[index - 1] = UNKNOWN;
+        }
+        if (index + size < maxLocals && tags[index + size] == HIGH) {
+            tags[index + size] = UNKNOWN;
+        }
+        for (int i = 0; i < size; i++) {
+            tags[index + i] = tags[sp + i];
+            bits[index + i] = bits[sp + i];
+        }
+        if (isBuilder(tags[index])) {
+            // the local may be loaded any number of times
+            forgetNewBuilders();
+            tags[index] = UNKNOWN;
+        }
+    }
+
+    /**
+     * Stops tracking the builders that have not been initialised yet, once one of them has more references than the
+     * stack slots tracking it.
+     */
+    void forgetNewBuilders()
+    {
+        for (int i = 0; i < sp; i++) {
+            if (tags[i] == NEW_BUILDER) {
+                tags[i] = UNKNOWN;
+            }
+        }
+    }
+
+    byte localTag(int index)
+    {
+        return tags[index];
+    }
+
+    long localBits(int index)
+    {
+        return bits[index];
+    }
+
+    void setLocal(byte tag, int index, long value)
+    {
+        tags[index] = tag;
+        bits[index] = value;
+    }
+
+    /**
+     * Renders a single value for tracing output.
+     */
+    static String toString(byte tag, long bits)
+    {
+        switch (tag) {
+            case INT:
+                return Integer.toString((int) bits);
+            case LONG:
+                return bits + "L";
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits) + "F";
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(bits));
+            case STRING:
+                return "S#" + bits;
+            case BUILDER:
+                return "B#" + bits;
+            case UNDEFINED:
+                return "-";
+            default:
+                return "?";
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder out = new StringBuilder("[");
+        for (int i = maxLocals; i < sp; i++) {
+            if (tags[i] == HIGH) {
+                continue;
+            }
+            if (i > maxLocals) {
+                out.append(", ");
+            }
+            out.append(toString(tags[i], bits[i]));
+        }
+        return out.append(']').toString();
+    }
+}
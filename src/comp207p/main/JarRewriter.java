@@ -0,0 +1,210 @@
+package comp207p.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+
+/**
+ * JAR REWRITER
+ * Optimises a JAR into a new JAR in one streaming pass. The input is memory mapped, and the output entries are written
+ * in the order of the input through a file channel.
+ * - Resources and directories are copied as their compressed bytes, without being inflated.
+ * - Class files are inflated and optimised on the pool. A class in which nothing was folded is also copied as its
+ *   original compressed bytes, so it is never re-encoded by BCEL or re-deflated.
+ *
+ * At most a few classes per worker are in flight at once, which bounds the memory used for large archives.
+ *
+ * The signature of a signed JAR cannot survive its classes being rewritten: the digests in the manifest would no
+ * longer match, and the JVM would refuse to load the classes. The output of a signed JAR is therefore written unsigned,
+ * without the signature files and without the digests of the manifest, and the summary says so.
+ */
+public class JarRewriter {
+    private static final int IN_FLIGHT_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+    private final ClassCache cache;
+    private final FieldConstants fields;
+
+    private int rewritten = 0;
+    private int unchanged = 0;
+    private int resources = 0;
+    private int failed = 0;
+    private int signatureFiles = 0;
+
+    /**
+     * @param pool pool the classes are optimised on
+     * @param cache cache of optimisation results, or null to optimise every class
+     * @param fields index of static fields shared by all classes, or null to index every class on its own
+     */
+    public JarRewriter(ForkJoinPool pool, ClassCache cache, FieldConstants fields)
+    {
+        this.pool = pool;
+        this.cache = cache;
+        this.fields = fields;
+    }
+
+    /**
+     * An entry waiting to be written, together with the optimisation running for it (null for resources) or the new
+     * contents of a resource (null if it is copied).
+     */
+    private static class Pending {
+        final ZipArchiveReader.Entry entry;
+        final ForkJoinTask<byte[]> task;
+        final byte[] contents;
+
+        Pending(ZipArchiveReader.Entry entry, ForkJoinTask<byte[]> task, byte[] contents)
+        {
+            this.entry = entry;
+            this.task = task;
+            this.contents = contents;
+        }
+    }
+
+    /**
+     * Rewrites every class of a JAR into a new JAR.
+     * @return number of entries written
+     */
+    public int rewrite(File input, File output) throws IOException
+    {
+        long start = System.nanoTime();
+        int window = Math.max(1, pool.getParallelism() * IN_FLIGHT_PER_THREAD);
+
+        try (ZipArchiveReader reader = new ZipArchiveReader(input);
+             ZipArchiveWriter writer = new ZipArchiveWriter(output)) {
+            boolean signed = isSigned(reader.entries());
+            if (signed) {
+                System.err.println("Warning: " + input.getName() + " is signed; " + output.getName()
+                        + " is written without the signature");
+            }
+            ArrayDeque<Pending> pending = new ArrayDeque<>();
+            for (final ZipArchiveReader.Entry entry : reader.entries()) {
+                ForkJoinTask<byte[]> task = null;
+                byte[] contents = null;
+                if (signed && isSignatureFile(entry.name)) {
+                    signatureFiles++;
+                    continue;
+                } else if (signed && entry.name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    contents = withoutDigests(reader.read(entry));
+                } else if (!entry.isDirectory() && entry.name.endsWith(".class")) {
+                    task = pool.submit(() -> cache != null
+                            ? cache.optimizeClass(reader.read(entry), entry.name, fields)
+                            : ConstantFolder.optimizeClass(reader.read(entry), entry.name, fields));
+                }
+                pending.add(new Pending(entry, task, contents));
+                while (pending.size() > window) {
+                    writeNext(pending.poll(), reader, writer);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeNext(pending.poll(), reader, writer);
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        String signature = signatureFiles > 0 ? ", signature removed (" + signatureFiles + " files)" : "";
+        System.out.printf("Rewrote %s: %d classes optimised, %d unchanged, %d failed, %d resources copied%s"
+                + " in %.3f s%n", input.getName(), rewritten, unchanged, failed, resources, signature, seconds);
+        return rewritten + unchanged + failed + resources;
+    }
+
+    private void writeNext(Pending next, ZipArchiveReader reader, ZipArchiveWriter writer) throws IOException
+    {
+        if (next.task == null) {
+            if (next.contents != null) {
+                writer.write(next.entry, next.contents);
+            } else {
+                writer.copyRaw(next.entry, reader.rawData(next.entry));
+            }
+            resources++;
+            return;
+        }
+        byte[] optimized;
+        try {
+            optimized = next.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while optimising " + next.entry.name, e);
+        } catch (ExecutionException e) {
+            System.err.println("Failed to optimise " + next.entry.name);
+            e.getCause().printStackTrace();
+            optimized = null;
+            failed++;
+        }
+        if (optimized == null) {
+            writer.copyRaw(next.entry, reader.rawData(next.entry));
+            if (next.task.isCompletedNormally()) {
+                unchanged++;
+            }
+        } else {
+            writer.write(next.entry, optimized);
+            rewritten++;
+        }
+    }
+
+    private static boolean isSigned(List<ZipArchiveReader.Entry> entries)
+    {
+        for (ZipArchiveReader.Entry entry : entries) {
+            if (isSignatureFile(entry.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether an entry is part of a JAR signature, as java.util.jar.JarFile recognises them: a signature file or
+     * signature block directly in META-INF.
+     */
+    static boolean isSignatureFile(String name)
+    {
+        String upper = name.toUpperCase(Locale.ROOT);
+        if (!upper.startsWith("META-INF/") || upper.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC")
+                || upper.startsWith("META-INF/SIG-");
+    }
+
+    /**
+     * The manifest of a signed JAR without the digests of its entries. Other attributes of the entries, such as
+     * Sealed, are kept.
+     */
+    private static byte[] withoutDigests(byte[] manifestFile) throws IOException
+    {
+        Manifest manifest = new Manifest(new ByteArrayInputStream(manifestFile));
+        Iterator<Map.Entry<String, Attributes>> entries = manifest.getEntries().entrySet().iterator();
+        while (entries.hasNext()) {
+            Attributes attributes = entries.next().getValue();
+            attributes.keySet().removeIf(name -> name.toString().toUpperCase(Locale.ROOT).endsWith("-DIGEST"));
+            if (attributes.isEmpty()) {
+                entries.remove();
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(manifestFile.length);
+        manifest.write(out);
+        return out.toByteArray();
+    }
+
+    public int getRewrittenCount()
+    {
+        return rewritten;
+    }
+
+    public int getFailedCount()
+    {
+        return failed;
+    }
+}
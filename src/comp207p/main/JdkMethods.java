@@ -0,0 +1,272 @@
+package comp207p.main;
+
+
+/**
+ * JDK METHODS
+ * The static JDK methods PureCalls may fold: their result is fully specified by their arguments and does not depend on
+ * the JVM, so computing it here gives the same value as calling it at run time. Methods that throw for some
+ * arguments (floorDiv, addExact, ...) are only folded when they return normally. Methods whose result may differ
+ * between JVMs, such as Math.sin, are deliberately left out.
+ */
+final class JdkMethods {
+    private JdkMethods()
+    {
+    }
+
+    /**
+     * Whether some static methods of a class are whitelisted.
+     */
+    static boolean isWhitelisted(String owner)
+    {
+        return owner.equals("java.lang.Math") || owner.equals("java.lang.Integer") || owner.equals("java.lang.Long");
+    }
+
+    /**
+     * Replaces the constant arguments of a call on top of the stack by its result.
+     * @param method owner, name and signature of the callee, e.g. java.lang.Math.abs(I)I
+     * @param arguments number of stack slots taken by the arguments
+     * @return false, leaving the frame untouched, if the method is not whitelisted or throws
+     */
+    static boolean evaluate(String method, Frame frame, int arguments)
+    {
+        int base = frame.sp - arguments;
+        long[] bits = frame.bits;
+        // the arguments: x and y as the first two ints, a and b as the first two longs, seen at their slots
+        int x = (int) bits[base];
+        int y = arguments > 1 ? (int) bits[base + 1] : 0;
+        long a = bits[base];
+        long b = arguments > 2 ? bits[base + 2] : 0;
+        int shift = arguments == 3 ? (int) bits[base + 2] : 0;
+        float f = Float.intBitsToFloat(x);
+        float g = Float.intBitsToFloat(y);
+        double d = Double.longBitsToDouble(a);
+        double e = Double.longBitsToDouble(b);
+
+        byte tag;
+        long result;
+        try {
+            switch (method) {
+                case "java.lang.Math.abs(I)I":
+                    tag = Frame.INT;
+                    result = Math.abs(x);
+                    break;
+                case "java.lang.Math.abs(J)J":
+                    tag = Frame.LONG;
+                    result = Math.abs(a);
+                    break;
+                case "java.lang.Math.abs(F)F":
+                    tag = Frame.FLOAT;
+                    result = Float.floatToRawIntBits(Math.abs(f));
+                    break;
+                case "java.lang.Math.abs(D)D":
+                    tag = Frame.DOUBLE;
+                    result = Double.doubleToRawLongBits(Math.abs(d));
+                    break;
+                case "java.lang.Math.max(II)I":
+                    tag = Frame.INT;
+                    result = Math.max(x, y);
+                    break;
+                case "java.lang.Math.max(JJ)J":
+                    tag = Frame.LONG;
+                    result = Math.max(a, b);
+                    break;
+                case "java.lang.Math.max(FF)F":
+                    tag = Frame.FLOAT;
+                    result = Float.floatToRawIntBits(Math.max(f, g));
+                    break;
+                case "java.lang.Math.max(DD)D":
+                    tag = Frame.DOUBLE;
+                    result = Double.doubleToRawLongBits(Math.max(d, e));
+                    break;
+                case "java.lang.Math.min(II)I":
+                    tag = Frame.INT;
+                    result = Math.min(x, y);
+                    break;
+                case "java.lang.Math.min(JJ)J":
+                    tag = Frame.LONG;
+                    result = Math.min(a, b);
+                    break;
+                case "java.lang.Math.min(FF)F":
+                    tag = Frame.FLOAT;
+                    result = Float.floatToRawIntBits(Math.min(f, g));
+                    break;
+                case "java.lang.Math.min(DD)D":
+                    tag = Frame.DOUBLE;
+                    result = Double.doubleToRawLongBits(Math.min(d, e));
+                    break;
+                case "java.lang.Math.sqrt(D)D":
+                    tag = Frame.DOUBLE;
+                    result = Double.doubleToRawLongBits(Math.sqrt(d));
+                    break;
+                case "java.lang.Math.floorDiv(II)I":
+                    tag = Frame.INT;
+                    result = Math.floorDiv(x, y);
+                    break;
+                case "java.lang.Math.floorDiv(JJ)J":
+                    tag = Frame.LONG;
+                    result = Math.floorDiv(a, b);
+                    break;
+                case "java.lang.Math.floorMod(II)I":
+                    tag = Frame.INT;
+                    result = Math.floorMod(x, y);
+                    break;
+                case "java.lang.Math.floorMod(JJ)J":
+                    tag = Frame.LONG;
+                    result = Math.floorMod(a, b);
+                    break;
+                case "java.lang.Math.addExact(II)I":
+                    tag = Frame.INT;
+                    result = Math.addExact(x, y);
+                    break;
+                case "java.lang.Math.addExact(JJ)J":
+                    tag = Frame.LONG;
+                    result = Math.addExact(a, b);
+                    break;
+                case "java.lang.Math.subtractExact(II)I":
+                    tag = Frame.INT;
+                    result = Math.subtractExact(x, y);
+                    break;
+                case "java.lang.Math.subtractExact(JJ)J":
+                    tag = Frame.LONG;
+                    result = Math.subtractExact(a, b);
+                    break;
+                case "java.lang.Math.multiplyExact(II)I":
+                    tag = Frame.INT;
+                    result = Math.multiplyExact(x, y);
+                    break;
+                case "java.lang.Math.multiplyExact(JJ)J":
+                    tag = Frame.LONG;
+                    result = Math.multiplyExact(a, b);
+                    break;
+                case "java.lang.Math.toIntExact(J)I":
+                    tag = Frame.INT;
+                    result = Math.toIntExact(a);
+                    break;
+                case "java.lang.Integer.rotateLeft(II)I":
+                    tag = Frame.INT;
+                    result = Integer.rotateLeft(x, y);
+                    break;
+                case "java.lang.Integer.rotateRight(II)I":
+                    tag = Frame.INT;
+                    result = Integer.rotateRight(x, y);
+                    break;
+                case "java.lang.Integer.bitCount(I)I":
+                    tag = Frame.INT;
+                    result = Integer.bitCount(x);
+                    break;
+                case "java.lang.Integer.reverse(I)I":
+                    tag = Frame.INT;
+                    result = Integer.reverse(x);
+                    break;
+                case "java.lang.Integer.reverseBytes(I)I":
+                    tag = Frame.INT;
+                    result = Integer.reverseBytes(x);
+                    break;
+                case "java.lang.Integer.highestOneBit(I)I":
+                    tag = Frame.INT;
+                    result = Integer.highestOneBit(x);
+                    break;
+                case "java.lang.Integer.lowestOneBit(I)I":
+                    tag = Frame.INT;
+                    result = Integer.lowestOneBit(x);
+                    break;
+                case "java.lang.Integer.numberOfLeadingZeros(I)I":
+                    tag = Frame.INT;
+                    result = Integer.numberOfLeadingZeros(x);
+                    break;
+                case "java.lang.Integer.numberOfTrailingZeros(I)I":
+                    tag = Frame.INT;
+                    result = Integer.numberOfTrailingZeros(x);
+                    break;
+                case "java.lang.Integer.signum(I)I":
+                    tag = Frame.INT;
+                    result = Integer.signum(x);
+                    break;
+                case "java.lang.Integer.compare(II)I":
+                    tag = Frame.INT;
+                    result = Integer.compare(x, y);
+                    break;
+                case "java.lang.Integer.max(II)I":
+                    tag = Frame.INT;
+                    result = Integer.max(x, y);
+                    break;
+                case "java.lang.Integer.min(II)I":
+                    tag = Frame.INT;
+                    result = Integer.min(x, y);
+                    break;
+                case "java.lang.Integer.sum(II)I":
+                    tag = Frame.INT;
+                    result = Integer.sum(x, y);
+                    break;
+                case "java.lang.Long.rotateLeft(JI)J":
+                    tag = Frame.LONG;
+                    result = Long.rotateLeft(a, shift);
+                    break;
+                case "java.lang.Long.rotateRight(JI)J":
+                    tag = Frame.LONG;
+                    result = Long.rotateRight(a, shift);
+                    break;
+                case "java.lang.Long.bitCount(J)I":
+                    tag = Frame.INT;
+                    result = Long.bitCount(a);
+                    break;
+                case "java.lang.Long.reverse(J)J":
+                    tag = Frame.LONG;
+                    result = Long.reverse(a);
+                    break;
+                case "java.lang.Long.reverseBytes(J)J":
+                    tag = Frame.LONG;
+                    result = Long.reverseBytes(a);
+                    break;
+                case "java.lang.Long.highestOneBit(J)J":
+                    tag = Frame.LONG;
+                    result = Long.highestOneBit(a);
+                    break;
+                case "java.lang.Long.lowestOneBit(J)J":
+                    tag = Frame.LONG;
+                    result = Long.lowestOneBit(a);
+                    break;
+                case "java.lang.Long.numberOfLeadingZeros(J)I":
+                    tag = Frame.INT;
+                    result = Long.numberOfLeadingZeros(a);
+                    break;
+                case "java.lang.Long.numberOfTrailingZeros(J)I":
+                    tag = Frame.INT;
+                    result = Long.numberOfTrailingZeros(a);
+                    break;
+                case "java.lang.Long.signum(J)I":
+                    tag = Frame.INT;
+                    result = Long.signum(a);
+                    break;
+                case "java.lang.Long.compare(JJ)I":
+                    tag = Frame.INT;
+                    result = Long.compare(a, b);
+                    break;
+                case "java.lang.Long.max(JJ)J":
+                    tag = Frame.LONG;
+                    result = Long.max(a, b);
+                    break;
+                case "java.lang.Long.min(JJ)J":
+                    tag = Frame.LONG;
+                    result = Long.min(a, b);
+                    break;
+                case "java.lang.Long.sum(JJ)J":
+                    tag = Frame.LONG;
+                    result = Long.sum(a, b);
+                    break;
+                default:
+                    return false;
+            }
+        } catch (ArithmeticException exception) {
+            return false;
+        }
+
+        frame.pop(arguments);
+        if (tag == Frame.INT || tag == Frame.FLOAT) {
+            frame.pushValue(tag, (int) result);
+        } else {
+            frame.pushValue(tag, result);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,170 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * LIVENESS
+ * Backward dataflow analysis of the local variables of a method. A local slot is live at a point if some path from
+ * there reads it before writing it. Longs and doubles are tracked by both of their slots.
+ *
+ * An exception can be thrown anywhere inside a protected block, so whatever is live at the entry of one of its
+ * handlers is live at every instruction of the block.
+ */
+class Liveness {
+    private final ControlFlowGraph cfg;
+    private final BitSet[] liveIn;
+
+    /** For every handler block, the blocks it protects. */
+    private final List<List<BasicBlock>> protectedBlocks;
+
+    Liveness(ControlFlowGraph cfg)
+    {
+        this.cfg = cfg;
+        int blocks = cfg.blocks.length;
+        this.liveIn = new BitSet[blocks];
+        this.protectedBlocks = new ArrayList<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            liveIn[i] = new BitSet();
+            protectedBlocks.add(new ArrayList<BasicBlock>());
+        }
+        for (BasicBlock block : cfg.blocks) {
+            for (BasicBlock handler : block.handlers) {
+                protectedBlocks.get(handler.index).add(block);
+            }
+        }
+        analyse();
+    }
+
+    private void analyse()
+    {
+        ArrayDeque<BasicBlock> worklist = new ArrayDeque<>();
+        boolean[] queued = new boolean[cfg.blocks.length];
+        // blocks are visited last to first, which is the natural order of a backward analysis
+        for (int i = cfg.blocks.length - 1; i >= 0; i--) {
+            worklist.add(cfg.blocks[i]);
+            queued[i] = true;
+        }
+        BitSet live = new BitSet();
+        while (!worklist.isEmpty()) {
+            BasicBlock block = worklist.poll();
+            queued[block.index] = false;
+
+            liveOut(block, live);
+            BitSet handlerLive = handlerLive(block);
+            InstructionHandle handle = block.end;
+            while (true) {
+                transfer(handle.getInstruction(), live);
+                live.or(handlerLive);
+                if (handle == block.start) {
+                    break;
+                }
+                handle = handle.getPrev();
+            }
+
+            if (!live.equals(liveIn[block.index])) {
+                liveIn[block.index].or(live);
+                for (BasicBlock predecessor : block.predecessors) {
+                    if (!queued[predecessor.index]) {
+                        queued[predecessor.index] = true;
+                        worklist.add(predecessor);
+                    }
+                }
+                for (BasicBlock covered : protectedBlocks.get(block.index)) {
+                    if (!queued[covered.index]) {
+                        queued[covered.index] = true;
+                        worklist.add(covered);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a local is live at the start of the block.
+     */
+    boolean isLiveIn(BasicBlock block, int local)
+    {
+        return liveIn[block.index].get(local);
+    }
+
+    /**
+     * Sets live to the locals live after the last instruction of the block.
+     */
+    void liveOut(BasicBlock block, BitSet live)
+    {
+        live.clear();
+        for (BasicBlock successor : block.successors) {
+            live.or(liveIn[successor.index]);
+        }
+        live.or(handlerLive(block));
+    }
+
+    /**
+     * The locals live at the entry of any handler protecting the block.
+     */
+    BitSet handlerLive(BasicBlock block)
+    {
+        BitSet live = new BitSet();
+        for (BasicBlock handler : block.handlers) {
+            live.or(liveIn[handler.index]);
+        }
+        return live;
+    }
+
+    /**
+     * Turns the locals live after an instruction into the locals live before it.
+     */
+    static void transfer(Instruction inst, BitSet live)
+    {
+        if (inst instanceof StoreInstruction) {
+            int index = ((StoreInstruction) inst).getIndex();
+            live.clear(index, index + slots(inst));
+        } else if (inst instanceof LoadInstruction) {
+            int index = ((LoadInstruction) inst).getIndex();
+            live.set(index, index + slots(inst));
+        } else if (inst instanceof IINC) {
+            live.set(((IINC) inst).getIndex());
+        } else if (inst instanceof RET) {
+            live.set(((RET) inst).getIndex());
+        }
+    }
+
+    /**
+     * Number of local slots a load or store accesses.
+     */
+    static int slots(Instruction inst)
+    {
+        switch (inst.getOpcode()) {
+            case Const.LLOAD:
+            case Const.LLOAD_0:
+            case Const.LLOAD_1:
+            case Const.LLOAD_2:
+            case Const.LLOAD_3:
+            case Const.DLOAD:
+            case Const.DLOAD_0:
+            case Const.DLOAD_1:
+            case Const.DLOAD_2:
+            case Const.DLOAD_3:
+            case Const.LSTORE:
+            case Const.LSTORE_0:
+            case Const.LSTORE_1:
+            case Const.LSTORE_2:
+            case Const.LSTORE_3:
+            case Const.DSTORE:
+            case Const.DSTORE_0:
+            case Const.DSTORE_1:
+            case Const.DSTORE_2:
+            case Const.DSTORE_3:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * LOOP OPTIMIZER
+ * Loops whose trip count only depends on constants. A loop is found in the control flow graph from its back edges
+ * (jumps to an earlier block, the loop header): it is made of the blocks that reach one of them without passing
+ * through the header. Only loops that are entered from a single block, only through the header, and that are not
+ * protected by an exception handler are considered.
+ *
+ * Each loop is run at optimisation time, starting from the constant state in which it is entered:
+ * - if everything it computes is a constant and nothing it does has an effect (no calls, fields, arrays or objects),
+ *   and it exits within EVALUATION_BUDGET instructions, it is replaced by stores of the final values of the locals it
+ *   writes;
+ * - otherwise, if every branch it takes can still be decided, it is fully unrolled: the instructions along the path
+ *   it takes are copied out in order, provided that path is no longer than UNROLL_BUDGET instructions.
+ * Either way the loop itself is left unreachable, and the folder removes it. Outer loops are tried before the loops
+ * nested in them.
+ *
+ * The budgets are read from the system properties comp207p.loopEvaluationBudget and comp207p.unrollBudget.
+ */
+final class LoopOptimizer {
+    static final int EVALUATION_BUDGET = Integer.getInteger("comp207p.loopEvaluationBudget", 100000);
+    static final int UNROLL_BUDGET = Integer.getInteger("comp207p.unrollBudget", 64);
+
+    private static final int FAILED = 0;
+    private static final int EVALUATED = 1;
+    private static final int UNROLLED = 2;
+
+    private final Frame frame = new Frame();
+    /** Instructions executed by the last run of a loop, while it can still be unrolled. */
+    private final List<InstructionHandle> path = new ArrayList<>();
+    /** Locals written by the last run of a loop. */
+    private final BitSet written = new BitSet();
+    private BasicBlock exit;
+
+    /**
+     * A natural loop: its header, the one block outside it that enters it and the indices of its blocks.
+     */
+    private static class Loop {
+        final BasicBlock header;
+        final BasicBlock entry;
+        final BitSet blocks;
+
+        Loop(BasicBlock header, BasicBlock entry, BitSet blocks)
+        {
+            this.header = header;
+            this.entry = entry;
+            this.blocks = blocks;
+        }
+    }
+
+    /**
+     * Evaluates or unrolls every loop that allows it. The graph and the results of the propagation are stale
+     * afterwards if anything was replaced.
+     * @return number of loops replaced
+     */
+    int optimize(MethodGen methodGen, ControlFlowGraph cfg, ConstantPropagation propagation,
+                 Metrics.MethodMetrics metrics)
+    {
+        InstructionList instList = methodGen.getInstructionList();
+        ConstantPoolGen cpgen = methodGen.getConstantPool();
+        List<Loop> loops = findLoops(cfg, propagation);
+        if (loops.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(loops, new Comparator<Loop>() {
+            @Override
+            public int compare(Loop a, Loop b)
+            {
+                return b.blocks.cardinality() - a.blocks.cardinality();
+            }
+        });
+
+        // blocks of loops already replaced, whose code must not be touched again before the graph is rebuilt
+        BitSet replaced = new BitSet();
+        int count = 0;
+        for (Loop loop : loops) {
+            if (loop.blocks.intersects(replaced) || replaced.get(loop.entry.index)) {
+                continue;
+            }
+            int result = run(loop, cfg, propagation.entryFrame(loop.entry), cpgen, propagation.calls);
+            if (result == FAILED) {
+                continue;
+            }
+            InstructionList code = result == EVALUATED ? storeResults(cpgen) : copyPath();
+            if (code == null) {
+                continue;
+            }
+            replace(loop, code, instList);
+            replaced.or(loop.blocks);
+            replaced.set(loop.entry.index);
+            count++;
+            if (result == EVALUATED) {
+                metrics.loopsEvaluated++;
+            } else {
+                metrics.loopsUnrolled++;
+            }
+            if (Trace.DEBUG) {
+                Trace.log((result == EVALUATED ? "Evaluated" : "Unrolled") + " loop at " + loop.header.start);
+            }
+        }
+        return count;
+    }
+
+    private static List<Loop> findLoops(ControlFlowGraph cfg, ConstantPropagation propagation)
+    {
+        List<Loop> loops = new ArrayList<>();
+        for (BasicBlock header : cfg.blocks) {
+            if (!propagation.isReachable(header)) {
+                continue;
+            }
+            BitSet blocks = new BitSet();
+            blocks.set(header.index);
+            ArrayDeque<BasicBlock> worklist = new ArrayDeque<>();
+            for (BasicBlock latch : header.predecessors) {
+                if (latch.index >= header.index && !blocks.get(latch.index)) {
+                    blocks.set(latch.index);
+                    worklist.add(latch);
+                }
+            }
+            if (worklist.isEmpty()) {
+                continue;
+            }
+            while (!worklist.isEmpty()) {
+                for (BasicBlock predecessor : worklist.poll().predecessors) {
+                    if (!blocks.get(predecessor.index)) {
+                        blocks.set(predecessor.index);
+                        worklist.add(predecessor);
+                    }
+                }
+            }
+
+            BasicBlock entry = null;
+            boolean natural = true;
+            for (int i = blocks.nextSetBit(0); i >= 0 && natural; i = blocks.nextSetBit(i + 1)) {
+                BasicBlock block = cfg.blocks[i];
+                natural = block.handlers.isEmpty();
+                for (BasicBlock predecessor : block.predecessors) {
+                    if (!blocks.get(predecessor.index)) {
+                        natural &= block == header && entry == null;
+                        entry = predecessor;
+                    }
+                }
+            }
+            if (natural && entry != null && propagation.isReachable(entry)) {
+                loops.add(new Loop(header, entry, blocks));
+            }
+        }
+        return loops;
+    }
+
+    /**
+     * Runs a loop from the state at the end of its entry block until it exits, recording what is needed to replace
+     * it.
+     * @return EVALUATED if the loop can be replaced by the values it leaves in its locals, UNROLLED if it can be
+     * replaced by its path, FAILED otherwise
+     */
+    private int run(Loop loop, ControlFlowGraph cfg, Frame entryState, ConstantPoolGen cpgen, PureCalls calls)
+    {
+        InstructionHandle enter = loop.entry.end;
+        Instruction enterInst = enter.getInstruction();
+        boolean jumps = enterInst instanceof GotoInstruction;
+        if (!jumps && !(ControlFlowGraph.fallsThrough(enterInst) && enter.getNext() == loop.header.start)) {
+            return FAILED;
+        }
+
+        frame.copyFrom(entryState);
+        for (InstructionHandle handle = loop.entry.start; ; handle = handle.getNext()) {
+            ConstantPropagation.execute(handle.getInstruction(), frame, cpgen, calls);
+            if (handle == enter) {
+                break;
+            }
+        }
+        if (frame.stackSize() != 0) {
+            return FAILED;
+        }
+
+        // unrolled code would run where the entry block ends, and must not throw to a handler of that block
+        boolean evaluable = true;
+        boolean unrollable = loop.entry.handlers.isEmpty();
+        path.clear();
+        written.clear();
+        int steps = 0;
+        BasicBlock block = loop.header;
+        while (true) {
+            BasicBlock next = null;
+            for (InstructionHandle handle = block.start; next == null; handle = handle.getNext()) {
+                Instruction inst = handle.getInstruction();
+                if (++steps > EVALUATION_BUDGET) {
+                    return FAILED;
+                }
+                if (handle == block.end) {
+                    if (inst instanceof GotoInstruction) {
+                        next = cfg.blockAt(((GotoInstruction) inst).getTarget());
+                    } else if (inst instanceof IfInstruction) {
+                        int branch = ConstantPropagation.evaluateBranch((IfInstruction) inst, frame);
+                        if (branch == ConstantPropagation.UNKNOWN_BRANCH) {
+                            return FAILED;
+                        }
+                        next = cfg.blockAt(branch == ConstantPropagation.TAKEN
+                                ? ((IfInstruction) inst).getTarget() : handle.getNext());
+                    } else if (ControlFlowGraph.fallsThrough(inst) && !(inst instanceof BranchInstruction)) {
+                        next = cfg.blockAt(handle.getNext());
+                    } else {
+                        return FAILED;
+                    }
+                }
+
+                evaluable = evaluable && isPure(inst, cpgen) && frame.topIsConstant(inst.consumeStack(cpgen))
+                        && (!(inst instanceof IINC) || frame.localTag(((IINC) inst).getIndex()) == Frame.INT);
+                if (unrollable && !(inst instanceof GotoInstruction)) {
+                    unrollable = path.size() < UNROLL_BUDGET;
+                    path.add(handle);
+                }
+                if (inst instanceof StoreInstruction || inst instanceof IINC) {
+                    int index = ((LocalVariableInstruction) inst).getIndex();
+                    written.set(index, index + Liveness.slots(inst));
+                }
+
+                ConstantPropagation.execute(inst, frame, cpgen, calls);
+                evaluable = evaluable && frame.topIsConstant(inst.produceStack(cpgen));
+                if (!evaluable && !unrollable) {
+                    return FAILED;
+                }
+            }
+            if (!loop.blocks.get(next.index)) {
+                exit = next;
+                break;
+            }
+            block = next;
+        }
+        if (frame.stackSize() != 0) {
+            return FAILED;
+        }
+        return evaluable ? EVALUATED : unrollable ? UNROLLED : FAILED;
+    }
+
+    /**
+     * Instructions that compute only from constants and have no effect beyond the frame. A static call returning a
+     * value and a static field read also count: their result is only a constant if it was evaluated as a pure call or
+     * a known field.
+     */
+    private static boolean isPure(Instruction inst, ConstantPoolGen cpgen)
+    {
+        if (inst instanceof LoadInstruction) {
+            return !(inst instanceof ALOAD);
+        }
+        if (inst instanceof StoreInstruction) {
+            return !(inst instanceof ASTORE);
+        }
+        if (inst instanceof INVOKESTATIC) {
+            return inst.produceStack(cpgen) > 0;
+        }
+        if (inst instanceof GETSTATIC) {
+            return true;
+        }
+        return inst instanceof IINC || inst instanceof IfInstruction || inst instanceof GotoInstruction
+                || inst instanceof StackInstruction || inst instanceof NOP
+                || ConstantPropagation.isConstantPush(inst, cpgen) || Evaluator.isFoldable(inst.getOpcode());
+    }
+
+    /**
+     * The code replacing an evaluated loop: every local the loop wrote is set to its final value, then control
+     * continues where the loop exits.
+     * @return null if one of them is not a constant
+     */
+    private InstructionList storeResults(ConstantPoolGen cpgen)
+    {
+        InstructionList code = new InstructionList();
+        for (int index = written.nextSetBit(0); index >= 0; index = written.nextSetBit(index + 1)) {
+            byte tag = frame.localTag(index);
+            if (tag == Frame.HIGH && index > 0 && written.get(index - 1)) {
+                continue;
+            }
+            Instruction constant = ConstantFolder.makeConstant(cpgen, tag, frame.localBits(index));
+            if (constant == null) {
+                code.dispose();
+                return null;
+            }
+            code.append(constant);
+            code.append(InstructionFactory.createStore(typeOf(tag), index));
+        }
+        code.append(new GOTO(exit.start));
+        return code;
+    }
+
+    private static Type typeOf(byte tag)
+    {
+        switch (tag) {
+            case Frame.LONG:
+                return Type.LONG;
+            case Frame.FLOAT:
+                return Type.FLOAT;
+            case Frame.DOUBLE:
+                return Type.DOUBLE;
+            default:
+                return Type.INT;
+        }
+    }
+
+    /**
+     * The code replacing an unrolled loop: a copy of the path it took, then a jump to where it exits. The branches
+     * along the path are kept so that the folder removes them together with their operands, but both of their edges
+     * lead to the next instruction.
+     */
+    private InstructionList copyPath()
+    {
+        InstructionList code = new InstructionList();
+        List<BranchInstruction> pending = new ArrayList<>();
+        for (InstructionHandle handle : path) {
+            Instruction inst = handle.getInstruction();
+            InstructionHandle copy;
+            if (inst instanceof IfInstruction) {
+                copy = code.append(InstructionFactory.createBranchInstruction(inst.getOpcode(), null));
+            } else {
+                copy = code.append(inst.copy());
+            }
+            for (BranchInstruction branch : pending) {
+                branch.setTarget(copy);
+            }
+            pending.clear();
+            if (inst instanceof IfInstruction) {
+                pending.add((BranchInstruction) copy.getInstruction());
+            }
+        }
+        InstructionHandle jump = code.append(new GOTO(exit.start));
+        for (BranchInstruction branch : pending) {
+            branch.setTarget(jump);
+        }
+        return code;
+    }
+
+    /**
+     * Puts the code on the edge from the entry block into the loop, in place of the jump into the loop if there is
+     * one.
+     */
+    private static void replace(Loop loop, InstructionList code, InstructionList instList)
+    {
+        InstructionHandle enter = loop.entry.end;
+        if (enter.getInstruction() instanceof GotoInstruction) {
+            InstructionHandle first = instList.insert(enter, code);
+            for (InstructionTargeter targeter : enter.getTargeters()) {
+                if (targeter instanceof BranchInstruction) {
+                    targeter.updateTarget(enter, first);
+                }
+            }
+            ConstantFolder.deleteInstruction(enter, instList);
+        } else {
+            instList.insert(loop.header.start, code);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package comp207p.main;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * METRICS
+ * What the folder did to each class and method, and how long it took. Every ConstantFolder fills a ClassMetrics while
+ * it optimises; when collection is switched on the finished records are also kept here, from any number of threads,
+ * and can be written out as JSON.
+ */
+public final class Metrics {
+    private static volatile boolean collecting = false;
+    private static final ConcurrentLinkedQueue<ClassMetrics> classes = new ConcurrentLinkedQueue<>();
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * Counters of one method.
+     */
+    public static class MethodMetrics {
+        final String name;
+        int instructionsFolded = 0;
+        int branchesEliminated = 0;
+        int instructionsRemoved = 0;
+        int deadStoresRemoved = 0;
+        int loopsEvaluated = 0;
+        int loopsUnrolled = 0;
+        int callsFolded = 0;
+        int fieldsInlined = 0;
+        int peepholeRewrites = 0;
+        int stringsFolded = 0;
+        int bytesSaved = 0;
+        /** Rounds of passes the PassManager ran. */
+        int iterations = 0;
+        /** Set when the PassManager stopped because the method used up its time budget. */
+        boolean budgetExceeded = false;
+        /** Time spent in each pass, by pass name, in the order the passes first ran. */
+        final Map<String, Long> passNanos = new LinkedHashMap<>();
+        long nanos = 0;
+
+        MethodMetrics(String name)
+        {
+            this.name = name;
+        }
+
+        void addPassTime(String pass, long nanos)
+        {
+            Long before = passNanos.get(pass);
+            passNanos.put(pass, before == null ? nanos : before + nanos);
+        }
+
+        public int getInstructionsFolded()
+        {
+            return instructionsFolded;
+        }
+
+        public int getBranchesEliminated()
+        {
+            return branchesEliminated;
+        }
+
+        public int getBytesSaved()
+        {
+            return bytesSaved;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+    }
+
+    /**
+     * Counters of one class: its methods and the total time spent on it, including parsing the methods and writing
+     * them back.
+     */
+    public static class ClassMetrics {
+        final String className;
+        final List<MethodMetrics> methods = new ArrayList<>();
+        int constantsRemoved = 0;
+        /** Methods the BytecodePrefilter found nothing to fold in. */
+        int methodsSkipped = 0;
+        /** Methods left as they were because no stack map frames could be computed for the optimised code. */
+        int stackMapsFailed = 0;
+        long nanos = 0;
+
+        ClassMetrics(String className)
+        {
+            this.className = className;
+        }
+
+        MethodMetrics addMethod(String name)
+        {
+            MethodMetrics method = new MethodMetrics(name);
+            methods.add(method);
+            return method;
+        }
+
+        public int getInstructionsFolded()
+        {
+            int total = 0;
+            for (MethodMetrics method : methods) {
+                total += method.instructionsFolded;
+            }
+            return total;
+        }
+
+        public int getBranchesEliminated()
+        {
+            int total = 0;
+            for (MethodMetrics method : methods) {
+                total += method.branchesEliminated;
+            }
+            return total;
+        }
+
+        public int getBytesSaved()
+        {
+            int total = 0;
+            for (MethodMetrics method : methods) {
+                total += method.bytesSaved;
+            }
+            return total;
+        }
+
+        public int getMethodsSkipped()
+        {
+            return methodsSkipped;
+        }
+
+        public int getConstantsRemoved()
+        {
+            return constantsRemoved;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+    }
+
+    /**
+     * Starts keeping the metrics of every class optimised from now on.
+     */
+    public static void startCollecting()
+    {
+        collecting = true;
+    }
+
+    static void record(ClassMetrics metrics)
+    {
+        if (collecting) {
+            classes.add(metrics);
+        }
+    }
+
+    /**
+     * Writes the collected metrics as one JSON object: the totals, then one entry per class with its methods.
+     */
+    public static void writeJson(Writer out) throws IOException
+    {
+        int folded = 0;
+        int branches = 0;
+        int bytesSaved = 0;
+        long nanos = 0;
+        Map<String, Long> passNanos = new LinkedHashMap<>();
+        for (ClassMetrics metrics : classes) {
+            folded += metrics.getInstructionsFolded();
+            branches += metrics.getBranchesEliminated();
+            bytesSaved += metrics.getBytesSaved();
+            nanos += metrics.nanos;
+            for (MethodMetrics method : metrics.methods) {
+                for (Map.Entry<String, Long> pass : method.passNanos.entrySet()) {
+                    Long before = passNanos.get(pass.getKey());
+                    passNanos.put(pass.getKey(), before == null ? pass.getValue() : before + pass.getValue());
+                }
+            }
+        }
+
+        out.write("{\n  \"classes\": " + classes.size()
+                + ",\n  \"instructionsFolded\": " + folded
+                + ",\n  \"branchesEliminated\": " + branches
+                + ",\n  \"bytesSaved\": " + bytesSaved
+                + ",\n  \"nanos\": " + nanos
+                + ",\n  \"passNanos\": " + toJson(passNanos)
+                + ",\n  \"perClass\": [");
+        String separator = "\n";
+        for (ClassMetrics metrics : classes) {
+            out.write(separator);
+            separator = ",\n";
+            out.write("    {\"class\": " + quote(metrics.className) + ", \"nanos\": " + metrics.nanos
+                    + ", \"constantsRemoved\": " + metrics.constantsRemoved
+                    + ", \"methodsSkipped\": " + metrics.methodsSkipped
+                    + ", \"stackMapsFailed\": " + metrics.stackMapsFailed + ", \"methods\": [");
+            String methodSeparator = "";
+            for (MethodMetrics method : metrics.methods) {
+                out.write(methodSeparator);
+                methodSeparator = ", ";
+                out.write("{\"method\": " + quote(method.name)
+                        + ", \"instructionsFolded\": " + method.instructionsFolded
+                        + ", \"branchesEliminated\": " + method.branchesEliminated
+                        + ", \"instructionsRemoved\": " + method.instructionsRemoved
+                        + ", \"deadStoresRemoved\": " + method.deadStoresRemoved
+                        + ", \"loopsEvaluated\": " + method.loopsEvaluated
+                        + ", \"loopsUnrolled\": " + method.loopsUnrolled
+                        + ", \"callsFolded\": " + method.callsFolded
+                        + ", \"fieldsInlined\": " + method.fieldsInlined
+                        + ", \"peepholeRewrites\": " + method.peepholeRewrites
+                        + ", \"stringsFolded\": " + method.stringsFolded
+                        + ", \"bytesSaved\": " + method.bytesSaved
+                        + ", \"iterations\": " + method.iterations
+                        + ", \"budgetExceeded\": " + method.budgetExceeded
+                        + ", \"passNanos\": " + toJson(method.passNanos)
+                        + ", \"nanos\": " + method.nanos + "}");
+            }
+            out.write("]}");
+        }
+        out.write("\n  ]\n}\n");
+    }
+
+    private static String toJson(Map<String, Long> nanos)
+    {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append(quote(entry.getKey())).append(": ").append(entry.getValue());
+        }
+        return json.append('}').toString();
+    }
+
+    static String quote(String value)
+    {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,160 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * PASS MANAGER
+ * Runs the passes that rewrite a method round after round until a whole round changes nothing. One pass often leaves
+ * work for another: a folded branch leaves code that can never run, removing that code leaves stores that are never
+ * read, and so on.
+ *
+ * Passes are registered by name. The system property comp207p.passes lists the passes of a round, in order and
+ * separated by commas; a pass left out of it never runs. A method gets at most comp207p.maxIterations rounds, and no
+ * pass is started on it once comp207p.methodBudgetMillis have been spent on it, so that a giant generated method
+ * cannot stall a build. Every pass leaves valid code behind, so a method that runs out of budget keeps what the
+ * passes that did run made of it. Unlike the other options the time budget depends on the machine; it is a safety
+ * net set far above what ordinary methods take.
+ */
+final class PassManager {
+    static final String DEFAULT_ORDER = "loops,fold,branches,dead-code,dead-stores,peephole";
+    static final String[] ORDER = System.getProperty("comp207p.passes", DEFAULT_ORDER).split("\\s*,\\s*");
+    static final int MAX_ITERATIONS = Integer.getInteger("comp207p.maxIterations", 4);
+    static final long METHOD_BUDGET_MILLIS = Long.getLong("comp207p.methodBudgetMillis", 10000);
+
+    /**
+     * One stage of the optimisation of a method.
+     */
+    interface Pass {
+        /**
+         * Rewrites the method.
+         * @return number of changes made, 0 if the code was left as it was
+         */
+        int run(MethodState method);
+    }
+
+    /**
+     * A method being optimised, with its control flow graph and the results of the constant propagation. Both are
+     * computed when a pass first asks for them and thrown away whenever a pass changes the code.
+     */
+    static final class MethodState {
+        final MethodGen methodGen;
+        final InstructionList instList;
+        final ConstantPoolGen cpgen;
+        final Metrics.MethodMetrics metrics;
+        private final ConstantPropagation propagation;
+        private ControlFlowGraph cfg = null;
+        private boolean analysed = false;
+
+        MethodState(MethodGen methodGen, ConstantPropagation propagation, Metrics.MethodMetrics metrics)
+        {
+            this.methodGen = methodGen;
+            this.instList = methodGen.getInstructionList();
+            this.cpgen = methodGen.getConstantPool();
+            this.propagation = propagation;
+            this.metrics = metrics;
+        }
+
+        ControlFlowGraph cfg()
+        {
+            if (cfg == null) {
+                cfg = new ControlFlowGraph(instList, methodGen.getExceptionHandlers());
+            }
+            return cfg;
+        }
+
+        /**
+         * The propagation, analysed over the current code.
+         * @throws IllegalStateException if the code cannot be analysed
+         */
+        ConstantPropagation propagation()
+        {
+            if (!analysed) {
+                propagation.analyse(cfg(), cpgen, methodGen);
+                analysed = true;
+            }
+            return propagation;
+        }
+
+        void changed()
+        {
+            cfg = null;
+            analysed = false;
+            // a rewrite can need more stack than the original code, and the analysis sizes its frames from it
+            methodGen.setMaxStack();
+        }
+    }
+
+    private final Map<String, Pass> passes = new HashMap<>();
+    private Pass[] round = null;
+
+    void register(String name, Pass pass)
+    {
+        passes.put(name, pass);
+    }
+
+    private Pass[] round()
+    {
+        if (round == null) {
+            List<Pass> resolved = new ArrayList<>();
+            for (String name : ORDER) {
+                Pass pass = passes.get(name);
+                if (pass == null) {
+                    throw new IllegalArgumentException("Unknown pass " + name + " in comp207p.passes");
+                }
+                resolved.add(pass);
+            }
+            round = resolved.toArray(new Pass[0]);
+        }
+        return round;
+    }
+
+    /**
+     * Runs the rounds of passes over a method until one changes nothing or a budget runs out. The time each pass took
+     * is added to the metrics of the method.
+     * @return number of changes made by all passes
+     * @throws IllegalStateException if a pass needed an analysis of code that cannot be analysed
+     */
+    int run(MethodState method)
+    {
+        Pass[] order = round();
+        long start = System.nanoTime();
+        long deadline = start + METHOD_BUDGET_MILLIS * 1000000L;
+        int total = 0;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            method.metrics.iterations++;
+            int changes = 0;
+            for (int i = 0; i < order.length; i++) {
+                long passStart = System.nanoTime();
+                if (passStart - deadline > 0) {
+                    if (Trace.INFO) {
+                        Trace.log("Stopped: method took more than " + METHOD_BUDGET_MILLIS + " ms");
+                    }
+                    method.metrics.budgetExceeded = true;
+                    return total + changes;
+                }
+                int passChanges = order[i].run(method);
+                method.metrics.addPassTime(ORDER[i], System.nanoTime() - passStart);
+                if (passChanges > 0) {
+                    method.changed();
+                    changes += passChanges;
+                }
+            }
+            total += changes;
+            if (changes == 0) {
+                return total;
+            }
+        }
+        if (Trace.INFO) {
+            Trace.log("Stopped: still changing after " + MAX_ITERATIONS + " rounds");
+        }
+        return total;
+    }
+}
@@ -0,0 +1,219 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * PEEPHOLE
+ * Local rewrites run over a method once folding is done, each making the code smaller without changing what it
+ * computes:
+ * - constants are pushed with the smallest encoding, e.g. ICONST_1 or BIPUSH 100 instead of an LDC, which also
+ *   frees their constant pool entry;
+ * - a store directly followed by a load of the same local becomes a DUP and the store, or disappears with the load
+ *   if the local is not read afterwards;
+ * - a multiplication by a constant power of two becomes a shift, and a multiplication or division by 1 or -1
+ *   disappears or becomes a negation. These give the same result for every operand, overflow included. A division by
+ *   another power of two rounds towards zero where a shift rounds down, so it is left alone;
+ * - a GOTO to the next instruction is removed, and so is a conditional branch to it, whose operands are popped.
+ *
+ * An instruction that something jumps to is never merged with the one before it.
+ */
+final class Peephole {
+    private Peephole()
+    {
+    }
+
+    /**
+     * Applies every rewrite to a method.
+     * @return number of instructions rewritten or removed
+     */
+    static int optimize(MethodGen methodGen, Metrics.MethodMetrics methodMetrics)
+    {
+        InstructionList instList = methodGen.getInstructionList();
+        ConstantPoolGen cpgen = methodGen.getConstantPool();
+        Frame scratch = new Frame();
+
+        int rewrites = shortenConstants(instList, cpgen, scratch);
+        ControlFlowGraph cfg = new ControlFlowGraph(instList, methodGen.getExceptionHandlers());
+        rewrites += reduceStrength(cfg, instList, cpgen, scratch);
+        cfg = new ControlFlowGraph(instList, methodGen.getExceptionHandlers());
+        rewrites += collapseStoreLoad(cfg, instList);
+        methodMetrics.peepholeRewrites += rewrites;
+
+        int branches = removeJumpsToNext(instList);
+        methodMetrics.branchesEliminated += branches;
+        return rewrites + branches;
+    }
+
+    /**
+     * Replaces the LDC, LDC_W and LDC2_W of numbers that have a shorter encoding.
+     */
+    private static int shortenConstants(InstructionList instList, ConstantPoolGen cpgen, Frame scratch)
+    {
+        int changes = 0;
+        for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()) {
+            Instruction inst = handle.getInstruction();
+            if (!(inst instanceof LDC || inst instanceof LDC2_W) || !pushedConstant(inst, cpgen, scratch)) {
+                continue;
+            }
+            Instruction shorter = ConstantFolder.makeConstant(cpgen, scratch.tags[0], scratch.bits[0]);
+            if (shorter instanceof ConstantPushInstruction) {
+                handle.setInstruction(shorter);
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Rewrites multiplications and divisions of ints and longs whose second operand is pushed by a constant just
+     * before them.
+     */
+    private static int reduceStrength(ControlFlowGraph cfg, InstructionList instList, ConstantPoolGen cpgen,
+                                      Frame scratch)
+    {
+        int changes = 0;
+        InstructionHandle handle = instList.getStart();
+        while (handle != null) {
+            InstructionHandle next = handle.getNext();
+            Instruction inst = handle.getInstruction();
+            boolean multiply = inst instanceof IMUL || inst instanceof LMUL;
+            boolean divide = inst instanceof IDIV || inst instanceof LDIV;
+            InstructionHandle push = handle.getPrev();
+            if ((multiply || divide) && push != null && cfg.blockAt(handle) == null
+                    && pushedConstant(push.getInstruction(), cpgen, scratch)) {
+                boolean isLong = inst instanceof LMUL || inst instanceof LDIV;
+                long value = scratch.bits[0];
+                if (value == 1) {
+                    ConstantFolder.deleteInstruction(push, instList);
+                    ConstantFolder.deleteInstruction(handle, instList);
+                    changes += 2;
+                } else if (value == -1) {
+                    // x * -1 and x / -1 wrap exactly like -x, including for the minimum value
+                    ConstantFolder.deleteInstruction(push, instList);
+                    handle.setInstruction(isLong ? new LNEG() : new INEG());
+                    changes += 2;
+                } else if (multiply && (isLong ? Long.bitCount(value) : Integer.bitCount((int) value)) == 1) {
+                    int shift = Long.numberOfTrailingZeros(value);
+                    push.setInstruction(ConstantFolder.makeConstant(cpgen, Frame.INT, shift));
+                    handle.setInstruction(isLong ? new LSHL() : new ISHL());
+                    changes += 2;
+                }
+            }
+            handle = next;
+        }
+        return changes;
+    }
+
+    /**
+     * Collapses a store and a load of the same local that follow each other within a block.
+     */
+    private static int collapseStoreLoad(ControlFlowGraph cfg, InstructionList instList)
+    {
+        Liveness liveness = null;
+        List<InstructionHandle> dead = new ArrayList<>();
+        List<InstructionHandle> duplicated = new ArrayList<>();
+        BitSet live = new BitSet();
+        for (BasicBlock block : cfg.blocks) {
+            if (!hasStoreLoad(block)) {
+                continue;
+            }
+            if (liveness == null) {
+                liveness = new Liveness(cfg);
+            }
+            liveness.liveOut(block, live);
+            BitSet handlerLive = liveness.handlerLive(block);
+            InstructionHandle handle = block.end;
+            while (handle != block.start) {
+                Instruction inst = handle.getInstruction();
+                if (isStoreLoad(handle.getPrev(), handle)) {
+                    int index = ((LoadInstruction) inst).getIndex();
+                    int slots = Liveness.slots(inst);
+                    if (live.get(index, index + slots).isEmpty()) {
+                        dead.add(handle);
+                    } else {
+                        duplicated.add(handle);
+                    }
+                }
+                Liveness.transfer(inst, live);
+                live.or(handlerLive);
+                handle = handle.getPrev();
+            }
+        }
+
+        for (InstructionHandle load : dead) {
+            ConstantFolder.deleteInstruction(load.getPrev(), instList);
+            ConstantFolder.deleteInstruction(load, instList);
+        }
+        for (InstructionHandle load : duplicated) {
+            InstructionHandle store = load.getPrev();
+            Instruction storeInst = store.getInstruction();
+            store.setInstruction(Liveness.slots(storeInst) == 2 ? new DUP2() : new DUP());
+            load.setInstruction(storeInst.copy());
+        }
+        return 2 * dead.size() + duplicated.size();
+    }
+
+    private static boolean hasStoreLoad(BasicBlock block)
+    {
+        for (InstructionHandle handle = block.start; handle != block.end; handle = handle.getNext()) {
+            if (isStoreLoad(handle, handle.getNext())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isStoreLoad(InstructionHandle store, InstructionHandle load)
+    {
+        Instruction first = store.getInstruction();
+        Instruction second = load.getInstruction();
+        if (!(first instanceof StoreInstruction) || !(second instanceof LoadInstruction)) {
+            return false;
+        }
+        StoreInstruction storeInst = (StoreInstruction) first;
+        LoadInstruction loadInst = (LoadInstruction) second;
+        return storeInst.getIndex() == loadInst.getIndex() && storeInst.getType(null).equals(loadInst.getType(null));
+    }
+
+    /**
+     * Removes the GOTOs to the next instruction and pops the operands of conditional branches to it.
+     */
+    private static int removeJumpsToNext(InstructionList instList)
+    {
+        int changes = 0;
+        InstructionHandle handle = instList.getStart();
+        while (handle != null) {
+            InstructionHandle next = handle.getNext();
+            Instruction inst = handle.getInstruction();
+            if (next != null && inst instanceof GotoInstruction && ((GotoInstruction) inst).getTarget() == next) {
+                if (Trace.DEBUG) {
+                    Trace.log("Removed goto");
+                }
+                ConstantFolder.deleteInstruction(handle, instList);
+                changes++;
+            } else if (inst instanceof IfInstruction && ((IfInstruction) inst).getTarget() == next) {
+                Instruction pop = inst.consumeStack(null) == 2 ? new POP2() : new POP();
+                ConstantFolder.insertBefore(handle, pop, instList);
+                ConstantFolder.deleteInstruction(handle, instList);
+                changes++;
+            }
+            handle = next;
+        }
+        return changes;
+    }
+
+    /**
+     * Leaves the tag and bits of the number an instruction pushes in the first slot of the scratch frame.
+     * @return false if the instruction does not push a number
+     */
+    private static boolean pushedConstant(Instruction inst, ConstantPoolGen cpgen, Frame scratch)
+    {
+        scratch.reset(2, 0);
+        return ConstantPropagation.pushConstant(inst, scratch, cpgen) && Frame.isConstant(scratch.tags[0]);
+    }
+}
@@ -0,0 +1,378 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.BootstrapMethod;
+import org.apache.bcel.classfile.BootstrapMethods;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantInvokeDynamic;
+import org.apache.bcel.classfile.ConstantMethodHandle;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * PURE CALLS
+ * Evaluates INVOKESTATIC instructions whose arguments are constants, so that the constant propagation can treat a call
+ * to a pure method like any other foldable instruction, and GETSTATIC of the fields a FieldConstants index knows.
+ * Two kinds of callees are known:
+ * - a whitelist of JDK methods whose results are fully specified, such as Math.abs, Math.max or Integer.rotateLeft;
+ * - static methods of the class being optimised that take and return primitives, have no exception handlers and only
+ *   compute on their locals and stack, branch, switch, read known fields and call other such methods.
+ *
+ * A method of the class is summarised once: whether it qualifies and, if so, its code. A call is then evaluated by
+ * interpreting that code with the constant arguments. Whether a callee really is pure only shows while it runs, so a
+ * call fails to evaluate as soon as it meets a value that is not a constant, an instruction outside of the pure set,
+ * a call that cannot be evaluated, more than MAX_DEPTH nested calls or more than STEP_BUDGET instructions. Results
+ * are memoised by callee and arguments while a method is optimised. They are forgotten before the next one: a memoised
+ * inner call leaves more steps to the call around it, so keeping them would make what is folded in a method depend on
+ * the methods optimised before it.
+ *
+ * Methods of other classes, including other classes of the same JAR, are not folded: they can be replaced
+ * independently of the class calling them.
+ *
+ * The invokedynamic call sites of StringConcatFactory are evaluated too, as concatenations of their arguments (see
+ * StringValues).
+ */
+final class PureCalls {
+    /** Instructions one top-level call may execute, including everything it calls. */
+    static final int STEP_BUDGET = 10000;
+    static final int MAX_DEPTH = 32;
+
+    private final String className;
+    private final Method[] methods;
+    private final ConstantPoolGen cpgen;
+    private final FieldConstants fields;
+    /** Bootstrap methods of the invokedynamic call sites of the class, null if it has none. */
+    private final BootstrapMethods bootstrapMethods;
+
+    /** Summaries by name and signature; null for methods that cannot be evaluated. */
+    private final HashMap<String, Summary> summaries = new HashMap<>();
+    /** Results of calls already evaluated, null for calls that failed. */
+    private final HashMap<Call, long[]> results = new HashMap<>();
+    private int steps;
+
+    /**
+     * The code of a method that may be evaluated.
+     */
+    private static class Summary {
+        final InstructionList code;
+        final int maxStack;
+        final int maxLocals;
+        final int returnSize;
+
+        Summary(InstructionList code, int maxStack, int maxLocals, int returnSize)
+        {
+            this.code = code;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.returnSize = returnSize;
+        }
+    }
+
+    /**
+     * A callee and the values of its arguments.
+     */
+    private static class Call {
+        final Summary callee;
+        final byte[] tags;
+        final long[] bits;
+
+        Call(Summary callee, Frame frame, int arguments)
+        {
+            this.callee = callee;
+            this.tags = Arrays.copyOfRange(frame.tags, frame.sp - arguments, frame.sp);
+            this.bits = Arrays.copyOfRange(frame.bits, frame.sp - arguments, frame.sp);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Call)) {
+                return false;
+            }
+            Call call = (Call) other;
+            return callee == call.callee && Arrays.equals(tags, call.tags) && Arrays.equals(bits, call.bits);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(callee) * 31 + Arrays.hashCode(bits);
+        }
+    }
+
+    /**
+     * @param className name of the class being optimised
+     * @param methods its methods as they were before optimisation
+     * @param cpgen its constant pool
+     * @param fields static fields with known values, including those of the class
+     * @param bootstrapMethods the BootstrapMethods attribute of the class, or null
+     */
+    PureCalls(String className, Method[] methods, ConstantPoolGen cpgen, FieldConstants fields,
+              BootstrapMethods bootstrapMethods)
+    {
+        this.className = className;
+        this.methods = methods;
+        this.cpgen = cpgen;
+        this.fields = fields;
+        this.bootstrapMethods = bootstrapMethods;
+    }
+
+    /**
+     * Forgets the results of the calls evaluated so far, before a method is optimised.
+     */
+    void forgetResults()
+    {
+        results.clear();
+    }
+
+    /**
+     * Whether calls to static methods of a class may be evaluated at all.
+     */
+    boolean mayEvaluate(String owner)
+    {
+        return owner.equals(className) || JdkMethods.isWhitelisted(owner);
+    }
+
+    /**
+     * Whether GETSTATIC of a field may be folded.
+     */
+    boolean knowsField(String owner, String name, String signature)
+    {
+        return fields.knows(owner, name, signature, owner.equals(className));
+    }
+
+    /**
+     * Pushes the value of a static field if it is known.
+     * @return false, leaving the frame untouched, if it is not
+     */
+    boolean getStatic(GETSTATIC inst, Frame frame)
+    {
+        String owner = inst.getReferenceType(cpgen).toString();
+        return fields.push(owner, inst.getFieldName(cpgen), inst.getSignature(cpgen), owner.equals(className), frame);
+    }
+
+    /**
+     * Replaces the arguments of a call on top of the stack by its result.
+     * @return false, leaving the frame untouched, if the call cannot be evaluated
+     */
+    boolean evaluate(INVOKESTATIC inst, Frame frame)
+    {
+        steps = 0;
+        return invoke(inst, frame, 0);
+    }
+
+    /**
+     * Replaces the arguments of a string concatenation call site on top of the stack by the string it builds.
+     * @param pool constant pool the method is optimised with, which the result is added to
+     * @return false, leaving the frame untouched, if the call site is not a concatenation or cannot be evaluated
+     */
+    boolean concatenate(INVOKEDYNAMIC inst, Frame frame, ConstantPoolGen pool)
+    {
+        if (bootstrapMethods == null) {
+            return false;
+        }
+        ConstantInvokeDynamic site = (ConstantInvokeDynamic) cpgen.getConstant(inst.getIndex());
+        BootstrapMethod bootstrap = bootstrapMethods.getBootstrapMethods()[site.getBootstrapMethodAttrIndex()];
+        ConstantMethodHandle handle = (ConstantMethodHandle) cpgen.getConstant(bootstrap.getBootstrapMethodRef());
+        ConstantCP factory = (ConstantCP) cpgen.getConstant(handle.getReferenceIndex());
+        if (!factory.getClass(cpgen.getConstantPool()).equals("java.lang.invoke.StringConcatFactory")) {
+            return false;
+        }
+
+        Type[] arguments = inst.getArgumentTypes(cpgen);
+        int[] staticArguments = bootstrap.getBootstrapArguments();
+        String recipe;
+        String[] constants;
+        String name = inst.getMethodName(cpgen);
+        if (name.equals("makeConcat")) {
+            char[] parts = new char[arguments.length];
+            Arrays.fill(parts, '\u0001');
+            recipe = new String(parts);
+            constants = new String[0];
+        } else if (name.equals("makeConcatWithConstants") && staticArguments.length > 0
+                && cpgen.getConstant(staticArguments[0]) instanceof ConstantString) {
+            recipe = ((ConstantString) cpgen.getConstant(staticArguments[0])).getBytes(cpgen.getConstantPool());
+            constants = new String[staticArguments.length - 1];
+            for (int i = 1; i < staticArguments.length; i++) {
+                constants[i - 1] = StringValues.constantText(cpgen.getConstant(staticArguments[i]), cpgen);
+            }
+        } else {
+            return false;
+        }
+        return StringValues.concatenate(recipe, constants, arguments, frame, pool);
+    }
+
+    private boolean invoke(INVOKESTATIC inst, Frame frame, int depth)
+    {
+        int arguments = inst.consumeStack(cpgen);
+        if (inst.produceStack(cpgen) == 0 || !frame.topIsConstant(arguments)) {
+            return false;
+        }
+        String owner = inst.getReferenceType(cpgen).toString();
+        String name = inst.getMethodName(cpgen);
+        String signature = inst.getSignature(cpgen);
+        if (!owner.equals(className)) {
+            return JdkMethods.evaluate(owner + "." + name + signature, frame, arguments);
+        }
+
+        Summary callee = summary(name, signature);
+        if (callee == null || depth >= MAX_DEPTH) {
+            return false;
+        }
+        Call call = new Call(callee, frame, arguments);
+        long[] result;
+        if (results.containsKey(call)) {
+            result = results.get(call);
+        } else {
+            result = run(callee, frame, arguments, depth);
+            // a call that ran out of steps might still succeed as the outermost call
+            if (result != null || steps <= STEP_BUDGET) {
+                results.put(call, result);
+            }
+        }
+        if (result == null) {
+            return false;
+        }
+        frame.pop(arguments);
+        for (int i = 0; i < result.length; i += 2) {
+            frame.push((byte) result[i], result[i + 1]);
+        }
+        return true;
+    }
+
+    /**
+     * Interprets the code of a callee.
+     * @return the tag and bits of every slot of the result, or null if the call cannot be evaluated
+     */
+    private long[] run(Summary callee, Frame caller, int arguments, int depth)
+    {
+        Frame frame = new Frame();
+        frame.reset(callee.maxStack, callee.maxLocals);
+        int base = caller.sp - arguments;
+        for (int i = 0; i < arguments; i++) {
+            frame.setLocal(caller.tags[base + i], i, caller.bits[base + i]);
+        }
+
+        InstructionHandle handle = callee.code.getStart();
+        while (handle != null) {
+            if (++steps > STEP_BUDGET) {
+                return null;
+            }
+            Instruction inst = handle.getInstruction();
+            if (!frame.topIsConstant(inst.consumeStack(cpgen))) {
+                return null;
+            }
+            if (inst instanceof ReturnInstruction) {
+                long[] result = new long[2 * callee.returnSize];
+                for (int i = 0; i < callee.returnSize; i++) {
+                    int slot = frame.sp - callee.returnSize + i;
+                    result[2 * i] = frame.tags[slot];
+                    result[2 * i + 1] = frame.bits[slot];
+                }
+                return result;
+            }
+            if (inst instanceof IfInstruction) {
+                int branch = ConstantPropagation.evaluateBranch((IfInstruction) inst, frame);
+                if (branch == ConstantPropagation.UNKNOWN_BRANCH) {
+                    return null;
+                }
+                frame.pop(inst.consumeStack(cpgen));
+                handle = branch == ConstantPropagation.TAKEN ? ((IfInstruction) inst).getTarget() : handle.getNext();
+                continue;
+            }
+            if (inst instanceof GotoInstruction) {
+                handle = ((GotoInstruction) inst).getTarget();
+                continue;
+            }
+            if (inst instanceof Select) {
+                handle = ConstantPropagation.select((Select) inst, frame.popInt());
+                continue;
+            }
+            if (inst instanceof INVOKESTATIC) {
+                if (!invoke((INVOKESTATIC) inst, frame, depth + 1)) {
+                    return null;
+                }
+            } else if (inst instanceof GETSTATIC) {
+                if (!getStatic((GETSTATIC) inst, frame)) {
+                    return null;
+                }
+            } else {
+                ConstantPropagation.execute(inst, frame, cpgen, null);
+                if (!frame.topIsConstant(inst.produceStack(cpgen))) {
+                    return null;
+                }
+            }
+            handle = handle.getNext();
+        }
+        return null;
+    }
+
+    private Summary summary(String name, String signature)
+    {
+        String key = name + signature;
+        if (summaries.containsKey(key)) {
+            return summaries.get(key);
+        }
+        Summary summary = null;
+        for (Method method : methods) {
+            if (method.getName().equals(name) && method.getSignature().equals(signature)) {
+                summary = summarise(method);
+                break;
+            }
+        }
+        summaries.put(key, summary);
+        return summary;
+    }
+
+    private Summary summarise(Method method)
+    {
+        Code code = method.getCode();
+        if (!method.isStatic() || method.isSynchronized() || code == null || code.getExceptionTable().length > 0) {
+            return null;
+        }
+        Type returnType = method.getReturnType();
+        if (!(returnType instanceof BasicType) || returnType == Type.VOID) {
+            return null;
+        }
+        for (Type argument : method.getArgumentTypes()) {
+            if (!(argument instanceof BasicType)) {
+                return null;
+            }
+        }
+
+        InstructionList instList = new InstructionList(code.getCode());
+        for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()) {
+            if (!isPure(handle.getInstruction())) {
+                instList.dispose();
+                return null;
+            }
+        }
+        return new Summary(instList, code.getMaxStack(), code.getMaxLocals(), returnType.getSize());
+    }
+
+    /**
+     * Instructions a callee may contain: everything that only touches the frame, static calls and static field
+     * reads.
+     */
+    private boolean isPure(Instruction inst)
+    {
+        if (inst instanceof LoadInstruction) {
+            return !(inst instanceof ALOAD);
+        }
+        if (inst instanceof StoreInstruction) {
+            return !(inst instanceof ASTORE);
+        }
+        if (inst instanceof ReturnInstruction) {
+            return !(inst instanceof ARETURN) && !(inst instanceof RETURN);
+        }
+        return inst instanceof IINC || inst instanceof IfInstruction || inst instanceof GotoInstruction
+                || inst instanceof Select || inst instanceof StackInstruction || inst instanceof NOP
+                || inst instanceof INVOKESTATIC || inst instanceof GETSTATIC || ConstantPropagation.isConstantPush(inst, cpgen)
+                || Evaluator.isFoldable(inst.getOpcode());
+    }
+}
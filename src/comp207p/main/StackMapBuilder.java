@@ -0,0 +1,919 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.StackMap;
+import org.apache.bcel.classfile.StackMapEntry;
+import org.apache.bcel.classfile.StackMapType;
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * STACK MAP BUILDER
+ * Computes the StackMapTable of a rewritten method. From version 50 on a class file carries, for every instruction
+ * that can be jumped to or that follows an unconditional jump, the types of the locals and of the stack there, so that
+ * the JVM verifies the method in a single pass instead of inferring them itself.
+ *
+ * The types are inferred by a forward dataflow analysis over the control flow graph, like ConstantPropagation but in
+ * the lattice of verification types. Where two different classes meet, the common superclass would have to be looked
+ * up in the class hierarchy, which the folder does not have; the frame the compiler wrote for the same instruction in
+ * the original method is used instead. Folding only ever removes paths into an instruction, so the type the compiler
+ * found for all of them still fits. A local that is not live at a frame is written as top, which avoids most merges
+ * in the first place.
+ *
+ * If the types cannot be inferred, for instance because the code has a merge the original frames do not describe or
+ * still contains code that is never reached, compute() fails and the method should be left as it was.
+ */
+final class StackMapBuilder {
+    // the kinds of verification types, numbered like their tags in the class file
+    static final byte TOP = Const.ITEM_Bogus;
+    static final byte INTEGER = Const.ITEM_Integer;
+    static final byte FLOAT = Const.ITEM_Float;
+    static final byte DOUBLE = Const.ITEM_Double;
+    static final byte LONG = Const.ITEM_Long;
+    static final byte NULL = Const.ITEM_Null;
+    static final byte UNINITIALIZED_THIS = Const.ITEM_InitObject;
+    static final byte OBJECT = Const.ITEM_Object;
+    static final byte UNINITIALIZED = Const.ITEM_NewObject;
+
+    private static final String STACK_MAP_TABLE = "StackMapTable";
+    private static final StackMapType[] NO_TYPES = new StackMapType[0];
+
+    /**
+     * A verification type. An OBJECT carries the internal name of its class or the descriptor of its array type, an
+     * UNINITIALIZED the NEW instruction that created it. The second slot of a long or double is a TOP.
+     */
+    static final class VerificationType {
+        final byte kind;
+        final String name;
+        final InstructionHandle creator;
+
+        VerificationType(byte kind, String name, InstructionHandle creator)
+        {
+            this.kind = kind;
+            this.name = name;
+            this.creator = creator;
+        }
+
+        boolean isReference()
+        {
+            return kind == OBJECT || kind == NULL;
+        }
+
+        boolean isWide()
+        {
+            return kind == LONG || kind == DOUBLE;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof VerificationType)) {
+                return false;
+            }
+            VerificationType type = (VerificationType) other;
+            return kind == type.kind && creator == type.creator
+                    && (name == null ? type.name == null : name.equals(type.name));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return kind * 31 + (name == null ? 0 : name.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return kind == OBJECT ? name : kind == UNINITIALIZED ? "new@" + creator.getPosition() : "item" + kind;
+        }
+    }
+
+    private static final VerificationType[] PRIMITIVES = new VerificationType[UNINITIALIZED_THIS + 1];
+
+    static {
+        for (byte kind = TOP; kind <= UNINITIALIZED_THIS; kind++) {
+            PRIMITIVES[kind] = new VerificationType(kind, null, null);
+        }
+    }
+
+    private static VerificationType of(byte kind)
+    {
+        return PRIMITIVES[kind];
+    }
+
+    private static VerificationType object(String name)
+    {
+        return new VerificationType(OBJECT, name, null);
+    }
+
+    /**
+     * The types of the locals and of the stack at one instruction, one entry per slot.
+     */
+    static final class State {
+        final VerificationType[] locals;
+        final VerificationType[] stack;
+        int sp = 0;
+
+        State(int maxLocals, int maxStack)
+        {
+            locals = new VerificationType[maxLocals];
+            stack = new VerificationType[maxStack];
+            Arrays.fill(locals, of(TOP));
+        }
+
+        State copy()
+        {
+            State copy = new State(locals.length, stack.length);
+            System.arraycopy(locals, 0, copy.locals, 0, locals.length);
+            System.arraycopy(stack, 0, copy.stack, 0, sp);
+            copy.sp = sp;
+            return copy;
+        }
+
+        void push(VerificationType type)
+        {
+            stack[sp++] = type;
+            if (type.isWide()) {
+                stack[sp++] = of(TOP);
+            }
+        }
+
+        VerificationType pop()
+        {
+            return stack[--sp];
+        }
+
+        void store(int index, VerificationType type)
+        {
+            if (index > 0 && locals[index - 1].isWide()) {
+                locals[index - 1] = of(TOP);
+            }
+            locals[index] = type;
+            if (type.isWide()) {
+                locals[index + 1] = of(TOP);
+            }
+        }
+    }
+
+    /**
+     * What the StackMapTable a method was read with tells about its types, see originalFrames.
+     */
+    static final class Hints {
+        /** Frames by the instruction they were written for. */
+        final Map<InstructionHandle, State> frames = new IdentityHashMap<>();
+        /**
+         * The exception on entry to the handler of each entry of the exception table: a common superclass of the catch
+         * types of all entries sharing the handler. Unlike the frame of the handler it survives the deletion of the
+         * first instruction of the handler.
+         */
+        final Map<CodeExceptionGen, VerificationType> exceptions = new IdentityHashMap<>();
+    }
+
+    private final MethodGen methodGen;
+    private final ConstantPoolGen cpgen;
+    private final String className;
+    private final Hints hints;
+
+    private ControlFlowGraph cfg;
+    private Liveness liveness;
+    private State[] entries;
+    private final ArrayDeque<BasicBlock> worklist = new ArrayDeque<>();
+    private boolean[] queued;
+
+    /** The instructions that need a frame, in the order of the code, and their frames. */
+    private final List<InstructionHandle> frameHandles = new ArrayList<>();
+    private final List<State> frames = new ArrayList<>();
+
+    /**
+     * @param className internal or external name of the class the method belongs to
+     * @param hints the frames of the original method, see originalFrames, or null if it had none
+     */
+    StackMapBuilder(MethodGen methodGen, String className, Hints hints)
+    {
+        this.methodGen = methodGen;
+        this.cpgen = methodGen.getConstantPool();
+        this.className = className.replace('.', '/');
+        this.hints = hints;
+    }
+
+    /**
+     * The state on entry to a method: this and the arguments in the first locals.
+     */
+    private static State initialState(MethodGen methodGen, String className, int maxLocals, int maxStack)
+    {
+        State state = new State(maxLocals, maxStack);
+        int slot = 0;
+        if (!methodGen.isStatic()) {
+            boolean constructor = methodGen.getName().equals(Const.CONSTRUCTOR_NAME)
+                    && !className.equals("java/lang/Object");
+            state.locals[slot++] = constructor ? of(UNINITIALIZED_THIS) : object(className);
+        }
+        for (Type argument : methodGen.getArgumentTypes()) {
+            state.store(slot, typeOf(argument));
+            slot += argument.getSize();
+        }
+        return state;
+    }
+
+    /**
+     * Runs the inference over the code of the method, which must be final apart from the constant pool indices.
+     * @return false if the frames cannot be computed
+     */
+    boolean compute()
+    {
+        InstructionList instList = methodGen.getInstructionList();
+        CodeExceptionGen[] handlers = methodGen.getExceptionHandlers();
+        cfg = new ControlFlowGraph(instList, handlers);
+        liveness = new Liveness(cfg);
+        int blocks = cfg.blocks.length;
+        entries = new State[blocks];
+        queued = new boolean[blocks];
+        if (blocks == 0) {
+            return true;
+        }
+
+        State initial = initialState(methodGen, className, methodGen.getMaxLocals(), methodGen.getMaxStack());
+        if (!flowTo(cfg.entry(), initial)) {
+            return false;
+        }
+        while (!worklist.isEmpty()) {
+            BasicBlock block = worklist.poll();
+            queued[block.index] = false;
+            if (!evaluateBlock(block, handlers)) {
+                return false;
+            }
+        }
+
+        // every instruction that is jumped to, handles exceptions or follows a jump gets a frame
+        IdentityHashMap<InstructionHandle, Boolean> needed = new IdentityHashMap<>();
+        for (CodeExceptionGen handler : handlers) {
+            needed.put(handler.getHandlerPC(), Boolean.TRUE);
+        }
+        for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()) {
+            Instruction inst = handle.getInstruction();
+            if (inst instanceof BranchInstruction) {
+                needed.put(((BranchInstruction) inst).getTarget(), Boolean.TRUE);
+                if (inst instanceof Select) {
+                    for (InstructionHandle target : ((Select) inst).getTargets()) {
+                        needed.put(target, Boolean.TRUE);
+                    }
+                }
+            }
+            if (!ControlFlowGraph.fallsThrough(inst) && handle.getNext() != null) {
+                needed.put(handle.getNext(), Boolean.TRUE);
+            }
+        }
+        for (BasicBlock block : cfg.blocks) {
+            if (entries[block.index] == null) {
+                // the verifier checks code that is never reached too, against frames nothing flows into
+                if (Trace.DEBUG) {
+                    Trace.log("No stack map: unreachable code at " + block);
+                }
+                return false;
+            }
+            if (needed.containsKey(block.start)) {
+                frameHandles.add(block.start);
+                frames.add(entries[block.index]);
+            }
+        }
+        return true;
+    }
+
+    private boolean evaluateBlock(BasicBlock block, CodeExceptionGen[] handlers)
+    {
+        State state = entries[block.index].copy();
+        InstructionHandle handle = block.start;
+        while (true) {
+            if (!flowToHandlers(block, state, handlers)) {
+                return false;
+            }
+            Instruction inst = handle.getInstruction();
+            if (!execute(handle, state)) {
+                if (Trace.DEBUG) {
+                    Trace.log("No stack map: cannot type " + handle + " with locals " + Arrays.toString(state.locals));
+                }
+                return false;
+            }
+            if ((inst instanceof StoreInstruction || inst instanceof INVOKESPECIAL)
+                    && !flowToHandlers(block, state, handlers)) {
+                return false;
+            }
+            if (handle == block.end) {
+                break;
+            }
+            handle = handle.getNext();
+        }
+        for (BasicBlock successor : block.successors) {
+            if (!flowTo(successor, state)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A handler is entered with the locals of any instruction it covers and the exception alone on the stack. Several
+     * entries of the exception table can share a handler, e.g. for a multi-catch.
+     */
+    private boolean flowToHandlers(BasicBlock block, State state, CodeExceptionGen[] handlers)
+    {
+        for (BasicBlock handlerBlock : block.handlers) {
+            for (CodeExceptionGen handler : handlers) {
+                if (handler.getHandlerPC() != handlerBlock.start || !covers(handler, block)) {
+                    continue;
+                }
+                State exception = state.copy();
+                exception.sp = 0;
+                ObjectType catchType = handler.getCatchType();
+                VerificationType hint = hints == null ? null : hints.exceptions.get(handler);
+                if (hint != null) {
+                    exception.push(hint);
+                } else {
+                    exception.push(object(catchType == null ? "java/lang/Throwable"
+                            : catchType.getClassName().replace('.', '/')));
+                }
+                if (!flowTo(handlerBlock, exception)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean covers(CodeExceptionGen handler, BasicBlock block)
+    {
+        int position = block.start.getPosition();
+        return position >= handler.getStartPC().getPosition() && position <= handler.getEndPC().getPosition();
+    }
+
+    /**
+     * Merges a state into the entry of a block, queueing the block if its entry changed.
+     * @return false if the states cannot be merged
+     */
+    private boolean flowTo(BasicBlock block, State state)
+    {
+        State entry = entries[block.index];
+        State hint = hints == null ? null : hints.frames.get(block.start);
+        boolean changed = false;
+        if (entry == null) {
+            entry = state.copy();
+            entries[block.index] = entry;
+            for (int i = 0; i < entry.locals.length; i++) {
+                if (!liveness.isLiveIn(block, i)) {
+                    entry.locals[i] = of(TOP);
+                }
+            }
+            changed = true;
+        } else {
+            if (entry.sp != state.sp) {
+                return false;
+            }
+            for (int i = 0; i < entry.locals.length; i++) {
+                VerificationType merged = liveness.isLiveIn(block, i)
+                        ? merge(entry.locals[i], state.locals[i], hint == null ? null : hint.locals, i, true)
+                        : of(TOP);
+                if (!merged.equals(entry.locals[i])) {
+                    entry.locals[i] = merged;
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < entry.sp; i++) {
+                VerificationType merged = merge(entry.stack[i], state.stack[i], hint == null ? null : hint.stack, i,
+                        false);
+                if (merged == null) {
+                    return false;
+                }
+                if (!merged.equals(entry.stack[i])) {
+                    entry.stack[i] = merged;
+                    changed = true;
+                }
+            }
+        }
+        if (changed && !queued[block.index]) {
+            queued[block.index] = true;
+            worklist.add(block);
+        }
+        return true;
+    }
+
+    /**
+     * The type of a slot reached with either of two types.
+     * @param hint types the original frame gave the slots, or null
+     * @return the merged type, null if a stack slot cannot be merged
+     */
+    private static VerificationType merge(VerificationType a, VerificationType b, VerificationType[] hint, int slot,
+                                          boolean local)
+    {
+        if (a.equals(b)) {
+            return a;
+        }
+        if (a.isReference() && b.isReference()) {
+            if (a.kind == NULL) {
+                return b;
+            }
+            if (b.kind == NULL) {
+                return a;
+            }
+            if (a.name.equals("java/lang/Object") || b.name.equals("java/lang/Object")) {
+                return object("java/lang/Object");
+            }
+            if (hint != null && slot < hint.length && hint[slot].kind == OBJECT) {
+                return hint[slot];
+            }
+        }
+        // a local that holds different things on different paths cannot be read at the merge
+        return local ? of(TOP) : null;
+    }
+
+    /**
+     * Applies the effect of an instruction on the types.
+     * @return false for instructions the builder does not handle
+     */
+    private boolean execute(InstructionHandle handle, State state)
+    {
+        Instruction inst = handle.getInstruction();
+        short opcode = inst.getOpcode();
+        if (inst instanceof LoadInstruction) {
+            VerificationType type = state.locals[((LoadInstruction) inst).getIndex()];
+            if (type.kind == TOP) {
+                return false;
+            }
+            state.push(type);
+            return true;
+        }
+        if (inst instanceof StoreInstruction) {
+            int size = Liveness.slots(inst);
+            state.sp -= size;
+            state.store(((StoreInstruction) inst).getIndex(), state.stack[state.sp]);
+            return true;
+        }
+        if (inst instanceof StackInstruction) {
+            return shuffle(opcode, state);
+        }
+        if (inst instanceof IINC || inst instanceof NOP) {
+            return true;
+        }
+        if (inst instanceof ATHROW) {
+            // BCEL counts the exception as pushed again, for the handler
+            state.sp -= 1;
+            return true;
+        }
+        if (inst instanceof JsrInstruction || inst instanceof RET) {
+            return false;
+        }
+        if (inst instanceof INVOKESPECIAL
+                && ((INVOKESPECIAL) inst).getMethodName(cpgen).equals(Const.CONSTRUCTOR_NAME)) {
+            state.sp -= inst.consumeStack(cpgen) - 1;
+            initialize(state.pop(), state);
+            return true;
+        }
+
+        int produced = inst.produceStack(cpgen);
+        VerificationType result = null;
+        if (produced > 0) {
+            result = resultType(handle, state);
+            if (result == null || (result.isWide() ? 2 : 1) != produced) {
+                return false;
+            }
+        }
+        state.sp -= inst.consumeStack(cpgen);
+        if (state.sp < 0) {
+            return false;
+        }
+        if (result != null) {
+            state.push(result);
+        }
+        return true;
+    }
+
+    private static boolean shuffle(short opcode, State state)
+    {
+        VerificationType[] s = state.stack;
+        int sp = state.sp;
+        switch (opcode) {
+            case Const.POP:
+                state.sp -= 1;
+                return true;
+            case Const.POP2:
+                state.sp -= 2;
+                return true;
+            case Const.DUP:
+                s[sp] = s[sp - 1];
+                state.sp += 1;
+                return true;
+            case Const.DUP_X1:
+                s[sp] = s[sp - 1];
+                s[sp - 1] = s[sp - 2];
+                s[sp - 2] = s[sp];
+                state.sp += 1;
+                return true;
+            case Const.DUP_X2:
+                s[sp] = s[sp - 1];
+                s[sp - 1] = s[sp - 2];
+                s[sp - 2] = s[sp - 3];
+                s[sp - 3] = s[sp];
+                state.sp += 1;
+                return true;
+            case Const.DUP2:
+                s[sp] = s[sp - 2];
+                s[sp + 1] = s[sp - 1];
+                state.sp += 2;
+                return true;
+            case Const.DUP2_X1:
+                s[sp + 1] = s[sp - 1];
+                s[sp] = s[sp - 2];
+                s[sp - 1] = s[sp - 3];
+                s[sp - 2] = s[sp + 1];
+                s[sp - 3] = s[sp];
+                state.sp += 2;
+                return true;
+            case Const.DUP2_X2:
+                s[sp + 1] = s[sp - 1];
+                s[sp] = s[sp - 2];
+                s[sp - 1] = s[sp - 3];
+                s[sp - 2] = s[sp - 4];
+                s[sp - 3] = s[sp + 1];
+                s[sp - 4] = s[sp];
+                state.sp += 2;
+                return true;
+            case Const.SWAP:
+                VerificationType top = s[sp - 1];
+                s[sp - 1] = s[sp - 2];
+                s[sp - 2] = top;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A constructor turns every copy of the object it initialises into an object of its class.
+     */
+    private void initialize(VerificationType receiver, State state)
+    {
+        VerificationType initialised;
+        if (receiver.kind == UNINITIALIZED) {
+            initialised = typeOf(((NEW) receiver.creator.getInstruction()).getLoadClassType(cpgen));
+        } else if (receiver.kind == UNINITIALIZED_THIS) {
+            initialised = object(className);
+        } else {
+            return;
+        }
+        for (int i = 0; i < state.locals.length; i++) {
+            if (state.locals[i].equals(receiver)) {
+                state.locals[i] = initialised;
+            }
+        }
+        for (int i = 0; i < state.sp; i++) {
+            if (state.stack[i].equals(receiver)) {
+                state.stack[i] = initialised;
+            }
+        }
+    }
+
+    /**
+     * The type of the value an instruction pushes, computed before its operands are popped.
+     * @return null if it is not known
+     */
+    private VerificationType resultType(InstructionHandle handle, State state)
+    {
+        Instruction inst = handle.getInstruction();
+        switch (inst.getOpcode()) {
+            case Const.ACONST_NULL:
+                return of(NULL);
+            case Const.LCMP:
+            case Const.FCMPL:
+            case Const.FCMPG:
+            case Const.DCMPL:
+            case Const.DCMPG:
+            case Const.ARRAYLENGTH:
+            case Const.INSTANCEOF:
+                return of(INTEGER);
+            case Const.NEW:
+                return new VerificationType(UNINITIALIZED, null, handle);
+            case Const.AALOAD:
+                return componentType(state.stack[state.sp - 2]);
+            case Const.LDC:
+            case Const.LDC_W:
+            case Const.LDC2_W:
+                return constantType(cpgen.getConstant(((CPInstruction) inst).getIndex()));
+            case Const.NEWARRAY:
+                return typeOf(((NEWARRAY) inst).getType());
+            case Const.ANEWARRAY:
+                return typeOf(new ArrayType(((ANEWARRAY) inst).getType(cpgen), 1));
+            case Const.MULTIANEWARRAY:
+            case Const.CHECKCAST:
+                return typeOf(((CPInstruction) inst).getType(cpgen));
+            default:
+                break;
+        }
+        if (inst instanceof FieldInstruction) {
+            return typeOf(((FieldInstruction) inst).getFieldType(cpgen));
+        }
+        if (inst instanceof InvokeInstruction) {
+            return typeOf(((InvokeInstruction) inst).getReturnType(cpgen));
+        }
+        if (inst instanceof ConstantPushInstruction || inst instanceof ArithmeticInstruction
+                || inst instanceof ConversionInstruction || inst instanceof ArrayInstruction) {
+            // the loads from primitive arrays, whose type is the type of their element
+            return typeOf(((TypedInstruction) inst).getType(cpgen));
+        }
+        return null;
+    }
+
+    private static VerificationType componentType(VerificationType array)
+    {
+        if (array.kind == NULL) {
+            return array;
+        }
+        if (array.kind != OBJECT || !array.name.startsWith("[")) {
+            return null;
+        }
+        String component = array.name.substring(1);
+        if (component.startsWith("L")) {
+            return object(component.substring(1, component.length() - 1));
+        }
+        return component.startsWith("[") ? object(component) : null;
+    }
+
+    private VerificationType constantType(Constant constant)
+    {
+        switch (constant.getTag()) {
+            case Const.CONSTANT_Integer:
+                return of(INTEGER);
+            case Const.CONSTANT_Float:
+                return of(FLOAT);
+            case Const.CONSTANT_Long:
+                return of(LONG);
+            case Const.CONSTANT_Double:
+                return of(DOUBLE);
+            case Const.CONSTANT_String:
+                return object("java/lang/String");
+            case Const.CONSTANT_Class:
+                return object("java/lang/Class");
+            case Const.CONSTANT_MethodType:
+                return object("java/lang/invoke/MethodType");
+            case Const.CONSTANT_MethodHandle:
+                return object("java/lang/invoke/MethodHandle");
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The verification type of a value of a Java type: the small integer types are ints.
+     */
+    static VerificationType typeOf(Type type)
+    {
+        switch (type.getType()) {
+            case Const.T_BOOLEAN:
+            case Const.T_CHAR:
+            case Const.T_BYTE:
+            case Const.T_SHORT:
+            case Const.T_INT:
+                return of(INTEGER);
+            case Const.T_FLOAT:
+                return of(FLOAT);
+            case Const.T_LONG:
+                return of(LONG);
+            case Const.T_DOUBLE:
+                return of(DOUBLE);
+            case Const.T_ARRAY:
+                return object(type.getSignature());
+            case Const.T_OBJECT:
+                return object(((ObjectType) type).getClassName().replace('.', '/'));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The frames of the StackMapTable of a method as it was read, to be used as hints. Must be called before the code
+     * is changed.
+     * @return null if the method has no StackMapTable
+     */
+    static Hints originalFrames(MethodGen methodGen, String className)
+    {
+        StackMap stackMap = null;
+        for (Attribute attribute : methodGen.getCodeAttributes()) {
+            if (attribute instanceof StackMap) {
+                stackMap = (StackMap) attribute;
+            }
+        }
+        if (stackMap == null) {
+            return null;
+        }
+        InstructionList instList = methodGen.getInstructionList();
+        ConstantPool cp = methodGen.getConstantPool().getConstantPool();
+        int maxLocals = methodGen.getMaxLocals();
+        int maxStack = methodGen.getMaxStack();
+        List<VerificationType> locals = entries(initialState(methodGen, className.replace('.', '/'), maxLocals,
+                maxStack).locals, maxLocals, true);
+        Hints hints = new Hints();
+        int offset = -1;
+        for (StackMapEntry entry : stackMap.getStackMap()) {
+            int frameType = entry.getFrameType();
+            offset += entry.getByteCodeOffset() + 1;
+            List<VerificationType> stack = new ArrayList<>();
+            if (frameType >= Const.SAME_LOCALS_1_STACK_ITEM_FRAME
+                    && frameType <= Const.SAME_LOCALS_1_STACK_ITEM_FRAME_EXTENDED) {
+                stack = decode(entry.getTypesOfStackItems(), cp);
+            } else if (frameType >= Const.CHOP_FRAME && frameType <= Const.CHOP_FRAME_MAX) {
+                locals = new ArrayList<>(locals.subList(0, Math.max(0, locals.size() - (251 - frameType))));
+            } else if (frameType >= Const.APPEND_FRAME && frameType <= Const.APPEND_FRAME_MAX) {
+                locals = new ArrayList<>(locals);
+                locals.addAll(decode(entry.getTypesOfLocals(), cp));
+            } else if (frameType == Const.FULL_FRAME) {
+                locals = decode(entry.getTypesOfLocals(), cp);
+                stack = decode(entry.getTypesOfStackItems(), cp);
+            }
+            InstructionHandle handle = instList.findHandle(offset);
+            if (handle == null) {
+                return null;
+            }
+            State frame = new State(maxLocals, maxStack);
+            int slot = 0;
+            for (VerificationType type : locals) {
+                if (slot + (type.isWide() ? 2 : 1) > maxLocals) {
+                    return null;
+                }
+                frame.store(slot, type);
+                slot += type.isWide() ? 2 : 1;
+            }
+            for (VerificationType type : stack) {
+                if (frame.sp + (type.isWide() ? 2 : 1) > maxStack) {
+                    return null;
+                }
+                frame.push(type);
+            }
+            hints.frames.put(handle, frame);
+        }
+        for (CodeExceptionGen handler : methodGen.getExceptionHandlers()) {
+            State frame = hints.frames.get(handler.getHandlerPC());
+            if (frame != null && frame.sp == 1 && frame.stack[0].kind == OBJECT) {
+                hints.exceptions.put(handler, frame.stack[0]);
+            }
+        }
+        return hints;
+    }
+
+    private static List<VerificationType> decode(StackMapType[] types, ConstantPool cp)
+    {
+        List<VerificationType> decoded = new ArrayList<>(types.length);
+        for (StackMapType type : types) {
+            if (type.getType() == OBJECT) {
+                decoded.add(object(cp.getConstantString(type.getIndex(), Const.CONSTANT_Class)));
+            } else if (type.getType() == UNINITIALIZED) {
+                // only the classes of references are used as hints
+                decoded.add(of(TOP));
+            } else {
+                decoded.add(of(type.getType()));
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Moves the locals of frames read by originalFrames to the slots DeadStoreElimination.compactLocals gave them.
+     * @param mapping new slot of every old slot, -1 for slots no longer used
+     */
+    static void renumberLocals(Hints hints, int[] mapping, int maxLocals)
+    {
+        for (Map.Entry<InstructionHandle, State> entry : hints.frames.entrySet()) {
+            State frame = entry.getValue();
+            State renumbered = new State(maxLocals, frame.stack.length);
+            for (int i = 0; i < frame.locals.length && i < mapping.length; i++) {
+                if (mapping[i] >= 0 && mapping[i] < maxLocals) {
+                    renumbered.locals[mapping[i]] = frame.locals[i];
+                }
+            }
+            System.arraycopy(frame.stack, 0, renumbered.stack, 0, frame.sp);
+            renumbered.sp = frame.sp;
+            entry.setValue(renumbered);
+        }
+    }
+
+    /**
+     * The entries a frame lists for slots: one per value, the second slot of a long or double having none.
+     * @param trim whether to drop trailing tops, which a frame leaves out of its locals
+     */
+    private static List<VerificationType> entries(VerificationType[] slots, int count, boolean trim)
+    {
+        List<VerificationType> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(slots[i]);
+            if (slots[i].isWide()) {
+                i++;
+            }
+        }
+        while (trim && !entries.isEmpty() && entries.get(entries.size() - 1).kind == TOP) {
+            entries.remove(entries.size() - 1);
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the frames as a StackMapTable attribute, with each frame in its shortest form. Positions must be up to
+     * date.
+     * @return null if no instruction needs a frame
+     */
+    StackMap encode(ConstantPoolGen pool)
+    {
+        if (frames.isEmpty()) {
+            return null;
+        }
+        ConstantPool cp = pool.getConstantPool();
+        int maxLocals = methodGen.getMaxLocals();
+        List<VerificationType> previous = entries(initialState(methodGen, className, maxLocals,
+                methodGen.getMaxStack()).locals, maxLocals, true);
+        StackMapEntry[] encoded = new StackMapEntry[frames.size()];
+        int length = 2;
+        int offset = -1;
+        for (int i = 0; i < encoded.length; i++) {
+            State frame = frames.get(i);
+            int position = frameHandles.get(i).getPosition();
+            int delta = position - offset - 1;
+            offset = position;
+            List<VerificationType> locals = entries(frame.locals, frame.locals.length, true);
+            List<VerificationType> stack = entries(frame.stack, frame.sp, false);
+            int common = 0;
+            while (common < locals.size() && common < previous.size()
+                    && locals.get(common).equals(previous.get(common))) {
+                common++;
+            }
+
+            int frameType;
+            StackMapType[] localTypes = NO_TYPES;
+            StackMapType[] stackTypes = NO_TYPES;
+            boolean sameLocals = common == locals.size() && common == previous.size();
+            if (sameLocals && stack.isEmpty()) {
+                frameType = delta <= Const.SAME_FRAME_MAX ? delta : Const.SAME_FRAME_EXTENDED;
+            } else if (sameLocals && stack.size() == 1) {
+                frameType = delta <= Const.SAME_FRAME_MAX ? Const.SAME_LOCALS_1_STACK_ITEM_FRAME + delta
+                        : Const.SAME_LOCALS_1_STACK_ITEM_FRAME_EXTENDED;
+                stackTypes = encode(stack, pool);
+            } else if (stack.isEmpty() && common == locals.size() && previous.size() - common <= 3) {
+                frameType = 251 - (previous.size() - common);
+            } else if (stack.isEmpty() && common == previous.size() && locals.size() - common <= 3) {
+                frameType = 251 + (locals.size() - common);
+                localTypes = encode(locals.subList(common, locals.size()), pool);
+            } else {
+                frameType = Const.FULL_FRAME;
+                localTypes = encode(locals, pool);
+                stackTypes = encode(stack, pool);
+            }
+            encoded[i] = new StackMapEntry(frameType, delta, localTypes, stackTypes, cp);
+            length += entrySize(frameType, localTypes, stackTypes);
+            previous = locals;
+        }
+        return new StackMap(pool.addUtf8(STACK_MAP_TABLE), length, encoded, cp);
+    }
+
+    private static StackMapType[] encode(List<VerificationType> types, ConstantPoolGen pool)
+    {
+        StackMapType[] encoded = new StackMapType[types.size()];
+        ConstantPool cp = pool.getConstantPool();
+        for (int i = 0; i < encoded.length; i++) {
+            VerificationType type = types.get(i);
+            int index = 0;
+            if (type.kind == OBJECT) {
+                index = pool.addClass(type.name);
+            } else if (type.kind == UNINITIALIZED) {
+                index = type.creator.getPosition();
+            }
+            encoded[i] = new StackMapType(type.kind, index, cp);
+        }
+        return encoded;
+    }
+
+    /**
+     * Size in bytes of an entry of the StackMapTable.
+     */
+    private static int entrySize(int frameType, StackMapType[] locals, StackMapType[] stack)
+    {
+        int size = 1;
+        if (frameType > Const.SAME_LOCALS_1_STACK_ITEM_FRAME_MAX) {
+            size += 2;
+        }
+        if (frameType == Const.FULL_FRAME) {
+            size += 4;
+        }
+        for (StackMapType type : locals) {
+            size += type.hasIndex() ? 3 : 1;
+        }
+        for (StackMapType type : stack) {
+            size += type.hasIndex() ? 3 : 1;
+        }
+        return size;
+    }
+}
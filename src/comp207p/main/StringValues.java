@@ -0,0 +1,312 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.generic.*;
+
+
+/**
+ * STRING VALUES
+ * Strings in the constant domain of Frame. A constant string is tagged STRING and its bits are the index of a
+ * CONSTANT_String entry holding it in the constant pool of the method; a string computed by the folder is added to
+ * the pool, which keeps one entry per value, so that equal strings normally have equal bits.
+ *
+ * What is evaluated on them:
+ * - String.length(), String.equals(Object) and String.hashCode(), whose result the JDK specifies, so that a switch
+ *   on a constant string can be folded;
+ * - concatenations: a StringBuilder or StringBuffer created, appended to and turned into a String, as javac compiles
+ *   + before Java 9, and the invokedynamic calls to StringConcatFactory javac emits since (see PureCalls).
+ * A builder is tracked as a BUILDER slot whose bits are the string it holds, while no other slot refers to it; a
+ * chain of appends on the stack qualifies, a builder kept in a local does not.
+ *
+ * Ints, longs, chars, booleans and strings are converted as the JDK converts them. Floats and doubles are not: the
+ * result of Float.toString and Double.toString changed in JDK 19, so the folded string might not be the one the
+ * program would have built. Strings longer than MAX_LENGTH are not tracked, so that a loop appending to a string
+ * cannot fill the constant pool.
+ *
+ * A folded concatenation pushes its result with an LDC, which yields an interned string rather than a new one. Only
+ * code comparing strings with == can tell, as with the constant expressions javac folds itself.
+ */
+final class StringValues {
+    static final int MAX_LENGTH = 1024;
+
+    private StringValues()
+    {
+    }
+
+    /**
+     * The string held by a STRING or BUILDER slot.
+     */
+    static String value(ConstantPoolGen cpgen, long bits)
+    {
+        return ((ConstantString) cpgen.getConstant((int) bits)).getBytes(cpgen.getConstantPool());
+    }
+
+    /**
+     * Pushes a string or a builder holding it, or a value that is not a constant if the string is too long to track.
+     */
+    static void push(Frame frame, ConstantPoolGen cpgen, byte tag, String value)
+    {
+        if (value.length() > MAX_LENGTH) {
+            frame.push(Frame.UNKNOWN, 0);
+        } else {
+            frame.push(tag, cpgen.addString(value));
+        }
+    }
+
+    private static boolean isBuilderClass(String className)
+    {
+        return className.equals("java.lang.StringBuilder") || className.equals("java.lang.StringBuffer");
+    }
+
+    /**
+     * Applies the effect of an instruction on strings or builders to the frame.
+     * @return false if the instruction is not one of them or its operands are not constants; the frame is then
+     * untouched
+     */
+    static boolean evaluate(Instruction inst, Frame frame, ConstantPoolGen cpgen)
+    {
+        if (inst instanceof NEW) {
+            if (!isBuilderClass(((NEW) inst).getLoadClassType(cpgen).getClassName())) {
+                return false;
+            }
+            frame.push(Frame.NEW_BUILDER, 0);
+            return true;
+        }
+        if (!(inst instanceof INVOKEVIRTUAL || inst instanceof INVOKESPECIAL)) {
+            return false;
+        }
+        InvokeInstruction invoke = (InvokeInstruction) inst;
+        String owner = invoke.getReferenceType(cpgen).toString();
+        String name = invoke.getMethodName(cpgen);
+        String signature = invoke.getSignature(cpgen);
+        if (owner.equals("java.lang.String")) {
+            return evaluateString(name, signature, frame, cpgen);
+        }
+        if (!isBuilderClass(owner)) {
+            return false;
+        }
+
+        if (name.equals("<init>")) {
+            String initial = null;
+            if (signature.equals("()V")) {
+                initial = "";
+            } else if (signature.equals("(Ljava/lang/String;)V") && frame.topTag(1) == Frame.STRING) {
+                initial = value(cpgen, frame.topBits(1));
+            }
+            frame.pop(invoke.consumeStack(cpgen));
+            // javac leaves one copy of the new builder below the one the constructor takes
+            int copies = 0;
+            for (int i = 0; i < frame.sp; i++) {
+                if (frame.tags[i] == Frame.NEW_BUILDER) {
+                    copies++;
+                }
+            }
+            boolean single = copies == 1 && frame.stackSize() > 0 && frame.topTag(1) == Frame.NEW_BUILDER;
+            frame.forgetNewBuilders();
+            if (single && initial != null) {
+                frame.pop(1);
+                push(frame, cpgen, Frame.BUILDER, initial);
+            }
+            return true;
+        }
+        if (name.equals("toString") && signature.equals("()Ljava/lang/String;")) {
+            if (frame.topTag(1) != Frame.BUILDER) {
+                return false;
+            }
+            frame.tags[frame.sp - 1] = Frame.STRING;
+            return true;
+        }
+        if (name.equals("append") && signature.endsWith(")L" + owner.replace('.', '/') + ";")) {
+            Type[] arguments = invoke.getArgumentTypes(cpgen);
+            if (arguments.length != 1 || frame.topTag(1 + arguments[0].getSize()) != Frame.BUILDER) {
+                return false;
+            }
+            String text = toText(arguments[0], frame, arguments[0].getSize(), cpgen);
+            if (text == null) {
+                return false;
+            }
+            String appended = value(cpgen, frame.topBits(1 + arguments[0].getSize())) + text;
+            frame.pop(1 + arguments[0].getSize());
+            push(frame, cpgen, Frame.BUILDER, appended);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean evaluateString(String name, String signature, Frame frame, ConstantPoolGen cpgen)
+    {
+        if (name.equals("length") && signature.equals("()I")) {
+            if (frame.topTag(1) != Frame.STRING) {
+                return false;
+            }
+            int length = value(cpgen, frame.topBits(1)).length();
+            frame.pop(1);
+            frame.pushInt(length);
+            return true;
+        }
+        if (name.equals("hashCode") && signature.equals("()I")) {
+            if (frame.topTag(1) != Frame.STRING) {
+                return false;
+            }
+            int hash = value(cpgen, frame.topBits(1)).hashCode();
+            frame.pop(1);
+            frame.pushInt(hash);
+            return true;
+        }
+        if (name.equals("equals") && signature.equals("(Ljava/lang/Object;)Z")) {
+            if (frame.topTag(1) != Frame.STRING || frame.topTag(2) != Frame.STRING) {
+                return false;
+            }
+            boolean equal = value(cpgen, frame.topBits(2)).equals(value(cpgen, frame.topBits(1)));
+            frame.pop(2);
+            frame.pushInt(equal ? 1 : 0);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether an instruction computes a new constant from strings, so that the folder may replace it by its result.
+     * Builders are folded as whole chains, see isChain.
+     */
+    static boolean isFoldable(Instruction inst, ConstantPoolGen cpgen)
+    {
+        if (inst instanceof INVOKEDYNAMIC) {
+            return true;
+        }
+        if (!(inst instanceof INVOKEVIRTUAL)) {
+            return false;
+        }
+        InvokeInstruction invoke = (InvokeInstruction) inst;
+        String name = invoke.getMethodName(cpgen);
+        return invoke.getReferenceType(cpgen).toString().equals("java.lang.String")
+                && (name.equals("length") || name.equals("equals") || name.equals("hashCode"));
+    }
+
+    static boolean isToString(Instruction inst, ConstantPoolGen cpgen)
+    {
+        return inst instanceof INVOKEVIRTUAL && isBuilderCall(inst, "toString", cpgen);
+    }
+
+    private static boolean isBuilderCall(Instruction inst, String name, ConstantPoolGen cpgen)
+    {
+        if (!(inst instanceof INVOKEVIRTUAL || inst instanceof INVOKESPECIAL)) {
+            return false;
+        }
+        InvokeInstruction invoke = (InvokeInstruction) inst;
+        return invoke.getMethodName(cpgen).equals(name) && isBuilderClass(invoke.getReferenceType(cpgen).toString());
+    }
+
+    /**
+     * Whether the instructions from start up to the toString at end are a whole builder chain as javac emits it: the
+     * NEW, a DUP, the constructor with an optional constant argument, then a constant and an append for each part.
+     * Such a chain has no effect besides its result, so once the result is known it can all be deleted.
+     */
+    static boolean isChain(InstructionHandle start, InstructionHandle end, ConstantPoolGen cpgen)
+    {
+        InstructionHandle handle = start.getNext();
+        if (!(start.getInstruction() instanceof NEW) || handle == null || !(handle.getInstruction() instanceof DUP)) {
+            return false;
+        }
+        handle = handle.getNext();
+        if (handle != null && ConstantPropagation.isConstantPush(handle.getInstruction(), cpgen)) {
+            handle = handle.getNext();
+        }
+        if (handle == null || !isBuilderCall(handle.getInstruction(), "<init>", cpgen)) {
+            return false;
+        }
+        handle = handle.getNext();
+        while (handle != end) {
+            if (handle == null || !ConstantPropagation.isConstantPush(handle.getInstruction(), cpgen)) {
+                return false;
+            }
+            handle = handle.getNext();
+            if (handle == null || !isBuilderCall(handle.getInstruction(), "append", cpgen)) {
+                return false;
+            }
+            handle = handle.getNext();
+        }
+        return true;
+    }
+
+    /**
+     * Concatenates the constants on top of the stack following a StringConcatFactory recipe, in which \1 stands for
+     * the next argument and \2 for the next constant.
+     * @param constants the values of the \2 in the recipe, null where they are not known
+     * @return false, leaving the frame untouched, if an argument is not a constant or cannot be converted
+     */
+    static boolean concatenate(String recipe, String[] constants, Type[] arguments, Frame frame,
+                               ConstantPoolGen cpgen)
+    {
+        int depth = 0;
+        for (Type argument : arguments) {
+            depth += argument.getSize();
+        }
+        int slots = depth;
+        StringBuilder result = new StringBuilder();
+        int argument = 0;
+        int constant = 0;
+        for (int i = 0; i < recipe.length(); i++) {
+            char c = recipe.charAt(i);
+            String text;
+            if (c == '\u0001') {
+                if (argument == arguments.length) {
+                    return false;
+                }
+                text = toText(arguments[argument], frame, depth, cpgen);
+                depth -= arguments[argument++].getSize();
+            } else if (c == '\u0002') {
+                text = constant < constants.length ? constants[constant++] : null;
+            } else {
+                text = String.valueOf(c);
+            }
+            if (text == null) {
+                return false;
+            }
+            result.append(text);
+            if (result.length() > MAX_LENGTH) {
+                return false;
+            }
+        }
+        frame.pop(slots);
+        push(frame, cpgen, Frame.STRING, result.toString());
+        return true;
+    }
+
+    /**
+     * The text a value of the given type on the stack is converted to by concatenation.
+     * @param depth number of slots from the value to the top of the stack, the value included
+     * @return null if the value is not a constant or its conversion is not folded
+     */
+    private static String toText(Type type, Frame frame, int depth, ConstantPoolGen cpgen)
+    {
+        byte tag = frame.topTag(depth);
+        long bits = frame.topBits(depth);
+        if (type == Type.INT || type == Type.SHORT || type == Type.BYTE) {
+            return tag == Frame.INT ? Integer.toString((int) bits) : null;
+        } else if (type == Type.CHAR) {
+            return tag == Frame.INT ? String.valueOf((char) bits) : null;
+        } else if (type == Type.BOOLEAN) {
+            return tag == Frame.INT ? String.valueOf(bits != 0) : null;
+        } else if (type == Type.LONG) {
+            return tag == Frame.LONG ? Long.toString(bits) : null;
+        } else if (type.equals(Type.STRING) || type.equals(Type.OBJECT)
+                || type.getSignature().equals("Ljava/lang/CharSequence;")) {
+            return tag == Frame.STRING ? value(cpgen, bits) : null;
+        }
+        return null;
+    }
+
+    /**
+     * The value of a constant pool entry given as a static argument of a concatenation.
+     * @return null for entries that are not folded
+     */
+    static String constantText(Constant constant, ConstantPoolGen cpgen)
+    {
+        if (constant instanceof ConstantString) {
+            return ((ConstantString) constant).getBytes(cpgen.getConstantPool());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,53 @@
+package comp207p.main;
+
+
+/**
+ * TRACE
+ * Level-gated diagnostic output of the folder. The level is read once from the system property comp207p.trace
+ * (off, info or debug) and defaults to off:
+ * - info reports every method that is optimised or skipped;
+ * - debug also prints every instruction with the abstract stack in front of it, and the resulting code.
+ *
+ * The levels are constants, so a guarded call site such as
+ *
+ *     if (Trace.DEBUG) {
+ *         Trace.log(handle + "\tSTACK:" + frame);
+ *     }
+ *
+ * is removed by the JIT when tracing is off and no message is ever built.
+ */
+final class Trace {
+    static final int LEVEL_OFF = 0;
+    static final int LEVEL_INFO = 1;
+    static final int LEVEL_DEBUG = 2;
+
+    static final int LEVEL = parseLevel(System.getProperty("comp207p.trace"));
+
+    static final boolean INFO = LEVEL >= LEVEL_INFO;
+    static final boolean DEBUG = LEVEL >= LEVEL_DEBUG;
+
+    private Trace()
+    {
+    }
+
+    static int parseLevel(String level)
+    {
+        if (level == null) {
+            return LEVEL_OFF;
+        }
+        switch (level.trim().toLowerCase()) {
+            case "debug":
+                return LEVEL_DEBUG;
+            case "info":
+            case "":
+                return LEVEL_INFO;
+            default:
+                return LEVEL_OFF;
+        }
+    }
+
+    static void log(String message)
+    {
+        System.out.println(message);
+    }
+}
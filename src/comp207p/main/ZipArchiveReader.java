@@ -0,0 +1,243 @@
+package comp207p.main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+
+/**
+ * ZIP ARCHIVE READER
+ * Reads a ZIP/JAR file through a memory mapping of the whole file. Entries are listed from the central directory and
+ * their data can be obtained either still compressed, as a slice of the mapping that can be copied into another
+ * archive without inflating it, or inflated into a byte array.
+ *
+ * Archives larger than 2 GB cannot be mapped in one piece and are rejected.
+ */
+class ZipArchiveReader implements Closeable {
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    static final int ZIP64_LOCATOR = 0x07064b50;
+    /** Header id of the ZIP64 extended information extra field. */
+    static final int ZIP64_EXTRA = 0x0001;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    /**
+     * One entry of the central directory. Names are kept as raw bytes so they are written back exactly as read.
+     */
+    static class Entry {
+        String name;
+        byte[] rawName;
+        int versionMadeBy;
+        int versionNeeded;
+        int flags;
+        int method;
+        int time;
+        int date;
+        int crc;
+        long compressedSize;
+        long size;
+        byte[] extra;
+        byte[] comment;
+        int internalAttributes;
+        int externalAttributes;
+        long localHeaderOffset;
+
+        boolean isDirectory()
+        {
+            return name.endsWith("/");
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final List<Entry> entries = new ArrayList<>();
+
+    ZipArchiveReader(File file) throws IOException
+    {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ZipException("Archive too large to map: " + file);
+            }
+            this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.mapping.order(ByteOrder.LITTLE_ENDIAN);
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    List<Entry> entries()
+    {
+        return entries;
+    }
+
+    private void readCentralDirectory() throws ZipException
+    {
+        int end = findEndOfCentralDirectory();
+        long count = mapping.getShort(end + 10) & 0xffff;
+        long offset = mapping.getInt(end + 16) & 0xffffffffL;
+
+        // ZIP64 archives keep the real values in a second end record found through a locator
+        if ((count == 0xffff || offset == 0xffffffffL) && end >= 20 && mapping.getInt(end - 20) == ZIP64_LOCATOR) {
+            int zip64End = (int) mapping.getLong(end - 20 + 8);
+            if (mapping.getInt(zip64End) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                throw new ZipException("Corrupt ZIP64 end of central directory");
+            }
+            count = mapping.getLong(zip64End + 32);
+            offset = mapping.getLong(zip64End + 48);
+        }
+
+        int position = (int) offset;
+        for (long i = 0; i < count; i++) {
+            if (mapping.getInt(position) != CENTRAL_HEADER) {
+                throw new ZipException("Corrupt central directory at " + position);
+            }
+            Entry entry = new Entry();
+            entry.versionMadeBy = mapping.getShort(position + 4) & 0xffff;
+            entry.versionNeeded = mapping.getShort(position + 6) & 0xffff;
+            entry.flags = mapping.getShort(position + 8) & 0xffff;
+            entry.method = mapping.getShort(position + 10) & 0xffff;
+            entry.time = mapping.getShort(position + 12) & 0xffff;
+            entry.date = mapping.getShort(position + 14) & 0xffff;
+            entry.crc = mapping.getInt(position + 16);
+            entry.compressedSize = mapping.getInt(position + 20) & 0xffffffffL;
+            entry.size = mapping.getInt(position + 24) & 0xffffffffL;
+            int nameLength = mapping.getShort(position + 28) & 0xffff;
+            int extraLength = mapping.getShort(position + 30) & 0xffff;
+            int commentLength = mapping.getShort(position + 32) & 0xffff;
+            entry.internalAttributes = mapping.getShort(position + 36) & 0xffff;
+            entry.externalAttributes = mapping.getInt(position + 38);
+            entry.localHeaderOffset = mapping.getInt(position + 42) & 0xffffffffL;
+
+            entry.rawName = bytesAt(position + 46, nameLength);
+            entry.extra = bytesAt(position + 46 + nameLength, extraLength);
+            entry.comment = bytesAt(position + 46 + nameLength + extraLength, commentLength);
+            entry.name = new String(entry.rawName, StandardCharsets.UTF_8);
+            readZip64Sizes(entry);
+
+            entries.add(entry);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Replaces saturated sizes and offsets by the values of the ZIP64 extra field.
+     */
+    private static void readZip64Sizes(Entry entry)
+    {
+        ByteBuffer extra = ByteBuffer.wrap(entry.extra).order(ByteOrder.LITTLE_ENDIAN);
+        while (extra.remaining() >= 4) {
+            int id = extra.getShort() & 0xffff;
+            int length = extra.getShort() & 0xffff;
+            int next = extra.position() + length;
+            if (id == ZIP64_EXTRA) {
+                if (entry.size == 0xffffffffL) {
+                    entry.size = extra.getLong();
+                }
+                if (entry.compressedSize == 0xffffffffL) {
+                    entry.compressedSize = extra.getLong();
+                }
+                if (entry.localHeaderOffset == 0xffffffffL) {
+                    entry.localHeaderOffset = extra.getLong();
+                }
+                return;
+            }
+            extra.position(Math.min(next, extra.limit()));
+        }
+    }
+
+    private int findEndOfCentralDirectory() throws ZipException
+    {
+        int limit = Math.max(0, mapping.capacity() - 22 - 0xffff);
+        for (int position = mapping.capacity() - 22; position >= limit; position--) {
+            if (mapping.getInt(position) == END_OF_CENTRAL_DIRECTORY) {
+                return position;
+            }
+        }
+        throw new ZipException("No end of central directory record, not a ZIP file");
+    }
+
+    private byte[] bytesAt(int position, int length)
+    {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = mapping.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * The data of an entry exactly as stored in the archive, without inflating it.
+     */
+    ByteBuffer rawData(Entry entry)
+    {
+        int header = (int) entry.localHeaderOffset;
+        int nameLength = mapping.getShort(header + 26) & 0xffff;
+        int extraLength = mapping.getShort(header + 28) & 0xffff;
+        ByteBuffer view = mapping.duplicate();
+        view.position(header + 30 + nameLength + extraLength);
+        view.limit(view.position() + (int) entry.compressedSize);
+        return view.slice();
+    }
+
+    /**
+     * The uncompressed data of an entry.
+     */
+    byte[] read(Entry entry) throws IOException
+    {
+        ByteBuffer raw = rawData(entry);
+        byte[] data = new byte[(int) entry.size];
+        if (entry.method == STORED) {
+            raw.get(data);
+            return data;
+        }
+        if (entry.method != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        byte[] compressed = new byte[raw.remaining()];
+        raw.get(compressed);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < data.length) {
+                int read = inflater.inflate(data, length, data.length - length);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != data.length) {
+                throw new ZipException("Truncated data for " + entry.name);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt data for " + entry.name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,228 @@
+package comp207p.main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * ZIP ARCHIVE WRITER
+ * Streams entries into a new ZIP/JAR file through a file channel. Entries can either be copied over still compressed
+ * from a ZipArchiveReader, or written from uncompressed bytes, which are deflated here. The central directory is
+ * written on close; a ZIP64 end record is added when there are more entries than the classic format can count.
+ *
+ * The extra field of the central directory entry, such as extended time stamps or Unix owners, is written to both
+ * headers of the copy. Its ZIP64 block is dropped, as entries are only written with 32 bit sizes and offsets.
+ */
+class ZipArchiveWriter implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(46 + 3 * 0xffff).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<ZipArchiveReader.Entry> written = new ArrayList<>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] deflateBuffer = new byte[64 * 1024];
+    private long offset = 0;
+
+    ZipArchiveWriter(File file) throws IOException
+    {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Copies an entry without inflating or re-compressing its data.
+     * @param entry central directory entry of the source archive
+     * @param data the entry's data as returned by ZipArchiveReader.rawData
+     */
+    void copyRaw(ZipArchiveReader.Entry entry, ByteBuffer data) throws IOException
+    {
+        ZipArchiveReader.Entry copy = copyOf(entry);
+        writeEntry(copy, data);
+    }
+
+    /**
+     * Writes new contents for an entry, keeping its name, time stamp and attributes.
+     * @param template entry of the source archive the new contents replace
+     * @param contents uncompressed data
+     */
+    void write(ZipArchiveReader.Entry template, byte[] contents) throws IOException
+    {
+        ZipArchiveReader.Entry entry = copyOf(template);
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length);
+        entry.crc = (int) crc.getValue();
+        entry.size = contents.length;
+        entry.method = ZipArchiveReader.DEFLATED;
+
+        deflater.reset();
+        deflater.setInput(contents);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflateBuffer.length) {
+                deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+            }
+            length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+        }
+        entry.compressedSize = length;
+        writeEntry(entry, ByteBuffer.wrap(deflateBuffer, 0, length));
+    }
+
+    private static ZipArchiveReader.Entry copyOf(ZipArchiveReader.Entry source)
+    {
+        ZipArchiveReader.Entry entry = new ZipArchiveReader.Entry();
+        entry.name = source.name;
+        entry.rawName = source.rawName;
+        entry.versionMadeBy = source.versionMadeBy;
+        entry.versionNeeded = Math.min(source.versionNeeded, 20);
+        // sizes are always known up front, so no data descriptor follows the data
+        entry.flags = source.flags & ~0x0008;
+        entry.method = source.method;
+        entry.time = source.time;
+        entry.date = source.date;
+        entry.crc = source.crc;
+        entry.compressedSize = source.compressedSize;
+        entry.size = source.size;
+        entry.extra = withoutZip64(source.extra);
+        entry.comment = source.comment;
+        entry.internalAttributes = source.internalAttributes;
+        entry.externalAttributes = source.externalAttributes;
+        return entry;
+    }
+
+    /**
+     * An extra field without its ZIP64 extended information blocks.
+     */
+    private static byte[] withoutZip64(byte[] extra)
+    {
+        ByteBuffer blocks = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer kept = ByteBuffer.allocate(extra.length);
+        while (blocks.remaining() >= 4) {
+            int start = blocks.position();
+            int id = blocks.getShort() & 0xffff;
+            int length = blocks.getShort() & 0xffff;
+            if (length > blocks.remaining()) {
+                // a malformed block ends the field, as it would for a reader
+                break;
+            }
+            blocks.position(blocks.position() + length);
+            if (id != ZipArchiveReader.ZIP64_EXTRA) {
+                kept.put(extra, start, 4 + length);
+            }
+        }
+        return Arrays.copyOf(kept.array(), kept.position());
+    }
+
+    private void writeEntry(ZipArchiveReader.Entry entry, ByteBuffer data) throws IOException
+    {
+        if (entry.compressedSize > 0xfffffffeL || entry.size > 0xfffffffeL || offset > 0xfffffffeL) {
+            throw new IOException("Entry too large for a ZIP32 archive: " + entry.name);
+        }
+        entry.localHeaderOffset = offset;
+        header.clear();
+        header.putInt(ZipArchiveReader.LOCAL_HEADER);
+        header.putShort((short) entry.versionNeeded);
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putShort((short) entry.time);
+        header.putShort((short) entry.date);
+        header.putInt(entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.rawName.length);
+        header.putShort((short) entry.extra.length);
+        header.put(entry.rawName);
+        header.put(entry.extra);
+        header.flip();
+        writeFully(header);
+        writeFully(data);
+        written.add(entry);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer);
+        }
+    }
+
+    int size()
+    {
+        return written.size();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            long centralDirectory = offset;
+            for (ZipArchiveReader.Entry entry : written) {
+                header.clear();
+                header.putInt(ZipArchiveReader.CENTRAL_HEADER);
+                header.putShort((short) entry.versionMadeBy);
+                header.putShort((short) entry.versionNeeded);
+                header.putShort((short) entry.flags);
+                header.putShort((short) entry.method);
+                header.putShort((short) entry.time);
+                header.putShort((short) entry.date);
+                header.putInt(entry.crc);
+                header.putInt((int) entry.compressedSize);
+                header.putInt((int) entry.size);
+                header.putShort((short) entry.rawName.length);
+                header.putShort((short) entry.extra.length);
+                header.putShort((short) entry.comment.length);
+                header.putShort((short) 0);
+                header.putShort((short) entry.internalAttributes);
+                header.putInt(entry.externalAttributes);
+                header.putInt((int) entry.localHeaderOffset);
+                header.put(entry.rawName);
+                header.put(entry.extra);
+                header.put(entry.comment);
+                header.flip();
+                writeFully(header);
+            }
+            long centralDirectorySize = offset - centralDirectory;
+            int count = written.size();
+
+            header.clear();
+            if (count >= 0xffff) {
+                long zip64End = offset;
+                header.putInt(ZipArchiveReader.ZIP64_END_OF_CENTRAL_DIRECTORY);
+                header.putLong(44);
+                header.putShort((short) 45);
+                header.putShort((short) 45);
+                header.putInt(0);
+                header.putInt(0);
+                header.putLong(count);
+                header.putLong(count);
+                header.putLong(centralDirectorySize);
+                header.putLong(centralDirectory);
+                header.putInt(ZipArchiveReader.ZIP64_LOCATOR);
+                header.putInt(0);
+                header.putLong(zip64End);
+                header.putInt(1);
+            }
+            header.putInt(ZipArchiveReader.END_OF_CENTRAL_DIRECTORY);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) Math.min(count, 0xffff));
+            header.putShort((short) Math.min(count, 0xffff));
+            header.putInt((int) centralDirectorySize);
+            header.putInt((int) centralDirectory);
+            header.putShort((short) 0);
+            header.flip();
+            writeFully(header);
+        } finally {
+            deflater.end();
+            channel.close();
+        }
+    }
+}
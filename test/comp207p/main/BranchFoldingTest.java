@@ -0,0 +1,133 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.IfInstruction;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.ReturnInstruction;
+import org.apache.bcel.generic.Select;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * BRANCH FOLDING TEST
+ * A conditional branch or switch on a constant keeps only the path it takes, and the blocks only the other paths
+ * reached are removed with it.
+ */
+public class BranchFoldingTest {
+    static class Samples {
+        static int nullCheck()
+        {
+            String s = "x";
+            if (s == null) {
+                return -1;
+            }
+            return s.length();
+        }
+
+        static int longCompare()
+        {
+            long a = 5L;
+            long b = 7L;
+            if (a > b) {
+                return 1;
+            }
+            return 2;
+        }
+
+        static int floatCompare()
+        {
+            float f = 1.5f;
+            float c = 2.5f;
+            if (f > c) {
+                return 1;
+            }
+            return 2;
+        }
+
+        static int doubleCompare()
+        {
+            double d = 0.25;
+            double c = 0.5;
+            if (d < c) {
+                return 1;
+            }
+            return 2;
+        }
+
+        static int tableSwitch()
+        {
+            int key = 2;
+            switch (key) {
+                case 0:
+                    return 10;
+                case 1:
+                    return 11;
+                case 2:
+                    return 12;
+                case 3:
+                    return 13;
+                default:
+                    return -1;
+            }
+        }
+
+        static int lookupSwitch()
+        {
+            int key = 1000;
+            switch (key) {
+                case -50:
+                    return 1;
+                case 1000:
+                    return 2;
+                case 100000:
+                    return 3;
+                default:
+                    return -1;
+            }
+        }
+    }
+
+    private static OptimisedClass samples;
+
+    @BeforeClass
+    public static void optimise() throws Exception
+    {
+        samples = new OptimisedClass(Samples.class);
+    }
+
+    /**
+     * Checks that a method has no branch or switch left and a single return, so the other paths are gone.
+     */
+    private static void assertOnePath(String method, Object expected) throws Exception
+    {
+        assertEquals(method, 0, samples.count(method, IfInstruction.class));
+        assertEquals(method, 0, samples.count(method, Select.class));
+        assertEquals(method, 1, samples.count(method, ReturnInstruction.class));
+        assertEquals(expected, samples.assertSameResult(method));
+    }
+
+    @Test
+    public void nullCheckOnAStringIsFolded() throws Exception
+    {
+        assertOnePath("nullCheck", 1);
+    }
+
+    @Test
+    public void comparisonsFeedingABranchAreFolded() throws Exception
+    {
+        assertOnePath("longCompare", 2);
+        assertOnePath("floatCompare", 2);
+        assertOnePath("doubleCompare", 1);
+    }
+
+    @Test
+    public void switchesOnAConstantAreFolded() throws Exception
+    {
+        assertOnePath("tableSwitch", 12);
+        assertOnePath("lookupSwitch", 2);
+        Instruction[] code = samples.code("tableSwitch");
+        assertEquals(2, code.length);
+    }
+}
@@ -0,0 +1,101 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.BootstrapMethods;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.CPInstruction;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionList;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * BYTECODE PREFILTER TEST
+ * The prefilter may only skip a method the passes would leave as it is. The samples are optimised with the prefilter
+ * turned off, and every method that changed must be one the prefilter lets through.
+ */
+public class BytecodePrefilterTest {
+    static class NothingToFold {
+        static int identity(int x)
+        {
+            return x;
+        }
+    }
+
+    private static JavaClass parse(byte[] classFile) throws Exception
+    {
+        return new ClassParser(new ByteArrayInputStream(classFile), "Samples.class").parse();
+    }
+
+    private static PureCalls calls(JavaClass javaClass)
+    {
+        FieldConstants fields = new FieldConstants();
+        fields.add(javaClass);
+        BootstrapMethods bootstrapMethods = null;
+        for (Attribute attribute : javaClass.getAttributes()) {
+            if (attribute instanceof BootstrapMethods) {
+                bootstrapMethods = (BootstrapMethods) attribute;
+            }
+        }
+        return new PureCalls(javaClass.getClassName(), javaClass.getMethods(),
+                new ConstantPoolGen(javaClass.getConstantPool()), fields, bootstrapMethods);
+    }
+
+    /**
+     * The instructions of a method, with the constant pool indexes left out, as compacting the pool renumbers them.
+     */
+    private static List<String> instructions(Method method)
+    {
+        List<String> instructions = new ArrayList<>();
+        for (Instruction inst : new InstructionList(method.getCode().getCode()).getInstructions()) {
+            instructions.add(inst instanceof CPInstruction ? inst.getName() : inst.toString(false));
+        }
+        return instructions;
+    }
+
+    @Test
+    public void everyMethodThatChangesIsScanned() throws Exception
+    {
+        byte[] classFile = IsolatingClassLoader.bytesOf(FoldingSamples.class);
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(classFile), "FoldingSamples.class");
+        folder.prefilter = false;
+        folder.optimize();
+        JavaClass optimised = parse(folder.getOptimizedBytes());
+
+        JavaClass original = parse(classFile);
+        PureCalls calls = calls(original);
+        int changed = 0;
+        Method[] methods = original.getMethods();
+        for (int i = 0; i < methods.length; i++) {
+            // the folder keeps the methods in their order
+            Method method = methods[i];
+            if (method.getCode() == null || instructions(method).equals(instructions(optimised.getMethods()[i]))) {
+                continue;
+            }
+            changed++;
+            assertTrue(method.getName(), BytecodePrefilter.scan(method.getCode(), original.getConstantPool(), calls));
+        }
+        assertTrue(changed > 0);
+    }
+
+    @Test
+    public void methodWithNothingToFoldIsSkipped() throws Exception
+    {
+        JavaClass javaClass = parse(IsolatingClassLoader.bytesOf(NothingToFold.class));
+        PureCalls calls = calls(javaClass);
+        for (Method method : javaClass.getMethods()) {
+            assertFalse(method.getName(), BytecodePrefilter.scan(method.getCode(), javaClass.getConstantPool(),
+                    calls));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ICONST;
+import org.apache.bcel.generic.IMUL;
+import org.apache.bcel.generic.IRETURN;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * CLASS CACHE TEST
+ * A stored result is returned as it is, without running the optimiser again, and the cache stays within its bound.
+ */
+public class ClassCacheTest {
+    static class Plain {
+        static int identity(int x)
+        {
+            return x;
+        }
+    }
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException
+    {
+        directory = Files.createTempDirectory("cache").toFile();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private Path entry(ClassCache cache, byte[] classFile)
+    {
+        String key = cache.key(classFile);
+        return directory.toPath().resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * A class with one method that multiplies two constants, different for every name.
+     */
+    private static byte[] foldableClass(String name)
+    {
+        ClassGen classGen = new ClassGen(name, "java.lang.Object", name + ".java", Const.ACC_PUBLIC | Const.ACC_SUPER,
+                null);
+        InstructionList il = new InstructionList();
+        il.append(new ICONST(2));
+        il.append(new ICONST(3));
+        il.append(new IMUL());
+        il.append(new IRETURN());
+        MethodGen methodGen = new MethodGen(Const.ACC_PUBLIC | Const.ACC_STATIC, Type.INT, Type.NO_ARGS, null, "six",
+                name, il, classGen.getConstantPool());
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        classGen.addMethod(methodGen.getMethod());
+        return classGen.getJavaClass().getBytes();
+    }
+
+    @Test
+    public void hitReturnsTheStoredResult() throws Exception
+    {
+        ClassCache cache = new ClassCache(directory, 1 << 20, "test");
+        byte[] sample = foldableClass("Sample");
+        assertNotNull(cache.optimizeClass(sample, "Sample.class"));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // whatever the entry holds is returned, which shows the optimiser did not run
+        Files.write(entry(cache, sample), new byte[]{1, 'x', 'y'});
+        assertArrayEquals(new byte[]{'x', 'y'}, cache.optimizeClass(sample, "Sample.class"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void unchangedClassIsStoredAsOneByte() throws Exception
+    {
+        ClassCache cache = new ClassCache(directory, 1 << 20, "test");
+        byte[] plain = IsolatingClassLoader.bytesOf(Plain.class);
+        assertNull(cache.optimizeClass(plain, "Plain.class"));
+        assertArrayEquals(new byte[]{0}, Files.readAllBytes(entry(cache, plain)));
+        assertNull(cache.optimizeClass(plain, "Plain.class"));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void configurationsDoNotShareEntries() throws Exception
+    {
+        byte[] plain = IsolatingClassLoader.bytesOf(Plain.class);
+        ClassCache cache = new ClassCache(directory, 1 << 20, "test");
+        assertNotEquals(cache.key(plain), new ClassCache(directory, 1 << 20, "other").key(plain));
+    }
+
+    @Test
+    public void evictionKeepsTheCacheWithinItsBound() throws Exception
+    {
+        int entrySize = ConstantFolder.optimizeClass(foldableClass("Generated0"), "Generated0.class").length + 1;
+        long maxBytes = 4L * entrySize;
+        ClassCache cache = new ClassCache(directory, maxBytes, "test");
+        for (int i = 0; i < 12; i++) {
+            String name = "Generated" + i;
+            assertNotNull(cache.optimizeClass(foldableClass(name), name + ".class"));
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+
+        long total = 0;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isRegularFile(path)) {
+                    total += Files.size(path);
+                }
+            }
+        }
+        assertTrue(total + " > " + maxBytes, total <= maxBytes);
+    }
+}
@@ -0,0 +1,61 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.DCONST;
+import org.apache.bcel.generic.FCONST;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.LDC;
+import org.apache.bcel.generic.LDC2_W;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * CONSTANT FOLDER TEST
+ * Pushing folded values, and optimising a whole class that must still verify and compute the same results.
+ */
+public class ConstantFolderTest {
+    @Test
+    public void negativeZeroIsNotPushedAsAConstantInstruction()
+    {
+        ConstantPoolGen cpgen = new ConstantPoolGen();
+        Instruction negative = ConstantFolder.makeConstant(cpgen, Frame.DOUBLE, Double.doubleToRawLongBits(-0.0));
+        assertTrue(negative instanceof LDC2_W);
+        Object value = ((LDC2_W) negative).getValue(cpgen);
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits((Double) value));
+        assertTrue(ConstantFolder.makeConstant(cpgen, Frame.DOUBLE, Double.doubleToRawLongBits(0.0))
+                instanceof DCONST);
+
+        Instruction negativeFloat = ConstantFolder.makeConstant(cpgen, Frame.FLOAT, Float.floatToRawIntBits(-0f));
+        assertTrue(negativeFloat instanceof LDC);
+        assertTrue(ConstantFolder.makeConstant(cpgen, Frame.FLOAT, Float.floatToRawIntBits(0f)) instanceof FCONST);
+    }
+
+    @Test
+    public void optimisedClassComputesTheSameResults() throws Exception
+    {
+        byte[] original = IsolatingClassLoader.bytesOf(FoldingSamples.class);
+        byte[] optimised = ConstantFolder.optimizeClass(original, "FoldingSamples.class");
+        assertNotNull("nothing was folded", optimised);
+        assertTrue(optimised.length < original.length);
+
+        Class<?> optimisedClass = IsolatingClassLoader.define(FoldingSamples.class.getName(), optimised);
+        assertEquals(IsolatingClassLoader.results(FoldingSamples.class),
+                IsolatingClassLoader.results(optimisedClass));
+    }
+
+    @Test
+    public void optimisingTwiceChangesNothingMore() throws Exception
+    {
+        byte[] once = ConstantFolder.optimizeClass(IsolatingClassLoader.bytesOf(FoldingSamples.class),
+                "FoldingSamples.class");
+        byte[] twice = ConstantFolder.optimizeClass(once, "FoldingSamples.class");
+        if (twice != null) {
+            assertTrue(twice.length <= once.length);
+            IsolatingClassLoader.define(FoldingSamples.class.getName(), twice);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * CONSTANT POOL COMPACTOR TEST
+ * Unused constants are dropped and every reference to the ones kept is renumbered, so that the compacted class still
+ * loads, verifies and runs.
+ */
+public class ConstantPoolCompactorTest {
+    /**
+     * The class file of FoldingSamples with constants nothing refers to.
+     */
+    private static byte[] withUnusedConstants() throws Exception
+    {
+        byte[] classFile = IsolatingClassLoader.bytesOf(FoldingSamples.class);
+        ClassGen gen = new ClassGen(new ClassParser(new ByteArrayInputStream(classFile), "FoldingSamples.class")
+                .parse());
+        ConstantPoolGen cpgen = gen.getConstantPool();
+        cpgen.addString("never loaded");
+        cpgen.addLong(123456789012L);
+        cpgen.addDouble(-0.0);
+        cpgen.addMethodref("java.lang.Math", "abs", "(I)I");
+        return gen.getJavaClass().getBytes();
+    }
+
+    @Test
+    public void unusedConstantsAreRemoved() throws Exception
+    {
+        byte[] padded = withUnusedConstants();
+        byte[] compacted = ConstantPoolCompactor.compact(padded);
+        assertTrue(ConstantPoolCompactor.poolCount(compacted) < ConstantPoolCompactor.poolCount(padded));
+        assertTrue(compacted.length < padded.length);
+    }
+
+    @Test
+    public void compactedClassComputesTheSameResults() throws Exception
+    {
+        byte[] compacted = ConstantPoolCompactor.compact(withUnusedConstants());
+        Class<?> compactedClass = IsolatingClassLoader.define(FoldingSamples.class.getName(), compacted);
+        assertEquals(IsolatingClassLoader.results(FoldingSamples.class),
+                IsolatingClassLoader.results(compactedClass));
+    }
+
+    @Test
+    public void compactingTwiceChangesNothing() throws Exception
+    {
+        byte[] compacted = ConstantPoolCompactor.compact(withUnusedConstants());
+        byte[] again = ConstantPoolCompactor.compact(compacted);
+        assertArrayEquals(compacted, again);
+    }
+
+    @Test
+    public void invalidClassFileIsReturnedAsItIs()
+    {
+        byte[] notAClass = {(byte) 0xca, (byte) 0xfe, 0, 1, 2, 3};
+        assertSame(notAClass, ConstantPoolCompactor.compact(notAClass));
+    }
+}
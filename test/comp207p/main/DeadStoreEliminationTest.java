@@ -0,0 +1,156 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.DLOAD;
+import org.apache.bcel.generic.DSTORE;
+import org.apache.bcel.generic.ISTORE;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.LLOAD;
+import org.apache.bcel.generic.LSTORE;
+import org.apache.bcel.generic.LocalVariableInstruction;
+import org.apache.bcel.generic.MethodGen;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * DEAD STORE ELIMINATION TEST
+ * A store may only go if no path reads it, an exceptional one included, and the locals left afterwards are packed
+ * without splitting a long or double.
+ */
+public class DeadStoreEliminationTest {
+    static class Samples {
+        static int neverRead(int x)
+        {
+            int unused = x * 7;
+            return x;
+        }
+
+        static int readOnOnePath(int x, boolean flag)
+        {
+            int y = x * 3;
+            if (flag) {
+                return y;
+            }
+            return x;
+        }
+
+        static int readInHandler(int[] values, int x)
+        {
+            int state = x * 3;
+            try {
+                values[0] = x;
+                state = x * 5;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                return state;
+            }
+            return state;
+        }
+
+        static long wideLocals(int n)
+        {
+            int two = 2;
+            long total = n;
+            double half = n / (double) two;
+            return total + (long) half;
+        }
+    }
+
+    private static MethodGen methodGen(String name) throws Exception
+    {
+        JavaClass samples = new ClassParser(new ByteArrayInputStream(IsolatingClassLoader.bytesOf(Samples.class)),
+                "Samples.class").parse();
+        ConstantPoolGen cpgen = new ConstantPoolGen(samples.getConstantPool());
+        for (Method method : samples.getMethods()) {
+            if (method.getName().equals(name)) {
+                return new MethodGen(method, samples.getClassName(), cpgen);
+            }
+        }
+        throw new IllegalArgumentException("No method " + name);
+    }
+
+    /**
+     * Runs the elimination on a method of the samples.
+     * @return the number of ISTOREs left
+     */
+    private static int storesLeft(String name) throws Exception
+    {
+        MethodGen methodGen = methodGen(name);
+        DeadStoreElimination.eliminate(methodGen, new ControlFlowGraph(methodGen.getInstructionList(),
+                methodGen.getExceptionHandlers()));
+        int stores = 0;
+        for (InstructionHandle handle : methodGen.getInstructionList().getInstructionHandles()) {
+            if (handle.getInstruction() instanceof ISTORE) {
+                stores++;
+            }
+        }
+        return stores;
+    }
+
+    @Test
+    public void storeNeverReadIsRemoved() throws Exception
+    {
+        assertEquals(0, storesLeft("neverRead"));
+    }
+
+    @Test
+    public void storeReadOnOnePathStays() throws Exception
+    {
+        assertEquals(1, storesLeft("readOnOnePath"));
+
+        OptimisedClass samples = new OptimisedClass(Samples.class);
+        samples.assertSameResult("readOnOnePath", 5, true);
+        samples.assertSameResult("readOnOnePath", 5, false);
+    }
+
+    @Test
+    public void storeReadOnlyByAHandlerStays() throws Exception
+    {
+        // the first store to state is overwritten on the normal path, but the handler reads it
+        assertEquals(2, storesLeft("readInHandler"));
+
+        OptimisedClass samples = new OptimisedClass(Samples.class);
+        samples.assertSameResult("readInHandler", new int[0], 4);
+        samples.assertSameResult("readInHandler", new int[1], 4);
+    }
+
+    @Test
+    public void compactedLocalsKeepWideValuesTogether() throws Exception
+    {
+        OptimisedClass samples = new OptimisedClass(Samples.class);
+        int before = methodGen("wideLocals").getMaxLocals();
+        int after = samples.method("wideLocals").getCode().getMaxLocals();
+        assertTrue(after < before);
+
+        // the two slots of the long and of the double must not overlap with each other
+        Set<Integer> longSlots = new HashSet<>();
+        Set<Integer> doubleSlots = new HashSet<>();
+        for (Instruction inst : samples.code("wideLocals")) {
+            if (inst instanceof LSTORE || inst instanceof LLOAD) {
+                longSlots.add(((LocalVariableInstruction) inst).getIndex());
+            } else if (inst instanceof DSTORE || inst instanceof DLOAD) {
+                doubleSlots.add(((LocalVariableInstruction) inst).getIndex());
+            }
+        }
+        assertEquals(1, longSlots.size());
+        assertEquals(1, doubleSlots.size());
+        int longSlot = longSlots.iterator().next();
+        int doubleSlot = doubleSlots.iterator().next();
+        assertTrue(Math.abs(longSlot - doubleSlot) >= 2);
+        assertTrue(Math.max(longSlot, doubleSlot) + 2 <= after);
+
+        for (int n : new int[]{0, 1, -7, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            samples.assertSameResult("wideLocals", n);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * EVALUATOR TEST
+ * The corner cases where folding must give exactly what the JVM computes at run time.
+ */
+public class EvaluatorTest {
+    private Frame frame;
+
+    @Before
+    public void setUp()
+    {
+        frame = new Frame();
+        frame.reset(8, 0);
+    }
+
+    private int evaluateInt(int opcode)
+    {
+        assertTrue(Evaluator.evaluate(opcode, frame));
+        assertEquals(1, frame.stackSize());
+        return frame.popInt();
+    }
+
+    private long evaluateLong(int opcode)
+    {
+        assertTrue(Evaluator.evaluate(opcode, frame));
+        assertEquals(2, frame.stackSize());
+        return frame.popLong();
+    }
+
+    private int compareFloats(int opcode, float value1, float value2)
+    {
+        frame.pushFloat(value1);
+        frame.pushFloat(value2);
+        return evaluateInt(opcode);
+    }
+
+    private int compareDoubles(int opcode, double value1, double value2)
+    {
+        frame.pushDouble(value1);
+        frame.pushDouble(value2);
+        return evaluateInt(opcode);
+    }
+
+    @Test
+    public void floatComparisonWithNaN()
+    {
+        assertEquals(1, compareFloats(Const.FCMPG, Float.NaN, 1f));
+        assertEquals(1, compareFloats(Const.FCMPG, 1f, Float.NaN));
+        assertEquals(-1, compareFloats(Const.FCMPL, Float.NaN, 1f));
+        assertEquals(-1, compareFloats(Const.FCMPL, Float.NaN, Float.NaN));
+        assertEquals(0, compareFloats(Const.FCMPG, 0f, -0f));
+        assertEquals(-1, compareFloats(Const.FCMPG, Float.NEGATIVE_INFINITY, 0f));
+    }
+
+    @Test
+    public void doubleComparisonWithNaN()
+    {
+        assertEquals(1, compareDoubles(Const.DCMPG, Double.NaN, 1.0));
+        assertEquals(1, compareDoubles(Const.DCMPG, 1.0, Double.NaN));
+        assertEquals(-1, compareDoubles(Const.DCMPL, Double.NaN, 1.0));
+        assertEquals(-1, compareDoubles(Const.DCMPL, Double.NaN, Double.NaN));
+        assertEquals(0, compareDoubles(Const.DCMPL, -0.0, 0.0));
+        assertEquals(1, compareDoubles(Const.DCMPL, Double.POSITIVE_INFINITY, Double.MAX_VALUE));
+    }
+
+    @Test
+    public void intShiftDistanceIsMasked()
+    {
+        frame.pushInt(1);
+        frame.pushInt(33);
+        assertEquals(2, evaluateInt(Const.ISHL));
+        frame.pushInt(-1);
+        frame.pushInt(32);
+        assertEquals(-1, evaluateInt(Const.IUSHR));
+        frame.pushInt(-8);
+        frame.pushInt(-1);
+        assertEquals(-1, evaluateInt(Const.ISHR));
+    }
+
+    @Test
+    public void longShiftDistanceIsMasked()
+    {
+        frame.pushLong(1);
+        frame.pushInt(65);
+        assertEquals(2L, evaluateLong(Const.LSHL));
+        frame.pushLong(-1);
+        frame.pushInt(64);
+        assertEquals(-1L, evaluateLong(Const.LUSHR));
+        frame.pushLong(Long.MIN_VALUE);
+        frame.pushInt(-1);
+        assertEquals(1L, evaluateLong(Const.LUSHR));
+    }
+
+    @Test
+    public void minValueDividedByMinusOneOverflows()
+    {
+        frame.pushInt(Integer.MIN_VALUE);
+        frame.pushInt(-1);
+        assertEquals(Integer.MIN_VALUE, evaluateInt(Const.IDIV));
+        frame.pushInt(Integer.MIN_VALUE);
+        frame.pushInt(-1);
+        assertEquals(0, evaluateInt(Const.IREM));
+        frame.pushLong(Long.MIN_VALUE);
+        frame.pushLong(-1);
+        assertEquals(Long.MIN_VALUE, evaluateLong(Const.LDIV));
+        frame.pushLong(Long.MIN_VALUE);
+        frame.pushLong(-1);
+        assertEquals(0L, evaluateLong(Const.LREM));
+    }
+
+    @Test
+    public void floatToIntegerConversionsSaturate()
+    {
+        frame.pushFloat(Float.NaN);
+        assertEquals(0, evaluateInt(Const.F2I));
+        frame.pushFloat(Float.POSITIVE_INFINITY);
+        assertEquals(Integer.MAX_VALUE, evaluateInt(Const.F2I));
+        frame.pushFloat(Float.NEGATIVE_INFINITY);
+        assertEquals(Integer.MIN_VALUE, evaluateInt(Const.F2I));
+        frame.pushFloat(1e20f);
+        assertEquals(Long.MAX_VALUE, evaluateLong(Const.F2L));
+    }
+
+    @Test
+    public void doubleToIntegerConversionsSaturate()
+    {
+        frame.pushDouble(Double.NaN);
+        assertEquals(0L, evaluateLong(Const.D2L));
+        frame.pushDouble(Double.POSITIVE_INFINITY);
+        assertEquals(Long.MAX_VALUE, evaluateLong(Const.D2L));
+        frame.pushDouble(Double.NEGATIVE_INFINITY);
+        assertEquals(Long.MIN_VALUE, evaluateLong(Const.D2L));
+        frame.pushDouble(Double.NaN);
+        assertEquals(0, evaluateInt(Const.D2I));
+        frame.pushDouble(-1e300);
+        assertEquals(Integer.MIN_VALUE, evaluateInt(Const.D2I));
+    }
+
+    private void assertNotFolded(int opcode, int slots)
+    {
+        long[] before = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            before[i] = frame.topBits(slots - i);
+        }
+        assertFalse(Evaluator.evaluate(opcode, frame));
+        assertEquals(slots, frame.stackSize());
+        for (int i = 0; i < slots; i++) {
+            assertEquals(before[i], frame.topBits(slots - i));
+        }
+        frame.pop(slots);
+    }
+
+    @Test
+    public void integerDivisionByZeroIsNotFolded()
+    {
+        frame.pushInt(7);
+        frame.pushInt(0);
+        assertNotFolded(Const.IDIV, 2);
+        frame.pushInt(7);
+        frame.pushInt(0);
+        assertNotFolded(Const.IREM, 2);
+        frame.pushLong(7);
+        frame.pushLong(0);
+        assertNotFolded(Const.LDIV, 4);
+        frame.pushLong(7);
+        frame.pushLong(0);
+        assertNotFolded(Const.LREM, 4);
+    }
+
+    @Test
+    public void floatingDivisionByZeroIsFolded()
+    {
+        frame.pushDouble(1.0);
+        frame.pushDouble(0.0);
+        assertTrue(Evaluator.evaluate(Const.DDIV, frame));
+        assertEquals(Double.POSITIVE_INFINITY, frame.popDouble(), 0.0);
+        frame.pushFloat(1f);
+        frame.pushFloat(0f);
+        assertTrue(Evaluator.evaluate(Const.FREM, frame));
+        assertTrue(Float.isNaN(frame.popFloat()));
+    }
+
+    @Test
+    public void negationKeepsTheSignOfZero()
+    {
+        frame.pushDouble(0.0);
+        assertTrue(Evaluator.evaluate(Const.DNEG, frame));
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(frame.popDouble()));
+        frame.pushFloat(0f);
+        assertTrue(Evaluator.evaluate(Const.FNEG, frame));
+        assertEquals(Float.floatToRawIntBits(-0f), Float.floatToRawIntBits(frame.popFloat()));
+    }
+}
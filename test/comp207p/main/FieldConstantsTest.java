@@ -0,0 +1,103 @@
+package comp207p.main;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * FIELD CONSTANTS TEST
+ * A static final field read from another class is only folded if the read could not have started a static
+ * initialiser with effects.
+ */
+public class FieldConstantsTest {
+    static class Trivial {
+        static final int VALUE;
+
+        static {
+            VALUE = 42;
+        }
+    }
+
+    static class Effectful {
+        static final int CONSTANT = 9;
+        static final int VALUE;
+        static int parsed;
+
+        static {
+            VALUE = 7;
+            parsed = Integer.parseInt("1");
+        }
+    }
+
+    static class Child extends Effectful {
+        static final int OWN;
+
+        static {
+            OWN = 5;
+        }
+    }
+
+    private static FieldConstants fields;
+
+    @BeforeClass
+    public static void index() throws Exception
+    {
+        fields = new FieldConstants();
+        for (Class<?> indexed : new Class<?>[]{Trivial.class, Effectful.class, Child.class}) {
+            fields.addClassFile(IsolatingClassLoader.bytesOf(indexed), indexed.getSimpleName() + ".class");
+        }
+    }
+
+    /**
+     * The value push gives an int field, or null if it does not push one.
+     */
+    static Integer value(FieldConstants fields, Class<?> owner, String name, boolean fromOwner)
+    {
+        Frame frame = new Frame();
+        frame.reset(2, 0);
+        if (!fields.push(owner.getName(), name, "I", fromOwner, frame)) {
+            return null;
+        }
+        return frame.popInt();
+    }
+
+    @Test
+    public void fieldOfATrivialInitialiserIsFoldedAnywhere()
+    {
+        assertEquals(Integer.valueOf(42), value(fields, Trivial.class, "VALUE", false));
+        assertEquals(Integer.valueOf(42), value(fields, Trivial.class, "VALUE", true));
+    }
+
+    @Test
+    public void fieldOfAnInitialiserWithEffectsIsNotFolded()
+    {
+        // the initialiser is not evaluated at all, so not even its own code knows the value
+        assertNull(value(fields, Effectful.class, "VALUE", false));
+        assertNull(value(fields, Effectful.class, "VALUE", true));
+    }
+
+    @Test
+    public void fieldIsNotFoldedIfASuperclassInitialiserHasEffects()
+    {
+        // reading Child.OWN initialises Effectful first
+        assertNull(value(fields, Child.class, "OWN", false));
+        assertEquals(Integer.valueOf(5), value(fields, Child.class, "OWN", true));
+    }
+
+    @Test
+    public void constantValueFieldIsAlwaysFolded()
+    {
+        // a constant variable is read without initialising its class
+        assertEquals(Integer.valueOf(9), value(fields, Effectful.class, "CONSTANT", false));
+    }
+
+    @Test
+    public void fieldThatIsNotFinalOrNotIndexedIsNotFolded()
+    {
+        assertNull(value(fields, Effectful.class, "parsed", true));
+        assertNull(value(fields, FieldConstantsTest.class, "VALUE", false));
+    }
+}
@@ -0,0 +1,121 @@
+package comp207p.main;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * FOLDING DAEMON TEST
+ * Requests are answered in the order they are read, each with a status and the data the protocol gives it.
+ */
+public class FoldingDaemonTest {
+    private static void sendClass(DataOutputStream out, String fileName, byte[] classFile) throws IOException
+    {
+        out.writeUTF(FoldingDaemon.CLASS);
+        out.writeUTF(fileName);
+        out.writeInt(classFile.length);
+        out.write(classFile);
+    }
+
+    @Test
+    public void requestsAreAnsweredInOrder() throws Exception
+    {
+        byte[] samples = IsolatingClassLoader.bytesOf(FoldingSamples.class);
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(requests);
+        sendClass(out, "FoldingSamples.class", samples);
+        sendClass(out, "Broken.class", new byte[]{1, 2, 3});
+        out.writeUTF(FoldingDaemon.STATS);
+        out.writeUTF("fold");
+        out.flush();
+
+        ByteArrayOutputStream answers = new ByteArrayOutputStream();
+        new FoldingDaemon(null).serve(new ByteArrayInputStream(requests.toByteArray()), answers);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(answers.toByteArray()));
+
+        assertEquals(FoldingDaemon.OPTIMIZED, in.readUTF());
+        byte[] optimized = new byte[in.readInt()];
+        in.readFully(optimized);
+        assertArrayEquals(ConstantFolder.optimizeClass(samples, "FoldingSamples.class"), optimized);
+
+        assertEquals(FoldingDaemon.FAILED, in.readUTF());
+        assertTrue(in.readUTF().startsWith("Failed to optimise Broken.class"));
+
+        assertEquals(FoldingDaemon.OK, in.readUTF());
+        assertTrue(in.readUTF().contains("1 optimised, 0 unchanged, 1 failed"));
+
+        assertEquals(FoldingDaemon.FAILED, in.readUTF());
+        assertEquals("Unknown command fold", in.readUTF());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void connectionWithAWrongTokenIsClosed() throws Exception
+    {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        File directory = Files.createTempDirectory("daemon").toFile();
+        File tokenFile = new File(directory, "daemon.token");
+        FoldingDaemon daemon = new FoldingDaemon(null);
+        Thread listener = new Thread(() -> {
+            try {
+                daemon.listen(port, tokenFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        listener.start();
+        try {
+            for (int i = 0; i < 500 && !tokenFile.exists(); i++) {
+                Thread.sleep(10);
+            }
+            String token = FoldingDaemon.readToken(tokenFile);
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeUTF(token.substring(1) + "0");
+                out.writeUTF(FoldingDaemon.STATS);
+                out.flush();
+                assertEquals(FoldingDaemon.FAILED, in.readUTF());
+                assertEquals("Wrong token", in.readUTF());
+                // the stats request is never answered
+                assertEquals(-1, in.read());
+            }
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeUTF(token);
+                out.writeUTF(FoldingDaemon.SHUTDOWN);
+                out.flush();
+                assertEquals(FoldingDaemon.OK, in.readUTF());
+                assertEquals("Shutting down", in.readUTF());
+            }
+            listener.join(10000);
+            assertFalse(listener.isAlive());
+            assertFalse(tokenFile.exists());
+        } finally {
+            daemon.stop();
+            tokenFile.delete();
+            directory.delete();
+        }
+    }
+}
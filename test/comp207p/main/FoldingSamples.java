@@ -0,0 +1,126 @@
+package comp207p.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * FOLDING SAMPLES
+ * Methods with something for every pass to fold, for the tests that optimise a class and run it. Every public static
+ * method without parameters returns a value that tells whether the optimised code computes what the original did;
+ * the control flow mixes types in locals and on the stack so that the optimised methods need stack map frames.
+ */
+public class FoldingSamples {
+    static final int LIMIT;
+
+    static {
+        LIMIT = 12;
+    }
+
+    public static int arithmetic()
+    {
+        int a = 6 * 7;
+        int b = a << 33;
+        int c = Integer.MIN_VALUE / -1;
+        return a + b - c % 5 + (int) Float.NaN + (int) 1e20;
+    }
+
+    public static long longsAndDoubles()
+    {
+        long total = 3L * 1000000007L;
+        double scale = -0.0;
+        double negative = 1 / scale;
+        if (negative < 0) {
+            total += (long) Double.POSITIVE_INFINITY >>> 60;
+        }
+        return total + (long) (Math.sqrt(16.0) * 2);
+    }
+
+    public static int branches()
+    {
+        int x = 5;
+        int y;
+        if (x > 3) {
+            y = x * 2;
+        } else {
+            y = -x;
+        }
+        Object o = y > 4 ? "text" : new ArrayList<String>();
+        return o instanceof String ? y + 1 : y - 1;
+    }
+
+    public static int loops()
+    {
+        int sum = 0;
+        for (int i = 0; i < LIMIT; i++) {
+            sum += i * i;
+        }
+        long product = 1;
+        for (int i = 1; i <= 10; i++) {
+            product *= i;
+        }
+        return sum + (int) (product % 1000);
+    }
+
+    public static String strings()
+    {
+        String greeting = "Hello" + ", " + 42 + '!';
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            builder.append(i);
+        }
+        switch ("two") {
+            case "one":
+                return "1";
+            case "two":
+                return greeting.length() + greeting + builder;
+            default:
+                return "?";
+        }
+    }
+
+    public static int zeroDivisionStillThrows()
+    {
+        int zero = 0;
+        try {
+            return 1 / zero;
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    public static String exceptions()
+    {
+        List<String> seen = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            try {
+                if (i == 0) {
+                    throw new IllegalStateException("state");
+                } else if (i == 1) {
+                    throw new UnsupportedOperationException("unsupported");
+                }
+                seen.add("none");
+            } catch (IllegalStateException | UnsupportedOperationException e) {
+                seen.add(e.getMessage());
+            } finally {
+                seen.add("finally" + i);
+            }
+        }
+        return seen.toString();
+    }
+
+    public static Object mixedLocals()
+    {
+        Object value = null;
+        long wide = 2;
+        for (int i = 0; i < 4; i++) {
+            if (i % 2 == 0) {
+                value = Integer.valueOf(i);
+            } else {
+                double half = i / 2.0;
+                value = String.valueOf(half + wide);
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,79 @@
+package comp207p.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * ISOLATING CLASS LOADER
+ * Defines a class from given bytes, even if a class of the same name is on the class path, so that the tests can run
+ * an optimised class next to its original. The JVM verifies every class this loader defines, stack map frames
+ * included, when the class is linked.
+ */
+class IsolatingClassLoader extends ClassLoader {
+    private final String name;
+    private final byte[] classFile;
+
+    IsolatingClassLoader(String name, byte[] classFile)
+    {
+        super(IsolatingClassLoader.class.getClassLoader());
+        this.name = name;
+        this.classFile = classFile;
+    }
+
+    @Override
+    protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException
+    {
+        if (!className.equals(name)) {
+            return super.loadClass(className, resolve);
+        }
+        synchronized (getClassLoadingLock(className)) {
+            Class<?> loaded = findLoadedClass(className);
+            if (loaded == null) {
+                loaded = defineClass(className, classFile, 0, classFile.length);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * Defines a class from its bytes and initialises it, which links and so verifies it.
+     */
+    static Class<?> define(String name, byte[] classFile) throws ClassNotFoundException
+    {
+        return Class.forName(name, true, new IsolatingClassLoader(name, classFile));
+    }
+
+    /**
+     * The class file a class was loaded from.
+     */
+    static byte[] bytesOf(Class<?> type) throws IOException
+    {
+        String resource = type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class";
+        try (InputStream in = type.getResourceAsStream(resource)) {
+            return BatchFolder.readFully(in);
+        }
+    }
+
+    /**
+     * The results of the public static methods without parameters of a class, by method name.
+     */
+    static Map<String, Object> results(Class<?> type) throws ReflectiveOperationException
+    {
+        Map<String, Object> results = new LinkedHashMap<>();
+        for (Method method : type.getDeclaredMethods()) {
+            int modifiers = method.getModifiers();
+            if (Modifier.isPublic(modifiers) && Modifier.isStatic(modifiers) && method.getParameterCount() == 0) {
+                results.put(method.getName(), method.invoke(null));
+            }
+        }
+        return results;
+    }
+}
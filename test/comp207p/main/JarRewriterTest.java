@@ -0,0 +1,248 @@
+package comp207p.main;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * JAR REWRITER TEST
+ * Rewrites a small JAR and compares the output entry by entry with the input, at the level of their compressed bytes.
+ */
+public class JarRewriterTest {
+    static class Foldable {
+        static int answer()
+        {
+            int a = 6;
+            return a * 7;
+        }
+    }
+
+    static class Plain {
+        static int identity(int x)
+        {
+            return x;
+        }
+    }
+
+    private static final String FOLDABLE = Foldable.class.getName().replace('.', '/') + ".class";
+    private static final String PLAIN = Plain.class.getName().replace('.', '/') + ".class";
+    private static final String README = "data/readme.txt";
+    private static final String STORED = "data/stored.bin";
+    /** An odd number of seconds, which the two second resolution of the DOS time stamp cannot hold. */
+    private static final FileTime MODIFIED = FileTime.fromMillis(1500000001000L);
+
+    private File input;
+    private File output;
+
+    @Before
+    public void createFiles() throws IOException
+    {
+        input = File.createTempFile("input", ".jar");
+        output = File.createTempFile("output", ".jar");
+    }
+
+    @After
+    public void deleteFiles()
+    {
+        input.delete();
+        output.delete();
+    }
+
+    /**
+     * Writes the input JAR: a manifest, a directory, a deflated and a stored resource, the two classes, and any extra
+     * entries given.
+     */
+    private void writeInput(Manifest manifest, Map<String, byte[]> extraEntries) throws IOException
+    {
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(input), manifest)) {
+            jar.putNextEntry(new JarEntry("data/"));
+            jar.closeEntry();
+
+            JarEntry readme = new JarEntry(README);
+            readme.setLastModifiedTime(MODIFIED);
+            jar.putNextEntry(readme);
+            jar.write("Some text that deflates. Some text that deflates.".getBytes(StandardCharsets.UTF_8));
+            jar.closeEntry();
+
+            byte[] stored = {0, 1, 2, 3, 4, 5, 6, 7};
+            JarEntry storedEntry = new JarEntry(STORED);
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(stored.length);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            storedEntry.setCrc(crc.getValue());
+            jar.putNextEntry(storedEntry);
+            jar.write(stored);
+            jar.closeEntry();
+
+            for (Class<?> type : new Class<?>[]{Foldable.class, Plain.class}) {
+                jar.putNextEntry(new JarEntry(type.getName().replace('.', '/') + ".class"));
+                jar.write(IsolatingClassLoader.bytesOf(type));
+                jar.closeEntry();
+            }
+            for (Map.Entry<String, byte[]> entry : extraEntries.entrySet()) {
+                jar.putNextEntry(new JarEntry(entry.getKey()));
+                jar.write(entry.getValue());
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private static Manifest manifest()
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        return manifest;
+    }
+
+    private int rewrite() throws IOException
+    {
+        return new JarRewriter(ForkJoinPool.commonPool(), null, null).rewrite(input, output);
+    }
+
+    /**
+     * The compressed bytes of every entry of an archive, by name.
+     */
+    private static Map<String, byte[]> rawEntries(File file) throws IOException
+    {
+        Map<String, byte[]> raw = new HashMap<>();
+        try (ZipArchiveReader reader = new ZipArchiveReader(file)) {
+            for (ZipArchiveReader.Entry entry : reader.entries()) {
+                byte[] data = new byte[(int) entry.compressedSize];
+                reader.rawData(entry).get(data);
+                raw.put(entry.name, data);
+            }
+        }
+        return raw;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[4096];
+            int length = 0;
+            for (int read; (read = stream.read(buffer, length, buffer.length - length)) > 0; ) {
+                length += read;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+
+    @Test
+    public void onlyClassesWithSomethingToFoldAreRecompressed() throws Exception
+    {
+        writeInput(manifest(), Collections.emptyMap());
+        assertEquals(6, rewrite());
+
+        Map<String, byte[]> before = rawEntries(input);
+        Map<String, byte[]> after = rawEntries(output);
+        assertEquals(before.keySet(), after.keySet());
+        for (String name : new String[]{JarFile.MANIFEST_NAME, "data/", README, STORED, PLAIN}) {
+            assertArrayEquals(name, before.get(name), after.get(name));
+        }
+        assertFalse(Arrays.equals(before.get(FOLDABLE), after.get(FOLDABLE)));
+
+        try (JarFile jar = new JarFile(output)) {
+            assertNotNull(jar.getManifest());
+            List<String> names = new ArrayList<>();
+            for (JarEntry entry : Collections.list(jar.entries())) {
+                names.add(entry.getName());
+                // reading the entry checks its size and CRC against the headers
+                readAll(jar.getInputStream(entry));
+            }
+            assertEquals(6, names.size());
+
+            byte[] optimized = readAll(jar.getInputStream(jar.getEntry(FOLDABLE)));
+            Class<?> loaded = IsolatingClassLoader.define(Foldable.class.getName(), optimized);
+            Method answer = loaded.getDeclaredMethod("answer");
+            answer.setAccessible(true);
+            assertEquals(42, answer.invoke(null));
+        }
+    }
+
+    @Test
+    public void signedJarIsWrittenUnsigned() throws Exception
+    {
+        Manifest manifest = manifest();
+        Attributes digests = new Attributes();
+        digests.putValue("SHA-256-Digest", "bm90IGEgcmVhbCBkaWdlc3Q=");
+        manifest.getEntries().put(FOLDABLE, digests);
+        Attributes sealed = new Attributes();
+        sealed.putValue("SHA-256-Digest", "bm90IGEgcmVhbCBkaWdlc3Q=");
+        sealed.putValue("Sealed", "true");
+        manifest.getEntries().put(README, sealed);
+        Map<String, byte[]> signature = new HashMap<>();
+        signature.put("META-INF/SIGNER.SF", "Signature-Version: 1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        signature.put("META-INF/SIGNER.RSA", new byte[]{0x30, 0});
+        writeInput(manifest, signature);
+        rewrite();
+
+        try (JarFile jar = new JarFile(output)) {
+            assertNull(jar.getEntry("META-INF/SIGNER.SF"));
+            assertNull(jar.getEntry("META-INF/SIGNER.RSA"));
+            Manifest written = jar.getManifest();
+            assertNull(written.getAttributes(FOLDABLE));
+            assertEquals("true", written.getAttributes(README).getValue("Sealed"));
+            assertNull(written.getAttributes(README).getValue("SHA-256-Digest"));
+            for (JarEntry entry : Collections.list(jar.entries())) {
+                readAll(jar.getInputStream(entry));
+                assertNull(entry.getName(), entry.getCodeSigners());
+            }
+        }
+    }
+
+    @Test
+    public void extraFieldsAreKept() throws Exception
+    {
+        writeInput(manifest(), Collections.emptyMap());
+        rewrite();
+
+        try (JarFile jar = new JarFile(output)) {
+            // only the extended time stamp of the extra field holds the odd second
+            assertEquals(MODIFIED, jar.getEntry(README).getLastModifiedTime());
+        }
+        try (ZipArchiveReader before = new ZipArchiveReader(input);
+             ZipArchiveReader after = new ZipArchiveReader(output)) {
+            for (int i = 0; i < before.entries().size(); i++) {
+                ZipArchiveReader.Entry entry = before.entries().get(i);
+                assertArrayEquals(entry.name, entry.extra, after.entries().get(i).extra);
+                if (entry.name.equals(README)) {
+                    assertNotEquals(0, entry.extra.length);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.INVOKEINTERFACE;
+import org.apache.bcel.generic.IfInstruction;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * LOOP OPTIMIZER TEST
+ * A loop over constants is evaluated, one whose branches are still known is unrolled within its budget, and anything
+ * else keeps its loop.
+ */
+public class LoopOptimizerTest {
+    static class Samples {
+        static int sumOfSquares()
+        {
+            int sum = 0;
+            for (int i = 0; i < 10; i++) {
+                sum += i * i;
+            }
+            return sum;
+        }
+
+        static int hashed(int seed)
+        {
+            int hash = seed;
+            for (int i = 0; i < 4; i++) {
+                hash = hash * 31 + i;
+            }
+            return hash;
+        }
+
+        static List<Integer> fewCalls()
+        {
+            List<Integer> seen = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                seen.add(i);
+            }
+            return seen;
+        }
+
+        static List<Integer> manyCalls()
+        {
+            List<Integer> seen = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                seen.add(i);
+            }
+            return seen;
+        }
+
+        static int upTo(int n)
+        {
+            int sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += i;
+            }
+            return sum;
+        }
+    }
+
+    private static OptimisedClass samples;
+
+    @BeforeClass
+    public static void optimise() throws Exception
+    {
+        samples = new OptimisedClass(Samples.class);
+    }
+
+    private static void assertLoops(String method, int evaluated, int unrolled)
+    {
+        Metrics.MethodMetrics metrics = samples.metrics(method);
+        assertEquals(evaluated, metrics == null ? 0 : metrics.loopsEvaluated);
+        assertEquals(unrolled, metrics == null ? 0 : metrics.loopsUnrolled);
+    }
+
+    @Test
+    public void loopOverConstantsIsEvaluated() throws Exception
+    {
+        assertLoops("sumOfSquares", 1, 0);
+        assertEquals(0, samples.count("sumOfSquares", IfInstruction.class));
+        assertEquals(285, samples.assertSameResult("sumOfSquares"));
+    }
+
+    @Test
+    public void loopWithKnownBranchesIsUnrolled() throws Exception
+    {
+        assertLoops("hashed", 0, 1);
+        assertEquals(0, samples.count("hashed", IfInstruction.class));
+        for (int seed : new int[]{0, 1, -1, Integer.MAX_VALUE}) {
+            samples.assertSameResult("hashed", seed);
+        }
+    }
+
+    @Test
+    public void loopWithCallsIsUnrolledWithTheCallsInOrder() throws Exception
+    {
+        // calls have effects, so the loop cannot be evaluated, but its path can be copied out
+        assertLoops("fewCalls", 0, 1);
+        assertEquals(0, samples.count("fewCalls", IfInstruction.class));
+        assertEquals(3, samples.count("fewCalls", INVOKEINTERFACE.class));
+        samples.assertSameResult("fewCalls");
+    }
+
+    @Test
+    public void loopWithCallsOverTheUnrollBudgetIsLeftAlone() throws Exception
+    {
+        assertLoops("manyCalls", 0, 0);
+        assertEquals(1, samples.count("manyCalls", INVOKEINTERFACE.class));
+        assertTrue(samples.count("manyCalls", IfInstruction.class) > 0);
+        samples.assertSameResult("manyCalls");
+    }
+
+    @Test
+    public void loopWithAnUnknownBoundIsLeftAlone() throws Exception
+    {
+        assertLoops("upTo", 0, 0);
+        assertTrue(samples.count("upTo", IfInstruction.class) > 0);
+        for (int n : new int[]{-1, 0, 1, 10}) {
+            samples.assertSameResult("upTo", n);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionList;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationTargetException;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * OPTIMISED CLASS
+ * A class of the tests optimised by the ConstantFolder and defined next to the original, so that a test can look at
+ * the code of the optimised methods and run them against the original ones.
+ */
+final class OptimisedClass {
+    final Class<?> original;
+    final byte[] classFile;
+    final Metrics.ClassMetrics metrics;
+    final Class<?> optimised;
+
+    OptimisedClass(Class<?> original) throws Exception
+    {
+        this(original, IsolatingClassLoader.bytesOf(original));
+    }
+
+    /**
+     * @param classFile class file of the original class
+     */
+    OptimisedClass(Class<?> original, byte[] classFile) throws Exception
+    {
+        String fileName = original.getSimpleName() + ".class";
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(classFile), fileName);
+        folder.optimize();
+        this.original = original;
+        this.classFile = folder.getOptimizedBytes();
+        this.metrics = folder.getMetrics();
+        this.optimised = IsolatingClassLoader.define(original.getName(), this.classFile);
+    }
+
+    /**
+     * A method of the optimised class.
+     */
+    Method method(String methodName) throws Exception
+    {
+        for (Method method : new ClassParser(new ByteArrayInputStream(classFile), "optimised.class").parse()
+                .getMethods()) {
+            if (method.getName().equals(methodName)) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException("No method " + methodName);
+    }
+
+    /**
+     * The instructions of a method of the optimised class.
+     */
+    Instruction[] code(String methodName) throws Exception
+    {
+        return new InstructionList(method(methodName).getCode().getCode()).getInstructions();
+    }
+
+    /**
+     * How many of the instructions of a method of the optimised class are of a kind.
+     */
+    int count(String methodName, Class<? extends Instruction> kind) throws Exception
+    {
+        int count = 0;
+        for (Instruction inst : code(methodName)) {
+            if (kind.isInstance(inst)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The metrics of a method, or null if the folder did not look at it.
+     */
+    Metrics.MethodMetrics metrics(String methodName)
+    {
+        for (Metrics.MethodMetrics method : metrics.methods) {
+            if (method.name.startsWith(methodName + "(")) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calls a static method of the original and of the optimised class with the same arguments and checks that both
+     * return the same value, or throw the same exception.
+     * @return what the optimised method returned
+     */
+    Object assertSameResult(String methodName, Object... arguments) throws Exception
+    {
+        Object expected = call(original, methodName, arguments);
+        Object actual = call(optimised, methodName, arguments);
+        assertEquals(methodName, expected, actual);
+        return actual;
+    }
+
+    private static Object call(Class<?> type, String methodName, Object[] arguments) throws Exception
+    {
+        for (java.lang.reflect.Method method : type.getDeclaredMethods()) {
+            if (method.getName().equals(methodName)) {
+                method.setAccessible(true);
+                try {
+                    return method.invoke(null, arguments);
+                } catch (InvocationTargetException e) {
+                    // compared by class, as two exceptions are never equal
+                    return e.getCause().getClass();
+                }
+            }
+        }
+        throw new IllegalArgumentException("No method " + methodName + " in " + type.getName());
+    }
+}
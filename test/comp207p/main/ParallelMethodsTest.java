@@ -0,0 +1,77 @@
+package comp207p.main;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.LMUL;
+import org.apache.bcel.generic.LRETURN;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.PUSH;
+import org.apache.bcel.generic.Type;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * PARALLEL METHODS TEST
+ * A class with enough methods to be split between workers must come out byte for byte the same on every run, and the
+ * same as when its methods are optimised one after the other.
+ */
+public class ParallelMethodsTest {
+    private static final String NAME = "ManyMethods";
+    private static final int METHODS = ConstantFolder.PARALLEL_METHODS * 2 + 5;
+
+    /**
+     * A class whose methods each multiply two constants, so that every worker adds new constants to its pool.
+     */
+    private static byte[] manyMethods()
+    {
+        ClassGen classGen = new ClassGen(NAME, "java.lang.Object", NAME + ".java", Const.ACC_PUBLIC | Const.ACC_SUPER,
+                null);
+        classGen.setMajor(Const.MAJOR_1_8);
+        classGen.setMinor(0);
+        for (int i = 0; i < METHODS; i++) {
+            InstructionList il = new InstructionList();
+            il.append(new PUSH(classGen.getConstantPool(), 1000003L + i));
+            il.append(new PUSH(classGen.getConstantPool(), 7919L * (i % 5 + 1)));
+            il.append(new LMUL());
+            il.append(new LRETURN());
+            MethodGen methodGen = new MethodGen(Const.ACC_PUBLIC | Const.ACC_STATIC, Type.LONG, Type.NO_ARGS, null,
+                    "m" + i, NAME, il, classGen.getConstantPool());
+            methodGen.setMaxStack();
+            methodGen.setMaxLocals();
+            classGen.addMethod(methodGen.getMethod());
+        }
+        return classGen.getJavaClass().getBytes();
+    }
+
+    private static byte[] optimise(byte[] classFile, int parallelMethods) throws Exception
+    {
+        ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(classFile), NAME + ".class");
+        folder.parallelMethods = parallelMethods;
+        folder.optimize();
+        return folder.getOptimizedBytes();
+    }
+
+    @Test
+    public void parallelRunsGiveTheSameClass() throws Exception
+    {
+        byte[] classFile = manyMethods();
+        byte[] first = optimise(classFile, ConstantFolder.PARALLEL_METHODS);
+        byte[] second = optimise(classFile, ConstantFolder.PARALLEL_METHODS);
+        byte[] sequential = optimise(classFile, Integer.MAX_VALUE);
+        assertArrayEquals(first, second);
+        assertArrayEquals(sequential, first);
+
+        Class<?> loaded = IsolatingClassLoader.define(NAME, first);
+        for (int i = 0; i < METHODS; i++) {
+            Method method = loaded.getMethod("m" + i);
+            assertEquals((1000003L + i) * (7919L * (i % 5 + 1)), method.invoke(null));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.BIPUSH;
+import org.apache.bcel.generic.DUP;
+import org.apache.bcel.generic.IDIV;
+import org.apache.bcel.generic.IMUL;
+import org.apache.bcel.generic.INEG;
+import org.apache.bcel.generic.ISHL;
+import org.apache.bcel.generic.ISTORE;
+import org.apache.bcel.generic.IfInstruction;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.LDIV;
+import org.apache.bcel.generic.LMUL;
+import org.apache.bcel.generic.LNEG;
+import org.apache.bcel.generic.LSHL;
+import org.apache.bcel.generic.POP2;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * PEEPHOLE TEST
+ * Each rewrite of the peephole pass must give the same result as the instructions it replaces for every operand, so
+ * the optimised methods are run with the values where a cheaper instruction would differ.
+ */
+public class PeepholeTest {
+    static class Samples {
+        static int timesIntMinimum(int x)
+        {
+            return x * Integer.MIN_VALUE;
+        }
+
+        static long timesLongMinimum(long x)
+        {
+            return x * Long.MIN_VALUE;
+        }
+
+        static int dividedByMinusOne(int x)
+        {
+            return x / -1;
+        }
+
+        static long longDividedByMinusOne(long x)
+        {
+            return x / -1;
+        }
+
+        static int halved(int x)
+        {
+            return x / 2;
+        }
+
+        static int storedAndLoaded(int x)
+        {
+            int y = x * 3;
+            int z = y + x;
+            return z * y;
+        }
+
+        static int emptyIf(int a, int b)
+        {
+            if (a < b) {
+            }
+            return a;
+        }
+    }
+
+    private static final int[] INTS = {0, 1, -1, 3, -3, 7, Integer.MIN_VALUE, Integer.MAX_VALUE};
+    private static final long[] LONGS = {0, 1, -1, 3, -3, 7, Long.MIN_VALUE, Long.MAX_VALUE};
+
+    private static OptimisedClass samples;
+
+    @BeforeClass
+    public static void optimise() throws Exception
+    {
+        samples = new OptimisedClass(Samples.class);
+    }
+
+    /**
+     * Whether a method shifts by a distance pushed with BIPUSH right before the shift.
+     */
+    private static boolean shiftsBy(Instruction[] code, Class<? extends Instruction> shift, int distance)
+    {
+        for (int i = 1; i < code.length; i++) {
+            if (shift.isInstance(code[i]) && code[i - 1] instanceof BIPUSH
+                    && ((BIPUSH) code[i - 1]).getValue().intValue() == distance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void multiplicationByMinimumValueIsAShift() throws Exception
+    {
+        assertTrue(shiftsBy(samples.code("timesIntMinimum"), ISHL.class, 31));
+        assertEquals(0, samples.count("timesIntMinimum", IMUL.class));
+        assertTrue(shiftsBy(samples.code("timesLongMinimum"), LSHL.class, 63));
+        assertEquals(0, samples.count("timesLongMinimum", LMUL.class));
+        for (int x : INTS) {
+            samples.assertSameResult("timesIntMinimum", x);
+        }
+        for (long x : LONGS) {
+            samples.assertSameResult("timesLongMinimum", x);
+        }
+    }
+
+    @Test
+    public void divisionByMinusOneIsANegation() throws Exception
+    {
+        assertEquals(1, samples.count("dividedByMinusOne", INEG.class));
+        assertEquals(0, samples.count("dividedByMinusOne", IDIV.class));
+        assertEquals(1, samples.count("longDividedByMinusOne", LNEG.class));
+        assertEquals(0, samples.count("longDividedByMinusOne", LDIV.class));
+        // the one division that overflows: MIN_VALUE / -1 is MIN_VALUE, and so is -MIN_VALUE
+        assertEquals(Integer.MIN_VALUE, samples.assertSameResult("dividedByMinusOne", Integer.MIN_VALUE));
+        assertEquals(Long.MIN_VALUE, samples.assertSameResult("longDividedByMinusOne", Long.MIN_VALUE));
+        for (int x : INTS) {
+            samples.assertSameResult("dividedByMinusOne", x);
+        }
+        for (long x : LONGS) {
+            samples.assertSameResult("longDividedByMinusOne", x);
+        }
+    }
+
+    @Test
+    public void divisionByTwoStaysADivision() throws Exception
+    {
+        // a shift would round -3 / 2 down to -2
+        assertEquals(1, samples.count("halved", IDIV.class));
+        assertEquals(-1, samples.assertSameResult("halved", -3));
+        for (int x : INTS) {
+            samples.assertSameResult("halved", x);
+        }
+    }
+
+    @Test
+    public void storeAndLoadOfALiveLocalBecomeADup() throws Exception
+    {
+        // y is read again after the load that follows its store, z is not
+        assertEquals(1, samples.count("storedAndLoaded", DUP.class));
+        assertEquals(1, samples.count("storedAndLoaded", ISTORE.class));
+        for (int x : INTS) {
+            samples.assertSameResult("storedAndLoaded", x);
+        }
+    }
+
+    @Test
+    public void conditionalBranchToTheNextInstructionPopsItsOperands() throws Exception
+    {
+        assertEquals(0, samples.count("emptyIf", IfInstruction.class));
+        assertEquals(1, samples.count("emptyIf", POP2.class));
+        samples.assertSameResult("emptyIf", 1, 2);
+        samples.assertSameResult("emptyIf", 2, 1);
+    }
+}
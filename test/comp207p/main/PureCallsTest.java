@@ -0,0 +1,109 @@
+package comp207p.main;
+
+import org.apache.bcel.generic.INVOKESTATIC;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * PURE CALLS TEST
+ * Static calls with constant arguments are replaced by their result when the callee is a pure helper of the class or
+ * a whitelisted JDK method, and kept when evaluating them could not give what the call does at run time.
+ */
+public class PureCallsTest {
+    static class Samples {
+        private static int counter = 0;
+
+        private static int square(int x)
+        {
+            return x * x;
+        }
+
+        private static int next(int step)
+        {
+            counter += step;
+            return counter;
+        }
+
+        private static int depth(int n)
+        {
+            return n == 0 ? 0 : 1 + depth(n - 1);
+        }
+
+        static int callsHelper()
+        {
+            return square(7) + 1;
+        }
+
+        static int absOfMinimum()
+        {
+            return Math.abs(Integer.MIN_VALUE);
+        }
+
+        static long jdkCalls()
+        {
+            return Math.max(3L, Long.rotateLeft(1L, 40)) + Integer.bitCount(255) + Math.floorMod(-7, 3);
+        }
+
+        static int floorDivByZero()
+        {
+            return Math.floorDiv(1, 0);
+        }
+
+        static int callsImpure()
+        {
+            return next(2);
+        }
+
+        static int callsDeepRecursion()
+        {
+            return depth(PureCalls.MAX_DEPTH + 8);
+        }
+    }
+
+    private static OptimisedClass samples;
+
+    @BeforeClass
+    public static void optimise() throws Exception
+    {
+        samples = new OptimisedClass(Samples.class);
+    }
+
+    @Test
+    public void pureHelperIsFolded() throws Exception
+    {
+        assertEquals(0, samples.count("callsHelper", INVOKESTATIC.class));
+        assertEquals(50, samples.assertSameResult("callsHelper"));
+    }
+
+    @Test
+    public void whitelistedJdkCallsAreFolded() throws Exception
+    {
+        assertEquals(0, samples.count("absOfMinimum", INVOKESTATIC.class));
+        assertEquals(Integer.MIN_VALUE, samples.assertSameResult("absOfMinimum"));
+        assertEquals(0, samples.count("jdkCalls", INVOKESTATIC.class));
+        samples.assertSameResult("jdkCalls");
+    }
+
+    @Test
+    public void callThatThrowsIsKept() throws Exception
+    {
+        assertEquals(1, samples.count("floorDivByZero", INVOKESTATIC.class));
+        assertEquals(ArithmeticException.class, samples.assertSameResult("floorDivByZero"));
+    }
+
+    @Test
+    public void impureCalleeIsKept() throws Exception
+    {
+        assertEquals(1, samples.count("callsImpure", INVOKESTATIC.class));
+    }
+
+    @Test
+    public void recursionDeeperThanTheLimitIsKept() throws Exception
+    {
+        assertEquals(1, samples.count("callsDeepRecursion", INVOKESTATIC.class));
+        samples.assertSameResult("callsDeepRecursion");
+    }
+}
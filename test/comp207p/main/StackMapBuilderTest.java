@@ -0,0 +1,82 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.classfile.StackMap;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionList;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * STACK MAP BUILDER TEST
+ * The optimised methods of a class of version 50 or later get stack map frames the verifier accepts, and the class
+ * keeps its version.
+ */
+public class StackMapBuilderTest {
+    private static JavaClass parse(byte[] classFile) throws IOException
+    {
+        return new ClassParser(new ByteArrayInputStream(classFile), "FoldingSamples.class").parse();
+    }
+
+    private static boolean hasBranches(Code code)
+    {
+        for (Instruction inst : new InstructionList(code.getCode()).getInstructions()) {
+            if (inst instanceof BranchInstruction) {
+                return true;
+            }
+        }
+        return code.getExceptionTable().length > 0;
+    }
+
+    private static StackMap stackMap(Code code)
+    {
+        for (Attribute attribute : code.getAttributes()) {
+            if (attribute instanceof StackMap) {
+                return (StackMap) attribute;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void optimisedMethodsHaveFramesAndKeepTheVersion() throws Exception
+    {
+        byte[] original = IsolatingClassLoader.bytesOf(FoldingSamples.class);
+        byte[] optimised = ConstantFolder.optimizeClass(original, "FoldingSamples.class");
+        assertNotNull(optimised);
+
+        JavaClass before = parse(original);
+        JavaClass after = parse(optimised);
+        assertTrue(before.getMajor() >= 50);
+        assertEquals(before.getMajor(), after.getMajor());
+        for (Method method : after.getMethods()) {
+            Code code = method.getCode();
+            if (code != null && hasBranches(code)) {
+                assertNotNull("no frames in " + method.getName(), stackMap(code));
+            }
+        }
+    }
+
+    @Test
+    public void framesAreAcceptedByTheVerifier() throws Exception
+    {
+        byte[] optimised = ConstantFolder.optimizeClass(IsolatingClassLoader.bytesOf(FoldingSamples.class),
+                "FoldingSamples.class");
+        // defining the class links it, which fails with a VerifyError if a frame is wrong
+        Class<?> optimisedClass = IsolatingClassLoader.define(FoldingSamples.class.getName(), optimised);
+        assertEquals(IsolatingClassLoader.results(FoldingSamples.class),
+                IsolatingClassLoader.results(optimisedClass));
+    }
+}
@@ -0,0 +1,172 @@
+package comp207p.main;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.INVOKEDYNAMIC;
+import org.apache.bcel.generic.INVOKEVIRTUAL;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.LDC;
+import org.apache.bcel.generic.NEW;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * STRING VALUES TEST
+ * Concatenations and the String methods the JDK specifies are folded to the value the program would compute, and a
+ * builder the code can still reach after its toString is left to run.
+ */
+public class StringValuesTest {
+    static class Samples {
+        static String chain()
+        {
+            return new StringBuilder().append("a").append(1).append('c').append(true).append(-2L).toString();
+        }
+
+        static String concatenated()
+        {
+            String name = "answer";
+            int value = 42;
+            return name + '=' + value;
+        }
+
+        static int length()
+        {
+            String word = "constant";
+            return word.length();
+        }
+
+        static boolean equalTo()
+        {
+            String word = "constant";
+            return word.equals("const" + "ant");
+        }
+
+        static int hashed()
+        {
+            String word = "constant";
+            return word.hashCode();
+        }
+
+        static String escapesThroughDup()
+        {
+            StringBuilder kept;
+            String first = (kept = new StringBuilder("a")).append("b").toString();
+            kept.append(first);
+            return kept.toString();
+        }
+
+        static String keptInALocal()
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append("x");
+            builder.append(2);
+            return builder.toString();
+        }
+    }
+
+    /** A class whose concatenation javac compiles to an invokedynamic of makeConcatWithConstants from Java 9 on. */
+    private static final String CONCAT_SOURCE = "public class Concat {\n"
+            + "    public static String joined() {\n"
+            + "        String name = \"answer\";\n"
+            + "        int value = 42;\n"
+            + "        return name + '=' + value;\n"
+            + "    }\n"
+            + "}\n";
+
+    private static OptimisedClass samples;
+
+    @BeforeClass
+    public static void optimise() throws Exception
+    {
+        samples = new OptimisedClass(Samples.class);
+    }
+
+    /**
+     * Whether a method of the optimised samples does nothing but push a string and return it.
+     */
+    private static boolean returnsConstant(String method) throws Exception
+    {
+        Instruction[] code = samples.code(method);
+        return code.length == 2 && code[0] instanceof LDC;
+    }
+
+    @Test
+    public void builderChainIsFolded() throws Exception
+    {
+        assertTrue(returnsConstant("chain"));
+        assertEquals("a1ctrue-2", samples.assertSameResult("chain"));
+    }
+
+    @Test
+    public void concatenationIsFolded() throws Exception
+    {
+        assertTrue(returnsConstant("concatenated"));
+        assertEquals("answer=42", samples.assertSameResult("concatenated"));
+    }
+
+    @Test
+    public void stringMethodsAreFolded() throws Exception
+    {
+        for (String method : new String[]{"length", "equalTo", "hashed"}) {
+            assertEquals(method, 0, samples.count(method, INVOKEVIRTUAL.class));
+            samples.assertSameResult(method);
+        }
+    }
+
+    @Test
+    public void builderThatEscapesIsNotFolded() throws Exception
+    {
+        assertEquals(1, samples.count("escapesThroughDup", NEW.class));
+        assertEquals("abab", samples.assertSameResult("escapesThroughDup"));
+
+        assertEquals(1, samples.count("keptInALocal", NEW.class));
+        assertEquals("x2", samples.assertSameResult("keptInALocal"));
+    }
+
+    @Test
+    public void makeConcatWithConstantsIsFolded() throws Exception
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeTrue("needs the compiler of a JDK 9 or later", compiler != null
+                && !System.getProperty("java.specification.version").startsWith("1."));
+        Path directory = Files.createTempDirectory("concat");
+        Path source = directory.resolve("Concat.java");
+        Path compiled = directory.resolve("Concat.class");
+        try {
+            Files.write(source, CONCAT_SOURCE.getBytes(StandardCharsets.UTF_8));
+            assertEquals(0, compiler.run(null, null, null, "--release", "9", "-d", directory.toString(),
+                    source.toString()));
+            byte[] classFile = Files.readAllBytes(compiled);
+            int indy = 0;
+            for (Method method : new ClassParser(new ByteArrayInputStream(classFile),
+                    "Concat.class").parse().getMethods()) {
+                for (Instruction inst : new InstructionList(method.getCode().getCode()).getInstructions()) {
+                    indy += inst instanceof INVOKEDYNAMIC ? 1 : 0;
+                }
+            }
+            assertEquals(1, indy);
+
+            OptimisedClass concat = new OptimisedClass(IsolatingClassLoader.define("Concat", classFile), classFile);
+            assertEquals(0, concat.count("joined", INVOKEDYNAMIC.class));
+            assertTrue(concat.code("joined")[0] instanceof LDC);
+            assertEquals("answer=42", concat.assertSameResult("joined"));
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(compiled);
+            Files.delete(directory);
+        }
+    }
+}